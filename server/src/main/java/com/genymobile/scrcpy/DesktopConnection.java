@@ -100,7 +100,14 @@ public final class DesktopConnection implements Closeable {
     }
 
     public void sendDeviceMeta(String deviceName, int width, int height) throws IOException {
-        byte[] buffer = new byte[DEVICE_NAME_FIELD_LENGTH + 4];
+        sendDeviceMeta(deviceName, width, height, null);
+    }
+
+    /**
+     * @param videoCodec the codec to report after the video size (4 bytes), or {@code null} to keep the legacy header
+     */
+    public void sendDeviceMeta(String deviceName, int width, int height, VideoCodec videoCodec) throws IOException {
+        byte[] buffer = new byte[DEVICE_NAME_FIELD_LENGTH + 4 + (videoCodec != null ? 4 : 0)];
 
         byte[] deviceNameBytes = deviceName.getBytes(StandardCharsets.UTF_8);
         int len = StringUtils.getUtf8TruncationIndex(deviceNameBytes, DEVICE_NAME_FIELD_LENGTH - 1);
@@ -111,6 +118,13 @@ public final class DesktopConnection implements Closeable {
         buffer[DEVICE_NAME_FIELD_LENGTH + 1] = (byte) width;
         buffer[DEVICE_NAME_FIELD_LENGTH + 2] = (byte) (height >> 8);
         buffer[DEVICE_NAME_FIELD_LENGTH + 3] = (byte) height;
+        if (videoCodec != null) {
+            int id = videoCodec.getId();
+            buffer[DEVICE_NAME_FIELD_LENGTH + 4] = (byte) (id >> 24);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 5] = (byte) (id >> 16);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 6] = (byte) (id >> 8);
+            buffer[DEVICE_NAME_FIELD_LENGTH + 7] = (byte) id;
+        }
         IO.writeFully(videoFd, buffer, 0, buffer.length);
     }
 
@@ -128,7 +142,13 @@ public final class DesktopConnection implements Closeable {
     }
 
     public void sendDeviceMessage(DeviceMessage msg) throws IOException {
+        /*/ tencent.kiwimchen. 20220606, support udt action
         writer.writeTo(msg, controlOutputStream);
+        /*/
+        synchronized (controlOutputLock) {
+            writer.writeTo(msg, controlOutputStream);
+        }
+        //*/
     }
 
     //*/ tencent.kiwimchen. 20220606, support udt action
@@ -140,6 +160,16 @@ public final class DesktopConnection implements Closeable {
         return controlOutputStream;
     }
 
+    // the udt messages are written by another thread than the device messages, by several writes for the captures
+    private final Object controlOutputLock = new Object();
+
+    /**
+     * Hold this lock for the whole message written to {@link #getOutputStream()}.
+     */
+    public Object getControlOutputLock() {
+        return controlOutputLock;
+    }
+
     public ControlMessageReader getReader() {
         return reader;
     }
@@ -46,7 +46,12 @@ public final class Device {
     }
 
     private final Size deviceSize;
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private final Rect crop;
+    /*/
+    private Rect crop;
+    private Size naturalDeviceSize; // the crop is expressed in the natural orientation
+    //*/
     private int maxSize;
     private final int lockVideoOrientation;
 
@@ -87,6 +92,7 @@ public final class Device {
         /*/
         scale_image = options.getScaleImage();
         screenInfo = ScreenInfo.computeScreenInfo(displayInfo.getRotation(), deviceSize, crop, maxSize, lockVideoOrientation, scale_image);
+        naturalDeviceSize = displayInfo.getRotation() % 2 != 0 ? deviceSize.rotate() : deviceSize;
         //*/
         layerStack = displayInfo.getLayerStack();
 
@@ -154,6 +160,33 @@ public final class Device {
         //*/
     }
 
+    //*/ tencent.kiwimchen. 20220606, support udt action
+    public synchronized void setVideoConfig(int newMaxSize, Rect newCrop) {
+        maxSize = newMaxSize;
+        crop = newCrop;
+        screenInfo = ScreenInfo.computeScreenInfo(screenInfo.getReverseVideoRotation(), deviceSize, crop, maxSize, lockVideoOrientation, scale_image);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized Rect getCrop() {
+        return crop;
+    }
+
+    /**
+     * Return the size of the display in its natural orientation, in which the crop is expressed.
+     */
+    public Size getNaturalDeviceSize() {
+        return naturalDeviceSize;
+    }
+
+    public int getDisplayId() {
+        return displayId;
+    }
+    //*/
+
     public synchronized ScreenInfo getScreenInfo() {
         return screenInfo;
     }
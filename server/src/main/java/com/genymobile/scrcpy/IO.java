@@ -37,4 +37,57 @@ public final class IO {
     public static void writeFully(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException {
         writeFully(fd, ByteBuffer.wrap(buffer, offset, len));
     }
+
+    /**
+     * Write all the buffers with as few {@code writev()} calls as possible (a single one unless the write is partial).
+     * <p>
+     * The buffers must be either backed by an accessible array or direct.
+     */
+    public static void writeFully(FileDescriptor fd, ByteBuffer... buffers) throws IOException {
+        int count = buffers.length;
+        Object[] arrays = new Object[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        int remaining = 0;
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer buffer = buffers[i];
+            if (buffer.hasArray()) {
+                arrays[i] = buffer.array();
+                offsets[i] = buffer.arrayOffset() + buffer.position();
+            } else {
+                // direct buffer, the offset is relative to its address
+                arrays[i] = buffer;
+                offsets[i] = buffer.position();
+            }
+            lengths[i] = buffer.remaining();
+            remaining += lengths[i];
+        }
+
+        // Os.writev() never updates the buffer positions, so track the progress manually
+        while (remaining > 0) {
+            try {
+                int w = Os.writev(fd, arrays, offsets, lengths);
+                if (BuildConfig.DEBUG && w < 0) {
+                    // w should not be negative, since an exception is thrown on error
+                    throw new AssertionError("Os.writev() returned a negative value (" + w + ")");
+                }
+                remaining -= w;
+                // on partial write, skip what has been written (fully written buffers are left with a 0 length)
+                for (int i = 0; i < count && w > 0; ++i) {
+                    int n = Math.min(w, lengths[i]);
+                    offsets[i] += n;
+                    lengths[i] -= n;
+                    w -= n;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        for (ByteBuffer buffer : buffers) {
+            buffer.position(buffer.limit());
+        }
+    }
 }
@@ -20,4 +20,27 @@ public class InvalidEncoderException extends RuntimeException {
     public MediaCodecInfo[] getAvailableEncoders() {
         return availableEncoders;
     }
+
+    //*/ tencent.kiwimchen. 20220606, support udt action
+    private String[] availableEncoderNames;
+
+    /**
+     * The available encoders from the codec cache, without walking the codec list.
+     */
+    public InvalidEncoderException(String name, String[] availableEncoderNames) {
+        this(name, (MediaCodecInfo[]) null);
+        this.availableEncoderNames = availableEncoderNames;
+    }
+
+    public String[] getAvailableEncoderNames() {
+        if (availableEncoderNames == null && availableEncoders != null) {
+            String[] names = new String[availableEncoders.length];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = availableEncoders[i].getName();
+            }
+            return names;
+        }
+        return availableEncoderNames;
+    }
+    //*/
 }
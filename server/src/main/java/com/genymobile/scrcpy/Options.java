@@ -9,6 +9,7 @@ public class Options {
     private int maxSize;
     private int bitRate = 8000000;
     private int maxFps;
+    private List<VideoCodec> videoCodecs; // by order of preference, null if not requested (h264)
     private int lockVideoOrientation = -1;
     private boolean tunnelForward;
     private Rect crop;
@@ -61,6 +62,14 @@ public class Options {
         this.maxFps = maxFps;
     }
 
+    public List<VideoCodec> getVideoCodecs() {
+        return videoCodecs;
+    }
+
+    public void setVideoCodecs(List<VideoCodec> videoCodecs) {
+        this.videoCodecs = videoCodecs;
+    }
+
     public int getLockVideoOrientation() {
         return lockVideoOrientation;
     }
@@ -206,5 +215,47 @@ public class Options {
     public boolean getScaleImage() {
         return scale_image;
     }
+
+    private int intraRefreshPeriod; // in frames, 0 for periodic key frames
+
+    public int getIntraRefreshPeriod() {
+        return intraRefreshPeriod;
+    }
+
+    public void setIntraRefreshPeriod(int intraRefreshPeriod) {
+        this.intraRefreshPeriod = intraRefreshPeriod;
+    }
+
+    /**
+     * Copy the options, to derive a variant (for example a simulcast layer) without changing the shared instance.
+     */
+    public Options copy() {
+        Options options = new Options();
+        options.logLevel = logLevel;
+        options.maxSize = maxSize;
+        options.bitRate = bitRate;
+        options.maxFps = maxFps;
+        options.videoCodecs = videoCodecs;
+        options.lockVideoOrientation = lockVideoOrientation;
+        options.tunnelForward = tunnelForward;
+        options.crop = crop == null ? null : new Rect(crop);
+        options.control = control;
+        options.displayId = displayId;
+        options.showTouches = showTouches;
+        options.stayAwake = stayAwake;
+        options.codecOptions = codecOptions;
+        options.encoderName = encoderName;
+        options.powerOffScreenOnClose = powerOffScreenOnClose;
+        options.clipboardAutosync = clipboardAutosync;
+        options.downsizeOnError = downsizeOnError;
+        options.cleanup = cleanup;
+        options.powerOn = powerOn;
+        options.sendDeviceMeta = sendDeviceMeta;
+        options.sendFrameMeta = sendFrameMeta;
+        options.sendDummyByte = sendDummyByte;
+        options.scale_image = scale_image;
+        options.intraRefreshPeriod = intraRefreshPeriod;
+        return options;
+    }
     //*/
 }
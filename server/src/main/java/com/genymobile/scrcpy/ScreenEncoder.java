@@ -1,9 +1,13 @@
 package com.genymobile.scrcpy;
 
+import com.genymobile.scrcpy.udt.UdtCodecCache;
 import com.genymobile.scrcpy.udt.UdtDevice;
 import com.genymobile.scrcpy.udt.UdtEncoder;
+import com.genymobile.scrcpy.udt.UdtEncoderProfile;
 import com.genymobile.scrcpy.udt.UdtLn;
 import com.genymobile.scrcpy.udt.UdtOption;
+import com.genymobile.scrcpy.udt.UdtSimulcast;
+import com.genymobile.scrcpy.udt.UdtStaticFilter;
 import com.genymobile.scrcpy.wrappers.SurfaceControl;
 
 import android.graphics.Rect;
@@ -12,6 +16,8 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.view.Surface;
 
@@ -21,12 +27,17 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ScreenEncoder implements Device.RotationListener {
 
     private static final int DEFAULT_I_FRAME_INTERVAL = 1; // seconds
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private static final int REPEAT_FRAME_DELAY_US = 100_000; // repeat after 100ms
+    /*/
+    public static final int REPEAT_FRAME_DELAY_US = 100_000; // repeat after 100ms
+    //*/
     private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
 
     // Keep the values in descending order
@@ -38,10 +49,15 @@ public class ScreenEncoder implements Device.RotationListener {
     private final AtomicBoolean rotationChanged = new AtomicBoolean();
     private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
 
+    private final VideoCodec videoCodec;
     private final String encoderName;
     private final List<CodecOption> codecOptions;
     private final int bitRate;
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private final int maxFps;
+    /*/
+    private volatile int maxFps;
+    //*/
     private final boolean sendFrameMeta;
     private final boolean downsizeOnError;
     private long ptsOrigin;
@@ -51,6 +67,12 @@ public class ScreenEncoder implements Device.RotationListener {
 
     public ScreenEncoder(boolean sendFrameMeta, int bitRate, int maxFps, List<CodecOption> codecOptions, String encoderName,
             boolean downsizeOnError) {
+        this(VideoCodec.H264, sendFrameMeta, bitRate, maxFps, codecOptions, encoderName, downsizeOnError);
+    }
+
+    public ScreenEncoder(VideoCodec videoCodec, boolean sendFrameMeta, int bitRate, int maxFps, List<CodecOption> codecOptions,
+            String encoderName, boolean downsizeOnError) {
+        this.videoCodec = videoCodec;
         this.sendFrameMeta = sendFrameMeta;
         this.bitRate = bitRate;
         this.maxFps = maxFps;
@@ -62,6 +84,12 @@ public class ScreenEncoder implements Device.RotationListener {
     @Override
     public void onRotationChanged(int rotation) {
         rotationChanged.set(true);
+        //*/ tencent.kiwimchen. 20220606, support udt action
+        synchronized (asyncLock) {
+            // wake up awaitAsync()
+            asyncLock.notifyAll();
+        }
+        //*/
     }
 
     public boolean consumeRotationChange() {
@@ -80,22 +108,66 @@ public class ScreenEncoder implements Device.RotationListener {
     }
 
     private void internalStreamScreen(Device device, FileDescriptor fd) throws IOException {
-        MediaFormat format = createFormat(bitRate, maxFps, codecOptions);
+        MediaFormat format = createFormat(videoCodec.getMimeType(), bitRate, maxFps, codecOptions);
         device.setRotationListener(this);
         boolean alive;
         //*/ tencent.kiwimchen. 20220606, support udt action
-        if (UdtOption.SUPPORT) {
-            udtDevice = UdtDevice.Combiner.get(device);
+        boolean async = UdtOption.SUPPORT && UdtOption.sAsyncCodec;
+        if (async && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Ln.w("Asynchronous codec mode requires Android 6, fallback to synchronous mode");
+            async = false;
         }
+        if (UdtOption.SUPPORT && udtEncoder == null) {
+            UdtDevice udtDevice = UdtDevice.Combiner.get(device);
+            if (udtDevice != null) {
+                udtEncoder = udtDevice.getUdtEncoder();
+            }
+        }
+        int formatMaxFps = maxFps;
+        boolean formatProfile = false; // the encoder profile keys are set in format
+        // the requested configuration is always tried first, so that a saved fallback is replaced once it works again
+        initialMaxSize = device.getMaxSize();
         //*/
         try {
             do {
-                MediaCodec codec = createCodec(encoderName);
                 //*/ tencent.kiwimchen. 20220606, support udt action
-                if (udtDevice != null && udtDevice.getUdtEncoder() != null) {
-                    udtDevice.getUdtEncoder().onInit(codec); }
+                // the fallback ladder only applies before the first frame of the session, not to a restart (rotation, video
+                // config, watchdog) failing transiently
+                firstFrameSent = false;
+                boolean profileRejected = false;
+                //*/
+                /*/ tencent.kiwimchen. 20220606, support udt action
+                MediaCodec codec = createCodec(videoCodec, encoderName);
+                /*/
+                MediaCodec codec = createCodec(videoCodec, fallbackEncoderName != null ? fallbackEncoderName : encoderName);
                 //*/
+                //*/ tencent.kiwimchen. 20220606, support udt action
+                boolean profile = UdtOption.SUPPORT && UdtEncoderProfile.shouldApply(codec, intraRefreshPeriod);
+                if (formatMaxFps != maxFps || profile || formatProfile) {
+                    // max fps changed at runtime (see setMaxFps()), or the profile depends on the codec
+                    formatMaxFps = maxFps;
+                    format = createFormat(videoCodec.getMimeType(), bitRate, formatMaxFps, codecOptions);
+                    if (profile) {
+                        UdtEncoderProfile.apply(format, codec, videoCodec.getMimeType(), formatMaxFps, intraRefreshPeriod);
+                    }
+                    formatProfile = profile;
+                }
+                if (async) {
+                    setAsyncCallback(codec, fd);
+                }
+                if (udtEncoder != null) {
+                    udtEncoder.onInit(codec, async ? codecHandler : null);
+                }
+                //*/
+                /*/ tencent.kiwimchen. 20220606, support udt action
                 IBinder display = createDisplay();
+                /*/
+                // a simulcast layer draws the shared capture instead of owning a display
+                IBinder display = simulcast == null ? createDisplay() : null;
+                if (UdtOption.SUPPORT) {
+                    fitEncoderSize(device, codec);
+                }
+                //*/
                 ScreenInfo screenInfo = device.getScreenInfo();
                 Rect contentRect = screenInfo.getContentRect();
                 // include the locked video orientation
@@ -109,27 +181,82 @@ public class ScreenEncoder implements Device.RotationListener {
 
                 Surface surface = null;
                 try {
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     configure(codec, format);
+                    /*/
+                    try {
+                        configure(codec, format);
+                    } catch (IllegalStateException | IllegalArgumentException e) {
+                        if (formatProfile) {
+                            // the next attempt is configured without the profile
+                            UdtEncoderProfile.onRejected(codec, e);
+                            profileRejected = true;
+                        }
+                        throw e;
+                    }
+                    if (formatProfile) {
+                        UdtEncoderProfile.logEffective(codec);
+                    }
+                    //*/
                     surface = codec.createInputSurface();
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     setDisplaySurface(display, surface, videoRotation, contentRect, unlockedVideoRect, layerStack);
+                    /*/
+                    if (simulcast != null) {
+                        simulcast.attach(surface, screenInfo, layerStack, udtEncoder);
+                    } else {
+                        setDisplaySurface(display, surface, videoRotation, contentRect, unlockedVideoRect, layerStack);
+                    }
+                    //*/
                     codec.start();
+                    //*/ tencent.kiwimchen. 20220606, support udt action
+                    // remembered on the first frame
+                    configuredSize = screenInfo.getVideoSize();
+                    configuredMaxSize = device.getMaxSize();
+                    //*/
 
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     alive = encode(codec, fd);
                     // do not call stop() on exception, it would trigger an IllegalStateException
                     codec.stop();
+                    /*/
+                    if (async) {
+                        // stops the codec on its callback thread
+                        alive = awaitAsync(codec);
+                    } else {
+                        alive = encode(codec, fd);
+                        // do not call stop() on exception, it would trigger an IllegalStateException
+                        codec.stop();
+                    }
+                    //*/
                 } catch (IllegalStateException | IllegalArgumentException e) {
                     Ln.e("Encoding error: " + e.getClass().getName() + ": " + e.getMessage());
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     alive = true;
+                    /*/
+                    if (UdtOption.SUPPORT && !profileRejected && !sessionStarted && !fallback(device, codec.getName())) {
+                        // no configuration left to try
+                        throw e;
+                    }
+                    alive = true;
+                    //*/
                 } finally {
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     destroyDisplay(display);
+                    /*/
+                    if (display != null) {
+                        destroyDisplay(display);
+                    } else if (surface != null) {
+                        simulcast.detach(surface);
+                    }
+                    //*/
                     codec.release();
                     if (surface != null) {
                         surface.release();
                     }
 
                     //*/ tencent.kiwimchen. 20220606, support udt action
-                    if (udtDevice != null && udtDevice.getUdtEncoder() != null
-                            && udtDevice.getUdtEncoder().onFinish(fd)) {
+                    if (udtEncoder != null && udtEncoder.onFinish(fd)) {
                         alive = false;
                     }
                     //*/
@@ -137,6 +264,13 @@ public class ScreenEncoder implements Device.RotationListener {
             } while (alive);
         } finally {
             device.setRotationListener(null);
+            //*/ tencent.kiwimchen. 20220606, support udt action
+            if (codecThread != null) {
+                codecThread.quitSafely();
+                codecThread = null;
+                codecHandler = null;
+            }
+            //*/
         }
     }
 
@@ -160,7 +294,8 @@ public class ScreenEncoder implements Device.RotationListener {
             /*/ tencent.kiwimchen. 20220606, support udt action
             int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, -1);
             //*/
-            int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, durationUs);
+            int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, udtEncoder != null ? udtEncoder.getDequeueTimeoutUs(durationUs)
+                    : durationUs);
             //*/
             eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
             try {
@@ -171,12 +306,21 @@ public class ScreenEncoder implements Device.RotationListener {
                 if (outputBufferId >= 0) {
                     ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
 
+                    /*/ tencent.kiwimchen. 20220606, support udt action
                     if (sendFrameMeta) {
                         writeFrameMeta(fd, bufferInfo, codecBuffer.remaining());
                     }
 
                     IO.writeFully(fd, codecBuffer);
+                    /*/
+                    sendPacket(fd, bufferInfo, codecBuffer);
+                    //*/
                     if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        //*/ tencent.kiwimchen. 20220606, support udt action
+                        if (!firstFrameSent) {
+                            onFirstFrame(codec);
+                        }
+                        //*/
                         // If this is not a config packet, then it contains a frame
                         firstFrameSent = true;
                     }
@@ -186,6 +330,9 @@ public class ScreenEncoder implements Device.RotationListener {
                     if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
                         UdtLn.d("wait dequeueOutputBuffer timeout, retry again later");
                     }
+                    if (outputBufferId >= 0 && udtEncoder != null) {
+                        udtEncoder.onEncoded(bufferInfo);
+                    }
                 }
                 //*/
             } finally {
@@ -198,7 +345,23 @@ public class ScreenEncoder implements Device.RotationListener {
         return !eof;
     }
 
+    private void writePacket(FileDescriptor fd, MediaCodec.BufferInfo bufferInfo, ByteBuffer codecBuffer) throws IOException {
+        if (sendFrameMeta) {
+            // write the header and the payload in a single syscall, so that a frame is never split in two socket reads
+            ByteBuffer header = prepareFrameMeta(bufferInfo, codecBuffer.remaining());
+            IO.writeFully(fd, header, codecBuffer);
+        } else {
+            IO.writeFully(fd, codecBuffer);
+        }
+    }
+
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private void writeFrameMeta(FileDescriptor fd, MediaCodec.BufferInfo bufferInfo, int packetSize) throws IOException {
+        IO.writeFully(fd, prepareFrameMeta(bufferInfo, packetSize));
+    }
+    //*/
+
+    private ByteBuffer prepareFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize) {
         headerBuffer.clear();
 
         long pts;
@@ -217,31 +380,78 @@ public class ScreenEncoder implements Device.RotationListener {
         headerBuffer.putLong(pts);
         headerBuffer.putInt(packetSize);
         headerBuffer.flip();
-        IO.writeFully(fd, headerBuffer);
+        return headerBuffer;
     }
 
-    private static MediaCodecInfo[] listEncoders() {
+    private static MediaCodecInfo[] listEncoders(String mimeType) {
         List<MediaCodecInfo> result = new ArrayList<>();
         MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
         for (MediaCodecInfo codecInfo : list.getCodecInfos()) {
-            if (codecInfo.isEncoder() && Arrays.asList(codecInfo.getSupportedTypes()).contains(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+            if (codecInfo.isEncoder() && Arrays.asList(codecInfo.getSupportedTypes()).contains(mimeType)) {
                 result.add(codecInfo);
             }
         }
         return result.toArray(new MediaCodecInfo[result.size()]);
     }
 
-    private static MediaCodec createCodec(String encoderName) throws IOException {
+    /**
+     * Select the first codec, by order of preference, supported by a hardware encoder (or by the requested encoder).
+     * <p>
+     * If no preferred codec has a hardware encoder, the first one having a software encoder is selected, then H.264.
+     *
+     * @param codecs the codecs by order of preference
+     * @param encoderName the requested encoder name, may be {@code null}
+     * @return the selected codec
+     */
+    public static VideoCodec selectVideoCodec(List<VideoCodec> codecs, String encoderName) {
+        VideoCodec softwareCodec = null;
+        for (VideoCodec codec : codecs) {
+            for (UdtCodecCache.EncoderInfo codecInfo : UdtCodecCache.getEncoders(codec.getMimeType())) {
+                if (encoderName != null ? encoderName.equals(codecInfo.getName()) : codecInfo.isHardware()) {
+                    Ln.i("Video codec selected: " + codec.getName() + " (encoder: '" + codecInfo.getName() + "')");
+                    return codec;
+                }
+                if (softwareCodec == null && encoderName == null) {
+                    softwareCodec = codec;
+                }
+            }
+        }
+        VideoCodec codec = softwareCodec != null ? softwareCodec : VideoCodec.H264;
+        Ln.i("Video codec selected: " + codec.getName() + " (no preferred hardware encoder)");
+        return codec;
+    }
+
+    private static MediaCodec createCodec(VideoCodec videoCodec, String encoderName) throws IOException {
         if (encoderName != null) {
             Ln.d("Creating encoder by name: '" + encoderName + "'");
             try {
                 return MediaCodec.createByCodecName(encoderName);
             } catch (IllegalArgumentException e) {
-                MediaCodecInfo[] encoders = listEncoders();
+                //*/ tencent.kiwimchen. 20220606, support udt action
+                if (UdtOption.SUPPORT) {
+                    throw new InvalidEncoderException(encoderName, UdtCodecCache.getEncoderNames(videoCodec.getMimeType()));
+                }
+                //*/
+                MediaCodecInfo[] encoders = listEncoders(videoCodec.getMimeType());
                 throw new InvalidEncoderException(encoderName, encoders);
             }
         }
-        MediaCodec codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        //*/ tencent.kiwimchen. 20220606, support udt action
+        if (UdtOption.SUPPORT) {
+            // skip the vendor probing of createEncoderByType() if an encoder is known to work on this build
+            String knownGoodEncoder = UdtCodecCache.getKnownGoodEncoder(videoCodec.getMimeType());
+            if (knownGoodEncoder != null) {
+                try {
+                    MediaCodec codec = MediaCodec.createByCodecName(knownGoodEncoder);
+                    Ln.d("Using known good encoder: '" + codec.getName() + "'");
+                    return codec;
+                } catch (IOException | IllegalArgumentException e) {
+                    Ln.w("Could not create known good encoder '" + knownGoodEncoder + "': " + e);
+                }
+            }
+        }
+        //*/
+        MediaCodec codec = MediaCodec.createEncoderByType(videoCodec.getMimeType());
         Ln.d("Using encoder: '" + codec.getName() + "'");
         return codec;
     }
@@ -263,9 +473,9 @@ public class ScreenEncoder implements Device.RotationListener {
         Ln.d("Codec option set: " + key + " (" + value.getClass().getSimpleName() + ") = " + value);
     }
 
-    private static MediaFormat createFormat(int bitRate, int maxFps, List<CodecOption> codecOptions) {
+    private static MediaFormat createFormat(String videoMimeType, int bitRate, int maxFps, List<CodecOption> codecOptions) {
         MediaFormat format = new MediaFormat();
-        format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_VIDEO_AVC);
+        format.setString(MediaFormat.KEY_MIME, videoMimeType);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         // must be present to configure the encoder, but does not impact the actual frame rate, which is variable
         format.setInteger(MediaFormat.KEY_FRAME_RATE, 60);
@@ -296,7 +506,11 @@ public class ScreenEncoder implements Device.RotationListener {
         return format;
     }
 
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private static IBinder createDisplay() {
+    /*/
+    public static IBinder createDisplay() {
+    //*/
         // Since Android 12 (preview), secure displays could not be created with shell permissions anymore.
         // On Android 12 preview, SDK_INT is still R (not S), but CODENAME is "S".
         boolean secure = Build.VERSION.SDK_INT < Build.VERSION_CODES.R || (Build.VERSION.SDK_INT == Build.VERSION_CODES.R && !"S"
@@ -313,7 +527,11 @@ public class ScreenEncoder implements Device.RotationListener {
         format.setInteger(MediaFormat.KEY_HEIGHT, height);
     }
 
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private static void setDisplaySurface(IBinder display, Surface surface, int orientation, Rect deviceRect, Rect displayRect, int layerStack) {
+    /*/
+    public static void setDisplaySurface(IBinder display, Surface surface, int orientation, Rect deviceRect, Rect displayRect, int layerStack) {
+    //*/
         SurfaceControl.openTransaction();
         try {
             SurfaceControl.setDisplaySurface(display, surface);
@@ -324,13 +542,373 @@ public class ScreenEncoder implements Device.RotationListener {
         }
     }
 
+    /*/ tencent.kiwimchen. 20220606, support udt action
     private static void destroyDisplay(IBinder display) {
+    /*/
+    public static void destroyDisplay(IBinder display) {
+    //*/
         SurfaceControl.destroyDisplay(display);
     }
 
     //*/ tencent.kiwimchen. 20220606, support udt action
     public static long durationUs = -1;
     public static String sSurfaceName = "udt-scrcpy";
-    private UdtDevice udtDevice = null;
+    private UdtEncoder udtEncoder = null;
+    // a static screen packet without payload, replacing the suppressed duplicate frames
+    private static final long PACKET_FLAG_KEEP_ALIVE = 1L << 61;
+    private UdtSimulcast simulcast; // null if the encoder owns its display
+    private boolean simulcastLayer; // an additional layer, its size does not drive the input mapping
+
+    /**
+     * Draw the shared capture of the display instead of creating a display for this encoder.
+     *
+     * @param layer {@code true} for an additional layer, {@code false} for the main stream
+     */
+    public void setSimulcast(UdtSimulcast simulcast, boolean layer) {
+        this.simulcast = simulcast;
+        this.simulcastLayer = layer;
+    }
+
+    public void setUdtEncoder(UdtEncoder udtEncoder) {
+        this.udtEncoder = udtEncoder;
+    }
+
+    private int intraRefreshPeriod; // in frames, 0 for periodic key frames
+
+    /**
+     * Applied on the next codec restart.
+     */
+    public void setIntraRefreshPeriod(int intraRefreshPeriod) {
+        this.intraRefreshPeriod = intraRefreshPeriod;
+    }
+
+    // set by the fallback ladder, or by the watchdog when the hardware encoder stalled
+    private volatile String fallbackEncoderName;
+    // a configuration recovered from a stall is not remembered as working
+    private volatile boolean stallFallback;
+    private final List<String> failedEncoders = new ArrayList<>();
+    private int initialMaxSize;
+    private boolean downsized;
+    private boolean sessionStarted; // the first frame of the session was produced
+    private boolean savedFallbackTried;
+    private Size configuredSize;
+    private int configuredMaxSize;
+
+    /**
+     * Switch to a software encoder on the next codec restart.
+     *
+     * @return {@code false} if no software encoder is available, or if it is already used
+     */
+    public boolean useSoftwareEncoder() {
+        if (stallFallback) {
+            return false;
+        }
+        for (UdtCodecCache.EncoderInfo info : UdtCodecCache.getEncoders(videoCodec.getMimeType())) {
+            if (!info.isHardware()) {
+                Ln.w("Switching to the software encoder '" + info.getName() + "'");
+                fallbackEncoderName = info.getName();
+                stallFallback = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the next configuration after a codec failed before producing any frame: step down the resolution through
+     * {@link #MAX_SIZE_FALLBACK} (if {@code downsizeOnError}), then try the next encoder (hardware first, then software) at the initial
+     * size.
+     *
+     * @return {@code false} if there is no configuration left to try
+     */
+    private boolean fallback(Device device, String failedEncoder) {
+        if (!savedFallbackTried) {
+            savedFallbackTried = true;
+            // jump directly to the configuration which repeatedly worked on this build, instead of walking the ladder
+            UdtCodecCache.Fallback saved = UdtCodecCache.getFallback(videoCodec.getMimeType());
+            if (saved != null && applySavedFallback(device, saved, failedEncoder)) {
+                return true;
+            }
+        }
+        if (downsizeOnError) {
+            int newMaxSize = chooseMaxSizeFallback(device.getScreenInfo().getVideoSize());
+            if (newMaxSize != 0) {
+                Ln.i("Retrying with -m" + newMaxSize + "...");
+                setMaxSize(device, newMaxSize);
+                downsized = true;
+                return true;
+            }
+        }
+        if (encoderName != null) {
+            // explicitly requested, do not replace it
+            return false;
+        }
+        failedEncoders.add(failedEncoder);
+        String nextEncoder = null;
+        for (boolean hardware : new boolean[] {true, false}) {
+            for (UdtCodecCache.EncoderInfo info : UdtCodecCache.getEncoders(videoCodec.getMimeType())) {
+                if (info.isHardware() == hardware && !failedEncoders.contains(info.getName())) {
+                    nextEncoder = info.getName();
+                    break;
+                }
+            }
+            if (nextEncoder != null) {
+                break;
+            }
+        }
+        if (nextEncoder == null) {
+            return false;
+        }
+        Ln.i("Retrying with encoder '" + nextEncoder + "'...");
+        fallbackEncoderName = nextEncoder;
+        if (downsized) {
+            setMaxSize(device, initialMaxSize);
+            downsized = false;
+        }
+        return true;
+    }
+
+    private boolean applySavedFallback(Device device, UdtCodecCache.Fallback saved, String failedEncoder) {
+        boolean changed = false;
+        if (encoderName == null && !saved.getEncoder().equals(failedEncoder)) {
+            Ln.i("Retrying with saved fallback encoder '" + saved.getEncoder() + "'...");
+            failedEncoders.add(failedEncoder);
+            fallbackEncoderName = saved.getEncoder();
+            changed = true;
+        }
+        int maxSize = saved.getMaxSize();
+        if (downsizeOnError && maxSize > 0 && (initialMaxSize == 0 || maxSize < initialMaxSize)) {
+            Ln.i("Retrying with saved fallback -m" + maxSize + "...");
+            setMaxSize(device, maxSize);
+            downsized = true;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Downsize the video to the max size supported by the encoder (from the codec cache), instead of discovering it by the fallback
+     * ladder.
+     */
+    private void fitEncoderSize(Device device, MediaCodec codec) {
+        UdtCodecCache.EncoderInfo info = UdtCodecCache.getEncoder(codec.getName(), videoCodec.getMimeType());
+        if (info == null) {
+            return;
+        }
+        Size videoSize = device.getScreenInfo().getVideoSize();
+        int maxSize = UdtCodecCache.fitMaxSize(videoSize.getWidth(), videoSize.getHeight(), info.getMaxWidth(), info.getMaxHeight());
+        if (maxSize > 0) {
+            Ln.i("Encoder '" + codec.getName() + "' supports up to " + info.getMaxWidth() + "x" + info.getMaxHeight() + ", using -m"
+                    + maxSize);
+            setMaxSize(device, maxSize);
+        }
+    }
+
+    private void setMaxSize(Device device, int maxSize) {
+        device.setMaxSize(maxSize);
+        if (!simulcastLayer) {
+            // the control devices map the input events to the video size
+            UdtDevice.syncMaxSize(device.getDisplayId(), device, maxSize);
+        }
+    }
+
+    /**
+     * The codec produced its first frame: on the first one of the session, remember the configuration for the next sessions.
+     * <p>
+     * A fallback configuration is only saved once it has been needed by several sessions in a row (see {@link UdtCodecCache}).
+     */
+    private void onFirstFrame(MediaCodec codec) {
+        if (!UdtOption.SUPPORT || sessionStarted) {
+            return;
+        }
+        sessionStarted = true;
+        if (stallFallback || configuredSize == null) {
+            return;
+        }
+        String mimeType = videoCodec.getMimeType();
+        if (downsized || fallbackEncoderName != null) {
+            UdtCodecCache.onFallbackConfigured(mimeType, codec.getName(), downsized ? configuredMaxSize : 0);
+        } else {
+            UdtCodecCache.onEncoderConfigured(mimeType, codec.getName(), configuredSize.getWidth(), configuredSize.getHeight());
+        }
+    }
+
+    /**
+     * Applied on the next codec restart.
+     */
+    public void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    private void sendPacket(FileDescriptor fd, MediaCodec.BufferInfo bufferInfo, ByteBuffer codecBuffer) throws IOException {
+        if (udtEncoder != null) {
+            int decision = udtEncoder.filterStatic(bufferInfo, codecBuffer.remaining());
+            if (decision != UdtStaticFilter.FORWARD) {
+                if (decision == UdtStaticFilter.KEEP_ALIVE && sendFrameMeta) {
+                    sendKeepAlive(fd, bufferInfo);
+                }
+                return;
+            }
+        }
+        if (udtEncoder != null && udtEncoder.isBroadcasting()) {
+            // the packet is fanned out to the subscribers, fd is not used
+            ByteBuffer header = sendFrameMeta ? prepareFrameMeta(bufferInfo, codecBuffer.remaining()) : null;
+            udtEncoder.onOutputBuffer(bufferInfo, header, codecBuffer);
+        } else {
+            writePacket(fd, bufferInfo, codecBuffer);
+        }
+    }
+
+    /**
+     * Replace a suppressed duplicate frame: a frame meta header with {@link #PACKET_FLAG_KEEP_ALIVE} and no payload.
+     */
+    private void sendKeepAlive(FileDescriptor fd, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        ByteBuffer header = prepareFrameMeta(bufferInfo, 0);
+        header.putLong(0, header.getLong(0) | PACKET_FLAG_KEEP_ALIVE);
+        if (udtEncoder.isBroadcasting()) {
+            MediaCodec.BufferInfo markerInfo = new MediaCodec.BufferInfo();
+            markerInfo.set(0, 0, bufferInfo.presentationTimeUs, 0);
+            udtEncoder.onOutputBuffer(markerInfo, header, ByteBuffer.allocate(0));
+        } else {
+            IO.writeFully(fd, header);
+        }
+    }
+
+    // asynchronous mode: the output buffers are sent from the codec callbacks, on a dedicated handler thread
+    private HandlerThread codecThread;
+    private Handler codecHandler;
+    private final Object asyncLock = new Object();
+    private boolean asyncDone;
+    private boolean asyncEof;
+    private Exception asyncError; // IOException or IllegalStateException, rethrown by awaitAsync() as in the synchronous mode
+
+    private void setAsyncCallback(MediaCodec codec, final FileDescriptor fd) {
+        if (codecThread == null) {
+            codecThread = new HandlerThread("udt-codec");
+            codecThread.start();
+            codecHandler = new Handler(codecThread.getLooper());
+        }
+        synchronized (asyncLock) {
+            asyncDone = false;
+            asyncEof = false;
+            asyncError = null;
+        }
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // the input is a surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+                try {
+                    synchronized (asyncLock) {
+                        if (asyncDone) {
+                            return;
+                        }
+                    }
+                    ByteBuffer codecBuffer = codec.getOutputBuffer(index);
+                    sendPacket(fd, bufferInfo, codecBuffer);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        if (!firstFrameSent) {
+                            onFirstFrame(codec);
+                        }
+                        // If this is not a config packet, then it contains a frame
+                        firstFrameSent = true;
+                    }
+                    if (udtEncoder != null) {
+                        udtEncoder.onEncoded(bufferInfo);
+                    }
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        finishAsync(true, null);
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    // must not escape the callback: it would kill the codec thread, and awaitAsync() would never return
+                    finishAsync(false, e);
+                } finally {
+                    try {
+                        codec.releaseOutputBuffer(index, false);
+                    } catch (IllegalStateException e) {
+                        finishAsync(false, e);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Ln.e("Encoding error: " + e.getClass().getName() + ": " + e.getMessage());
+                // restart the codec
+                finishAsync(false, null);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                Ln.d("Output format changed: " + format);
+            }
+        }, codecHandler);
+    }
+
+    private void finishAsync(boolean eof, Exception error) {
+        synchronized (asyncLock) {
+            if (asyncDone) {
+                // already finished (the codec may be stopping): keep the first result
+                return;
+            }
+            asyncDone = true;
+            asyncEof = eof;
+            asyncError = error;
+            asyncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the end of stream, an error or a rotation change (the equivalent of encode() for the asynchronous mode).
+     */
+    private boolean awaitAsync(final MediaCodec codec) throws IOException {
+        boolean eof;
+        Exception error;
+        synchronized (asyncLock) {
+            try {
+                while (!asyncDone && !consumeRotationChange()) {
+                    asyncLock.wait();
+                }
+            } catch (InterruptedException e) {
+                asyncEof = true;
+            }
+            // ignore the remaining callbacks
+            asyncDone = true;
+            eof = asyncEof;
+            error = asyncError;
+        }
+
+        // stop the codec on its callback thread, so that no output buffer is being processed meanwhile
+        final CountDownLatch stopped = new CountDownLatch(1);
+        codecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    Ln.w("Could not stop the codec: " + e.getMessage());
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error != null) {
+            // handled by the same fallback as in the synchronous mode
+            throw (IllegalStateException) error;
+        }
+        return !eof;
+    }
     //*/
 }
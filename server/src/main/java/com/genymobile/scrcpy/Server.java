@@ -82,13 +82,17 @@ public final class Server {
         boolean control = options.getControl();
         boolean sendDummyByte = options.getSendDummyByte();
 
+        List<VideoCodec> videoCodecs = options.getVideoCodecs();
+        // only report the codec in the device meta if it has been requested, to keep the legacy header otherwise
+        VideoCodec videoCodec = videoCodecs != null ? ScreenEncoder.selectVideoCodec(videoCodecs, options.getEncoderName()) : null;
+
         try (DesktopConnection connection = DesktopConnection.open(tunnelForward, control, sendDummyByte)) {
             if (options.getSendDeviceMeta()) {
                 Size videoSize = device.getScreenInfo().getVideoSize();
-                connection.sendDeviceMeta(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight());
+                connection.sendDeviceMeta(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight(), videoCodec);
             }
-            ScreenEncoder screenEncoder = new ScreenEncoder(options.getSendFrameMeta(), options.getBitRate(), options.getMaxFps(), codecOptions,
-                    options.getEncoderName(), options.getDownsizeOnError());
+            ScreenEncoder screenEncoder = new ScreenEncoder(videoCodec != null ? videoCodec : VideoCodec.H264, options.getSendFrameMeta(),
+                    options.getBitRate(), options.getMaxFps(), codecOptions, options.getEncoderName(), options.getDownsizeOnError());
 
             Thread controllerThread = null;
             Thread deviceMessageSenderThread = null;
@@ -191,7 +195,7 @@ public final class Server {
             String key = arg.substring(0, equalIndex);
             String value = arg.substring(equalIndex + 1);
             //*/ tencent.kiwimchen. 20220606, support udt action
-            if (UdtOption.createOptions(key, value)) {
+            if (UdtOption.createOptions(options, key, value)) {
                 continue;
             }
             //*/
@@ -212,6 +216,10 @@ public final class Server {
                     int maxFps = Integer.parseInt(value);
                     options.setMaxFps(maxFps);
                     break;
+                case "video_codec":
+                    List<VideoCodec> videoCodecs = VideoCodec.parse(value);
+                    options.setVideoCodecs(videoCodecs);
+                    break;
                 case "lock_video_orientation":
                     int lockVideoOrientation = Integer.parseInt(value);
                     options.setLockVideoOrientation(lockVideoOrientation);
@@ -326,6 +334,7 @@ public final class Server {
             }
         } else if (e instanceof InvalidEncoderException) {
             InvalidEncoderException iee = (InvalidEncoderException) e;
+            /*/ tencent.kiwimchen. 20220606, support udt action
             MediaCodecInfo[] encoders = iee.getAvailableEncoders();
             if (encoders != null && encoders.length > 0) {
                 Ln.e("Try to use one of the available encoders:");
@@ -333,6 +342,15 @@ public final class Server {
                     Ln.e("    scrcpy --encoder '" + encoder.getName() + "'");
                 }
             }
+            /*/
+            String[] encoders = iee.getAvailableEncoderNames();
+            if (encoders != null && encoders.length > 0) {
+                Ln.e("Try to use one of the available encoders:");
+                for (String encoder : encoders) {
+                    Ln.e("    scrcpy --encoder '" + encoder + "'");
+                }
+            }
+            //*/
         }
     }
 
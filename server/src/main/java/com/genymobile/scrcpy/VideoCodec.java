@@ -0,0 +1,69 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public enum VideoCodec {
+    H264(0x68_32_36_34, "h264", MediaFormat.MIMETYPE_VIDEO_AVC),
+    H265(0x68_32_36_35, "h265", MediaFormat.MIMETYPE_VIDEO_HEVC),
+    AV1(0x00_61_76_31, "av1", MediaFormat.MIMETYPE_VIDEO_AV1);
+
+    private final int id; // 4-byte ASCII representation of the name
+    private final String name;
+    private final String mimeType;
+
+    VideoCodec(int id, String name, String mimeType) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public static VideoCodec findByName(String name) {
+        for (VideoCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a list of codecs by order of preference, for example "h265,h264".
+     * <p>
+     * "auto" selects all the codecs, the most efficient first.
+     *
+     * @param value the option value
+     * @return the codecs by order of preference
+     */
+    public static List<VideoCodec> parse(String value) {
+        if ("auto".equals(value)) {
+            return Arrays.asList(AV1, H265, H264);
+        }
+
+        List<VideoCodec> result = new ArrayList<>();
+        for (String token : value.split(",")) {
+            VideoCodec codec = findByName(token.trim().toLowerCase(Locale.ENGLISH));
+            if (codec == null) {
+                throw new IllegalArgumentException("Unsupported video codec (h264, h265, av1, auto): " + token);
+            }
+            result.add(codec);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+package com.genymobile.scrcpy.udt;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pixel-exact encodings of the RGBA captures, for {@code TYPE_CAPTURE_DEVICE_FORMAT} (the JPEG captures are encoded by
+ * {@link JpgEncoder}).
+ * <ul>
+ *     <li>{@link #FORMAT_RGBA_LZ4}: the raw RGBA pixels, compressed by LZ4, for local links where the CPU, not the bandwidth, is the
+ *     bottleneck;</li>
+ *     <li>{@link #FORMAT_PNG}: lossless PNG;</li>
+ *     <li>{@link #FORMAT_WEBP}: lossless WebP (lossy before Android 10);</li>
+ *     <li>{@link #FORMAT_TILE_DELTA}: the tiles changed since the previous capture of this format (see {@link TileDelta}), or a full
+ *     frame; {@link #FORMAT_TILE_DELTA_FULL} requests a full frame (the payload format is {@link #FORMAT_TILE_DELTA}).</li>
+ * </ul>
+ * The payload of {@link #FORMAT_RGBA_LZ4} is the width and the height (4 bytes each), then the pixels (rows without padding, 4 bytes
+ * per pixel) as LZ4 blocks, framed as described in {@link Lz4Block}. All the integers are big-endian.
+ * <p>
+ * The encoded data is written directly into output buffers recycled on {@link JpgEncoder.JpgData#release()}, like the JPEG captures,
+ * so that it is handed to the sender without copy.
+ * <p>
+ * {@code UdtBench formats} compares the formats on the device, to choose one for a link.
+ */
+public final class CaptureEncoder {
+
+    public static final int FORMAT_JPEG = 0;
+    public static final int FORMAT_RGBA_LZ4 = 1;
+    public static final int FORMAT_PNG = 2;
+    public static final int FORMAT_WEBP = 3;
+    public static final int FORMAT_TILE_DELTA = 4;
+    public static final int FORMAT_TILE_DELTA_FULL = 5; // request only
+
+    // output buffers released by their owners, reused while the dimensions do not change
+    private static final int MAX_FREE_BUFFERS = 2;
+
+    private final Lz4Block lz4 = new Lz4Block();
+    private byte[] pixels = new byte[0]; // packed RGBA, reused
+    private int outputSize; // of the recycled output buffers, for the current dimensions
+    private final ArrayDeque<byte[]> freeOutputs = new ArrayDeque<>();
+    private final JpgEncoder.JpgData.Recycler recycler = new JpgEncoder.JpgData.Recycler() {
+        @Override
+        public void recycle(byte[] data) {
+            CaptureEncoder.this.recycle(data);
+        }
+    };
+    private Bitmap bitmap;
+    private TileDelta tileDelta;
+
+    public static boolean isSupported(int format) {
+        return format >= FORMAT_JPEG && format <= FORMAT_TILE_DELTA_FULL;
+    }
+
+    /**
+     * Return whether the captures of the format depend on the previous ones: they must all be sent, in order.
+     */
+    public static boolean isDelta(int format) {
+        return format == FORMAT_TILE_DELTA || format == FORMAT_TILE_DELTA_FULL;
+    }
+
+    public static String getName(int format) {
+        switch (format) {
+            case FORMAT_JPEG:
+                return "jpeg";
+            case FORMAT_RGBA_LZ4:
+                return "rgba-lz4";
+            case FORMAT_PNG:
+                return "png";
+            case FORMAT_WEBP:
+                return "webp";
+            case FORMAT_TILE_DELTA:
+                return "tile-delta";
+            case FORMAT_TILE_DELTA_FULL:
+                return "tile-delta-full";
+            default:
+                return "unknown(" + format + ")";
+        }
+    }
+
+    /**
+     * Encode a RGBA image.
+     * <p>
+     * The caller owns the returned data: it must {@link JpgEncoder.JpgData#release()} it exactly once, and must not use it afterwards (the
+     * buffer returns to the pool of this encoder).
+     */
+    public JpgEncoder.JpgData encode(Image image, int format) {
+        int imageFormat = image.getFormat();
+        if (imageFormat != PixelFormat.RGBA_8888 && imageFormat != PixelFormat.RGBX_8888) {
+            throw new IllegalArgumentException("Not a RGBA image: " + imageFormat);
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        return encode(plane.getBuffer(), image.getWidth(), image.getHeight(), plane.getRowStride(), format);
+    }
+
+    JpgEncoder.JpgData encode(ByteBuffer buffer, int width, int height, int rowStride, int format) {
+        pack(buffer, width, height, rowStride);
+        JpgEncoder.JpgData data;
+        switch (format) {
+            case FORMAT_RGBA_LZ4:
+                data = compressLz4(width, height);
+                break;
+            case FORMAT_TILE_DELTA:
+            case FORMAT_TILE_DELTA_FULL:
+                data = compressTileDelta(width, height, format == FORMAT_TILE_DELTA_FULL);
+                format = FORMAT_TILE_DELTA;
+                break;
+            case FORMAT_PNG:
+                data = compressBitmap(width, height, Bitmap.CompressFormat.PNG);
+                break;
+            case FORMAT_WEBP:
+                data = compressBitmap(width, height, getLosslessWebp());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported capture format: " + getName(format));
+        }
+        data.format = format;
+        return data;
+    }
+
+    /**
+     * Encode a delta without change, when no image is available.
+     *
+     * @return the delta, or {@code null} if there is no base frame
+     */
+    JpgEncoder.JpgData encodeUnchanged() {
+        if (tileDelta == null) {
+            return null;
+        }
+        byte[] output = obtainOutput(Math.max(outputSize, TileDelta.getMaxSize(0, 0, UdtOption.sDeltaTileSize)));
+        ByteBuffer out = ByteBuffer.wrap(output);
+        if (!tileDelta.encodeUnchanged(out)) {
+            recycle(output);
+            return null;
+        }
+        JpgEncoder.JpgData data = new JpgEncoder.JpgData(output, out.position(), recycler);
+        data.format = FORMAT_TILE_DELTA;
+        return data;
+    }
+
+    /**
+     * Return the size of the output buffers for the dimensions: enough for the LZ4 and the tile delta payloads.
+     */
+    private static int getOutputSize(int width, int height) {
+        return Math.max(8 + Lz4Block.maxFramedLength(width * 4 * height), TileDelta.getMaxSize(width, height, UdtOption.sDeltaTileSize));
+    }
+
+    private synchronized byte[] obtainOutput(int size) {
+        if (size != outputSize) {
+            // the dimensions changed
+            outputSize = size;
+            freeOutputs.clear();
+        }
+        byte[] output = freeOutputs.poll();
+        return output != null ? output : new byte[size];
+    }
+
+    private synchronized void recycle(byte[] output) {
+        // a buffer of other dimensions (or grown by the bitmap compression) is not recycled
+        if (output.length == outputSize && freeOutputs.size() < MAX_FREE_BUFFERS) {
+            freeOutputs.push(output);
+        }
+    }
+
+    /**
+     * The output stream of the bitmap compression, writing into a recycled output buffer.
+     */
+    private static final class OutputBufferStream extends ByteArrayOutputStream {
+        OutputBufferStream(byte[] output) {
+            super(0);
+            buf = output;
+        }
+
+        JpgEncoder.JpgData toJpgData(JpgEncoder.JpgData.Recycler recycler) {
+            // buf is replaced if the output did not fit
+            return new JpgEncoder.JpgData(buf, count, recycler);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getLosslessWebp() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSLESS;
+        }
+        // lossless at quality 100 since Android 10
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    /**
+     * Copy the rows without their padding.
+     */
+    private void pack(ByteBuffer buffer, int width, int height, int rowStride) {
+        int rowSize = width * 4;
+        int size = rowSize * height;
+        if (pixels.length < size) {
+            pixels = new byte[size];
+        }
+        if (rowStride == rowSize) {
+            buffer.get(pixels, 0, size);
+            return;
+        }
+        int start = buffer.position();
+        for (int y = 0; y < height; ++y) {
+            buffer.position(start + y * rowStride);
+            buffer.get(pixels, y * rowSize, rowSize);
+        }
+    }
+
+    private JpgEncoder.JpgData compressLz4(int width, int height) {
+        byte[] output = obtainOutput(getOutputSize(width, height));
+        ByteBuffer out = ByteBuffer.wrap(output);
+        out.putInt(width);
+        out.putInt(height);
+        lz4.compressFramed(pixels, width * 4 * height, out);
+        return new JpgEncoder.JpgData(output, out.position(), recycler);
+    }
+
+    private JpgEncoder.JpgData compressTileDelta(int width, int height, boolean full) {
+        if (tileDelta == null) {
+            tileDelta = new TileDelta(UdtOption.sDeltaTileSize, UdtOption.sDeltaThresholdPercent);
+        }
+        byte[] output = obtainOutput(getOutputSize(width, height));
+        ByteBuffer out = ByteBuffer.wrap(output);
+        tileDelta.encode(pixels, width, height, full, out);
+        return new JpgEncoder.JpgData(output, out.position(), recycler);
+    }
+
+    private JpgEncoder.JpgData compressBitmap(int width, int height, Bitmap.CompressFormat compressFormat) {
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            // the screen is opaque: no alpha channel in the encoded image
+            bitmap.setHasAlpha(false);
+        }
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, width * 4 * height));
+        byte[] output = obtainOutput(getOutputSize(width, height));
+        OutputBufferStream out = new OutputBufferStream(output);
+        if (!bitmap.compress(compressFormat, 100, out)) {
+            recycle(output);
+            throw new IllegalStateException("Could not compress the capture to " + compressFormat);
+        }
+        return out.toJpgData(recycler);
+    }
+
+    public void free() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        pixels = new byte[0];
+        synchronized (this) {
+            freeOutputs.clear();
+        }
+        tileDelta = null;
+    }
+}
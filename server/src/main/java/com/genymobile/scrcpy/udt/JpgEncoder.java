@@ -1,5 +1,6 @@
 package com.genymobile.scrcpy.udt;
 
+import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
 import android.media.Image;
 
@@ -8,8 +9,17 @@ import com.genymobile.scrcpy.Ln;
 import org.libjpegturbo.turbojpeg.TJ;
 import org.libjpegturbo.turbojpeg.TJCompressor;
 import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.YUVImage;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class JpgEncoder {
     public static final String LIB_PATH = TJ.LIB_JPEG_TURBO_DIR_ENV;
@@ -28,13 +38,33 @@ public final class JpgEncoder {
         return sJpgEncoder;
     }
 
+    /**
+     * An encoded image. The buffer of an encoder is handed over without copy: it is reference counted, and returned to the encoder
+     * for the next encodings once released by its last owner.
+     */
     public static final class JpgData {
         public byte[] data;
         public int size;
+        public int format = CaptureEncoder.FORMAT_JPEG;
+
+        /**
+         * Takes back the buffer of a {@link JpgData} when its last owner released it.
+         */
+        interface Recycler {
+            void recycle(byte[] data);
+        }
+
+        private final Recycler owner; // null if not recycled
+        private int refCount = 1;
 
         public JpgData(byte[] encodedData, int compressedSize) {
+            this(encodedData, compressedSize, null);
+        }
+
+        JpgData(byte[] encodedData, int compressedSize, Recycler owner) {
             data = encodedData;
             size = compressedSize;
+            this.owner = owner;
         }
 
         public JpgData copy() {
@@ -43,6 +73,27 @@ public final class JpgEncoder {
             System.arraycopy(data, 0, jpgData.data, 0, size);
             return jpgData;
         }
+        /**
+         * Share the data with another owner: each owner calls {@link #release()} when done.
+         */
+        public synchronized JpgData retain() {
+            ++refCount;
+            return this;
+        }
+
+        /**
+         * Release the reference of the caller: the buffer of an encoder goes back to it when the last owner is done.
+         */
+        public void release() {
+            boolean recycle;
+            synchronized (this) {
+                recycle = --refCount == 0;
+            }
+            if (recycle && owner != null) {
+                owner.recycle(data);
+            }
+        }
+
         public void free() {
             if (data != null) {
                 data = null;
@@ -53,11 +104,33 @@ public final class JpgEncoder {
     private int maxHeight;
     private int maxWidth;
 
+    // output buffers released by their owners, reused while the dimensions do not change
+    private static final int MAX_FREE_BUFFERS = 2;
+
     private final int subsampling = 2;
-    private byte[] encodedData = new byte[0];
+    private int encodedDataSize;
+    private final ArrayDeque<byte[]> freeEncodedData = new ArrayDeque<>();
+    private final JpgData.Recycler recycler = new JpgData.Recycler() {
+        @Override
+        public void recycle(byte[] data) {
+            JpgEncoder.this.recycle(data);
+        }
+    };
+    private byte[] sourceData = new byte[0];
+    // source of the YUV images, instead of sourceData: compressed without color conversion
+    private static final int PF_YUV420 = -2;
+    private final YuvPlanes yuvPlanes = new YuvPlanes();
 
     private TJCompressor compressor;
 
+    // strip-parallel encoding: the strip 0 is encoded by the calling thread (with the main compressor), the others by the pool
+    private static ExecutorService sStripExecutor; // shared by all the encoders
+    private int maxThreads = UdtOption.sJpegThreads;
+    private int stripHeight;
+    private TJCompressor[] stripCompressors = new TJCompressor[0];
+    private byte[][] stripData = new byte[0][];
+    private int[] stripSizes = new int[0];
+
     private int convertFormat(int format) {
         if (format == PixelFormat.RGBA_8888) {
             return TJ.PF_RGBA;
@@ -69,41 +142,250 @@ public final class JpgEncoder {
     }
 
     private final void allocate(int maxWidth, int maxHeight) throws TJException {
-        encodedData = new byte[TJ.bufSize(maxWidth, maxHeight, subsampling)];
+        if (compressor != null && maxWidth == this.maxWidth && maxHeight == this.maxHeight) {
+            return;
+        }
+        encodedDataSize = TJ.bufSize(maxWidth, maxHeight, subsampling);
+        freeEncodedData.clear();
         this.maxWidth = maxWidth;
         this.maxHeight = maxHeight;
         if (compressor == null) {
             compressor = new TJCompressor();
         }
         compressor.setSubsamp(subsampling);
+        stripHeight = 0;
     }
 
-    public final synchronized JpgData encode(Image image, int quality) throws TJException {
-        allocate(image.getWidth(), image.getHeight());
+    /**
+     * Set the maximum number of threads encoding an image concurrently: 0 for one per core, 1 to encode on the calling thread only.
+     */
+    public synchronized void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * The pool is sized once from the core count (the calling thread encodes a strip too); the parallelism of each encoder is
+     * bounded by its own strip count, since it submits at most one task per strip.
+     */
+    private static synchronized ExecutorService getStripExecutor() {
+        if (sStripExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            final AtomicInteger count = new AtomicInteger();
+            sStripExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "udt-jpeg-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sStripExecutor;
+    }
+
+    private void allocateStrips(int width, int height, int stripCount) throws TJException {
+        int newStripHeight = JpgStitcher.computeStripHeight(width, height, stripCount, TJ.getMCUWidth(subsampling),
+                TJ.getMCUHeight(subsampling));
+        if (newStripHeight == stripHeight) {
+            return;
+        }
+        stripHeight = newStripHeight;
+        int count = (height + stripHeight - 1) / stripHeight;
+        closeStripCompressors();
+        stripCompressors = new TJCompressor[count];
+        stripData = new byte[count][];
+        stripSizes = new int[count];
+        int stripDataSize = TJ.bufSize(width, stripHeight, subsampling);
+        stripCompressors[0] = compressor;
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                stripCompressors[i] = new TJCompressor();
+                stripCompressors[i].setSubsamp(subsampling);
+            }
+            stripData[i] = new byte[stripDataSize];
+        }
+    }
+
+    private void closeStripCompressors() throws TJException {
+        // the strip 0 is the main compressor
+        for (int i = 1; i < stripCompressors.length; ++i) {
+            stripCompressors[i].close();
+        }
+        stripCompressors = new TJCompressor[0];
+        stripData = new byte[0][];
+        stripSizes = new int[0];
+        stripHeight = 0;
+    }
+
+    private void setSource(TJCompressor tjCompressor, int y, int width, int rowStride, int height, int format) throws TJException {
+        if (format == PF_YUV420) {
+            int[] offsets = yuvPlanes.getOffsets(y, new int[3]);
+            tjCompressor.setSourceImage(new YUVImage(yuvPlanes.planes, offsets, width, yuvPlanes.strides, height, TJ.SAMP_420));
+        } else {
+            tjCompressor.setSourceImage(sourceData, 0, y, width, rowStride, height, format);
+        }
+    }
 
+    private void encodeStrip(int i, int width, int height, int rowStride, int format, int quality) throws TJException {
+        int y = i * stripHeight;
+        TJCompressor stripCompressor = stripCompressors[i];
+        stripCompressor.setJPEGQuality(quality);
+        setSource(stripCompressor, y, width, rowStride, Math.min(stripHeight, height - y), format);
+        stripCompressor.compress(stripData[i], 3072);
+        stripSizes[i] = stripCompressor.getCompressedSize();
+    }
+
+    /**
+     * Encode horizontal strips concurrently, and stitch them into a single image with restart markers (see {@link JpgStitcher}).
+     */
+    private JpgData encodeStrips(int width, int height, int rowStride, final int format, final int quality, int stripCount)
+            throws TJException {
+        allocateStrips(width, height, stripCount);
+        final int count = stripCompressors.length;
+        ExecutorService executor = getStripExecutor();
+        Future<?>[] futures = new Future<?>[count];
+        for (int i = 1; i < count; ++i) {
+            final int strip = i;
+            final int w = width;
+            final int h = height;
+            final int stride = rowStride;
+            futures[i] = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws TJException {
+                    encodeStrip(strip, w, h, stride, format, quality);
+                    return null;
+                }
+            });
+        }
+        TJException error = null;
+        try {
+            encodeStrip(0, width, height, rowStride, format, quality);
+        } catch (TJException e) {
+            error = e;
+        }
+        // wait for all the strips, even on error, so that no worker still writes into the buffers on the next encoding
+        boolean interrupted = false;
+        for (int i = 1; i < count; ++i) {
+            while (true) {
+                try {
+                    futures[i].get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = new TJException("Could not encode strip " + i, e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+
+        int maxSize = JpgStitcher.getMaxSize(stripSizes, count);
+        byte[] encodedData = maxSize <= encodedDataSize ? freeEncodedData.poll() : null;
+        if (encodedData == null) {
+            // a buffer larger than encodedDataSize is not recycled
+            encodedData = new byte[Math.max(maxSize, encodedDataSize)];
+        }
+        int restartInterval = JpgStitcher.computeRestartInterval(width, stripHeight, TJ.getMCUWidth(subsampling),
+                TJ.getMCUHeight(subsampling));
+        int size = JpgStitcher.stitch(stripData, stripSizes, count, height, restartInterval, encodedData);
+        return new JpgData(encodedData, size, recycler);
+    }
+
+    private synchronized void recycle(byte[] encodedData) {
+        if (encodedData.length == encodedDataSize && freeEncodedData.size() < MAX_FREE_BUFFERS) {
+            freeEncodedData.push(encodedData);
+        }
+    }
+
+    /**
+     * Encode the image.
+     * <p>
+     * The caller owns the returned data, and must {@link JpgData#release()} it.
+     */
+    public final synchronized JpgData encode(Image image, int quality) throws TJException {
         Image.Plane imagePlane = image.getPlanes()[0];
-        int rowStride = imagePlane.getRowStride();
-        ByteBuffer buffer = imagePlane.getBuffer();
-        byte[] bArr = new byte[buffer.remaining()];
-        buffer.get(bArr);
-        int convertFormat = convertFormat(image.getFormat());
         UdtLn.d("Got source image for jpeg encoding: planes: " + image.getPlanes().length
-                + " pitch: " + rowStride
+                + " pitch: " + imagePlane.getRowStride()
                 + " width: " + image.getWidth() + " height: " + image.getHeight()
                 + " format: " + image.getFormat());
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            return encodeYuv(image, quality);
+        }
+        return encode(imagePlane.getBuffer(), image.getWidth(), image.getHeight(), imagePlane.getRowStride(), image.getFormat(), quality);
+    }
+
+    /**
+     * Encode the pixels of a (direct) buffer, for example an image plane.
+     * <p>
+     * The TurboJPEG Java API only accepts arrays, so the pixels are copied (by a single native memcpy) into a source array reused
+     * across the calls, instead of a new array for each frame.
+     */
+    final synchronized JpgData encode(ByteBuffer buffer, int width, int height, int rowStride, int format, int quality)
+            throws TJException {
+        allocate(width, height);
+
+        int length = buffer.remaining();
+        if (sourceData.length < length) {
+            sourceData = new byte[length];
+        }
+        buffer.get(sourceData, 0, length);
+        return compressSource(width, height, rowStride, convertFormat(format), quality);
+    }
+
+    /**
+     * Encode a {@code YUV_420_888} image: the planes are compressed as is, without the RGB to YCbCr conversion.
+     */
+    private JpgData encodeYuv(Image image, int quality) throws TJException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        allocate(width, height);
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < 3; ++i) {
+            yuvPlanes.copy(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride(), width, height);
+        }
+        return compressSource(width, height, 0, PF_YUV420, quality);
+    }
+
+    private JpgData compressSource(int width, int height, int rowStride, int convertFormat, int quality) throws TJException {
+        int threads = maxThreads > 0 ? maxThreads : Runtime.getRuntime().availableProcessors();
+        int stripCount = JpgStitcher.computeStripCount(height, threads);
+        if (compressor != null && stripCount > 1) {
+            return encodeStrips(width, height, rowStride, convertFormat, quality, stripCount);
+        }
         if (compressor != null) {
             compressor.setJPEGQuality(quality);
-            compressor.setSourceImage(bArr, 0, 0, image.getWidth(), rowStride, image.getHeight(), convertFormat);
+            setSource(compressor, 0, width, rowStride, height, convertFormat);
+            byte[] encodedData = freeEncodedData.poll();
+            if (encodedData == null) {
+                encodedData = new byte[encodedDataSize];
+            }
             compressor.compress(encodedData, 3072);
-            return new JpgData(encodedData, compressor.getCompressedSize());
+            return new JpgData(encodedData, compressor.getCompressedSize(), recycler);
         }
         return null;
     }
 
-    public final void free() throws TJException {
-        encodedData = new byte[0];
+    /**
+     * Drop the reused buffers, keeping the compressor (the next encoding allocates them again).
+     */
+    final synchronized void releaseBuffers() throws TJException {
+        freeEncodedData.clear();
+        sourceData = new byte[0];
         maxWidth = 0;
         maxHeight = 0;
+        closeStripCompressors();
+    }
+
+    public final synchronized void free() throws TJException {
+        releaseBuffers();
         if (compressor != null) {
             compressor.close();
         }
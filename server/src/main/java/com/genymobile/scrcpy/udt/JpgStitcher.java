@@ -0,0 +1,153 @@
+package com.genymobile.scrcpy.udt;
+
+/**
+ * Stitch JPEG images of horizontal strips into a single JPEG, using restart markers.
+ * <p>
+ * The strips are encoded independently, with the same quality, subsampling and (standard) Huffman tables. A restart marker resets
+ * the DC predictors exactly like the start of a scan, so the entropy-coded data of each strip is a valid restart interval of the
+ * full image, provided that all the strips (except the last one) have the same height, a multiple of the MCU height. The stitched
+ * image reuses the headers of the first strip, with the full height in the frame header and a DRI segment for the interval.
+ */
+final class JpgStitcher {
+
+    // below this height, a strip is not worth a thread
+    static final int MIN_STRIP_HEIGHT = 256;
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF2 = 0xC2;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DRI = 0xDD;
+
+    private static final int DRI_SEGMENT_SIZE = 6;
+    private static final int MAX_RESTART_INTERVAL = 0xFFFF;
+
+    private JpgStitcher() {
+        // not instantiable
+    }
+
+    /**
+     * Positions of the segments in an encoded strip.
+     */
+    static final class Layout {
+        private final int sofOffset; // the frame header marker
+        private final int sosOffset; // the scan header marker
+        private final int dataOffset; // the entropy-coded data, after the scan header
+
+        Layout(int sofOffset, int sosOffset, int dataOffset) {
+            this.sofOffset = sofOffset;
+            this.sosOffset = sosOffset;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    /**
+     * Return the number of strips to encode concurrently: one per core, but no strip smaller than {@link #MIN_STRIP_HEIGHT}.
+     */
+    static int computeStripCount(int height, int cores) {
+        return Math.max(1, Math.min(cores, height / MIN_STRIP_HEIGHT));
+    }
+
+    /**
+     * Return the height of the strips (except the last one): a multiple of the MCU height, and small enough for the restart interval
+     * (in MCUs) to fit in the DRI segment.
+     */
+    static int computeStripHeight(int width, int height, int stripCount, int mcuWidth, int mcuHeight) {
+        int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+        int stripMcuRows = (mcuRows + stripCount - 1) / stripCount;
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        stripMcuRows = Math.max(1, Math.min(stripMcuRows, MAX_RESTART_INTERVAL / mcusPerRow));
+        return stripMcuRows * mcuHeight;
+    }
+
+    static int computeRestartInterval(int width, int stripHeight, int mcuWidth, int mcuHeight) {
+        return (width + mcuWidth - 1) / mcuWidth * (stripHeight / mcuHeight);
+    }
+
+    /**
+     * Return the maximum size of the stitched image.
+     */
+    static int getMaxSize(int[] sizes, int count) {
+        int total = DRI_SEGMENT_SIZE;
+        for (int i = 0; i < count; ++i) {
+            // each strip adds at most its own size and a restart marker
+            total += sizes[i] + 2;
+        }
+        return total;
+    }
+
+    static Layout parse(byte[] jpeg, int size) {
+        if (size < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            throw new IllegalArgumentException("Not a JPEG image");
+        }
+        int sofOffset = -1;
+        int pos = 2;
+        while (pos + 4 <= size) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) {
+                throw new IllegalArgumentException("Invalid JPEG marker at " + pos);
+            }
+            int marker = jpeg[pos + 1] & 0xFF;
+            int length = readShort(jpeg, pos + 2);
+            if (marker >= MARKER_SOF0 && marker <= MARKER_SOF2) {
+                sofOffset = pos;
+            } else if (marker == MARKER_DRI) {
+                throw new IllegalArgumentException("The strips must not have restart markers");
+            } else if (marker == MARKER_SOS) {
+                if (sofOffset < 0) {
+                    throw new IllegalArgumentException("No frame header");
+                }
+                return new Layout(sofOffset, pos, pos + 2 + length);
+            }
+            pos += 2 + length;
+        }
+        throw new IllegalArgumentException("No scan header");
+    }
+
+    /**
+     * Stitch the strips into {@code out}, which must hold at least {@link #getMaxSize(int[], int)} bytes.
+     *
+     * @param height          the height of the full image
+     * @param restartInterval the size of the strips (except the last one), in MCUs
+     * @return the size of the stitched image
+     */
+    static int stitch(byte[][] strips, int[] sizes, int count, int height, int restartInterval, byte[] out) {
+        Layout first = parse(strips[0], sizes[0]);
+        // headers of the first strip, with the full height
+        int pos = copy(strips[0], 0, first.sosOffset, out, 0);
+        // frame header: marker (2), length (2), precision (1), height (2), width (2)
+        writeShort(out, first.sofOffset + 5, height);
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) MARKER_DRI;
+        writeShort(out, pos, 4);
+        writeShort(out, pos + 2, restartInterval);
+        pos += 4;
+        // scan header
+        pos = copy(strips[0], first.sosOffset, first.dataOffset, out, pos);
+        for (int i = 0; i < count; ++i) {
+            Layout layout = i == 0 ? first : parse(strips[i], sizes[i]);
+            int end = sizes[i] - 2;
+            if ((strips[i][end] & 0xFF) != 0xFF || (strips[i][end + 1] & 0xFF) != MARKER_EOI) {
+                throw new IllegalArgumentException("Strip " + i + " does not end with EOI");
+            }
+            pos = copy(strips[i], layout.dataOffset, end, out, pos);
+            out[pos++] = (byte) 0xFF;
+            out[pos++] = (byte) (i < count - 1 ? MARKER_RST0 + i % 8 : MARKER_EOI);
+        }
+        return pos;
+    }
+
+    private static int copy(byte[] src, int from, int to, byte[] out, int pos) {
+        System.arraycopy(src, from, out, pos, to - from);
+        return pos + to - from;
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 8 | buffer[offset + 1] & 0xFF;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+}
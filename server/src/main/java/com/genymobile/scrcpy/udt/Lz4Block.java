@@ -0,0 +1,153 @@
+package com.genymobile.scrcpy.udt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressor of the LZ4 block format (https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md), decoded by any LZ4 library
+ * ({@code LZ4_decompress_safe()}).
+ * <p>
+ * It is the greedy single-probe algorithm of the reference "fast" compressor: it favors speed over ratio, for the raw captures on
+ * local links, where the CPU is the bottleneck. The hash table is reused across the blocks.
+ * <p>
+ * Large data is framed as independent blocks, each one at most {@link #BLOCK_SIZE} once decompressed: a 4-byte big-endian size (the
+ * high bit set if the block is stored uncompressed) and the block data. A size of 0 ends the data.
+ */
+final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    // the last sequence contains at least 5 literals, and the last match starts at least 12 bytes before the end
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    // skip faster in incompressible data
+    private static final int SKIP_TRIGGER = 6;
+
+    static final int BLOCK_SIZE = 4 << 20;
+    static final int BLOCK_UNCOMPRESSED = 0x80000000;
+
+    private static final int HASH_LOG = 14;
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    static int maxFramedLength(int length) {
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return blocks * (4 + maxCompressedLength(Math.min(length, BLOCK_SIZE))) + 4;
+    }
+
+    /**
+     * Compress {@code src[0..length)} as framed blocks, at the position of {@code out} (backed by an array, without offset), which
+     * must have {@link #maxFramedLength(int)} bytes remaining.
+     */
+    void compressFramed(byte[] src, int length, ByteBuffer out) {
+        byte[] output = out.array();
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, length - offset);
+            int pos = out.position();
+            int compressed = compress(src, offset, blockSize, output, pos + 4);
+            if (compressed < blockSize) {
+                out.putInt(compressed);
+            } else {
+                // incompressible
+                out.putInt(blockSize | BLOCK_UNCOMPRESSED);
+                System.arraycopy(src, offset, output, pos + 4, blockSize);
+                compressed = blockSize;
+            }
+            out.position(pos + 4 + compressed);
+        }
+        out.putInt(0);
+    }
+
+    /**
+     * Compress {@code src[srcOff..srcOff + srcLen)} into {@code dst}, which must hold {@link #maxCompressedLength(int)} bytes from
+     * {@code dstOff}.
+     *
+     * @return the compressed size
+     */
+    int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen > MF_LIMIT) {
+            Arrays.fill(hashTable, -1);
+            int ip = srcOff + 1;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = hashTable[h];
+                hashTable[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+                // extend backwards over the pending literals
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    --ip;
+                    --ref;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    ++matchLength;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 >= srcOff && ip - 2 < mfLimit) {
+                    // index a position inside the match, for the next sequences
+                    hashTable[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+        // last literals
+        int literals = srcEnd - anchor;
+        int token = op++;
+        dst[token] = 0;
+        op = writeLength(literals, dst, token, 4, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLength, byte[] dst, int op) {
+        int token = op++;
+        dst[token] = 0;
+        op = writeLength(literals, dst, token, 4, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >> 8);
+        return writeLength(matchLength - MIN_MATCH, dst, token, 0, op);
+    }
+
+    /**
+     * Write a length in the 4 bits of the token at {@code shift}, with the extra bytes at {@code op}.
+     */
+    private static int writeLength(int length, byte[] dst, int token, int shift, int op) {
+        if (length < 15) {
+            dst[token] |= (byte) (length << shift);
+            return op;
+        }
+        dst[token] |= (byte) (15 << shift);
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return buffer[offset] & 0xFF | (buffer[offset + 1] & 0xFF) << 8 | (buffer[offset + 2] & 0xFF) << 16 | buffer[offset + 3] << 24;
+    }
+}
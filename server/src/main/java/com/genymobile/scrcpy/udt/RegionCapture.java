@@ -0,0 +1,259 @@
+package com.genymobile.scrcpy.udt;
+
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.IBinder;
+
+import com.genymobile.scrcpy.Device;
+import com.genymobile.scrcpy.wrappers.SurfaceControl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Screenshots of regions of the display, for {@code TYPE_CAPTURE_REGIONS}.
+ * <p>
+ * Each region has its own virtual display, projecting only this rectangle of the layer stack (in device coordinates) at its native
+ * resolution into an {@link ImageReader} of the region size: the compositor renders, and the encoder reads back, only the requested
+ * pixels. Like the full screen session, the displays and the latest images are kept while the same regions are requested, and
+ * released with the session of {@link ScreenCapture} (on rotation or when idle).
+ * <p>
+ * It runs on the thread of the {@link ScreenCapture}.
+ */
+final class RegionCapture {
+
+    public interface OnRegionsAvailableListener {
+        /**
+         * @param regions the captured regions (clipped to the screen)
+         * @param images  the encoded image of each region, or {@code null} if not available, owned by the listener (which must release
+         *                them)
+         */
+        void onRegionsAvailable(int format, Rect[] regions, JpgEncoder.JpgData[] images);
+    }
+
+    private static final String TAG = "screencap-roi:";
+
+    private static final long FIRST_IMAGE_TIMEOUT_MS = 500;
+
+    private static final class Region {
+        private final Rect rect;
+        private IBinder display;
+        private ImageReader imageReader;
+        private Image latestImage;
+
+        Region(Rect rect) {
+            this.rect = rect;
+        }
+    }
+
+    private static final class Request {
+        private final int quality;
+        private final int format;
+        private final OnRegionsAvailableListener listener;
+
+        Request(int quality, int format, OnRegionsAvailableListener listener) {
+            this.quality = quality;
+            this.format = format;
+            this.listener = listener;
+        }
+    }
+
+    private final Handler handler;
+    private final JpgEncoder jpgEncoder;
+    private final CaptureEncoder captureEncoder;
+    private int displayCount;
+
+    private final List<Region> regions = new ArrayList<>();
+    private final List<Request> pendingRequests = new ArrayList<>();
+
+    private final Runnable firstImageTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            UdtLn.w(TAG + "not all the regions rendered within " + FIRST_IMAGE_TIMEOUT_MS + "ms");
+            deliver();
+        }
+    };
+
+    RegionCapture(Handler handler, JpgEncoder jpgEncoder, CaptureEncoder captureEncoder) {
+        this.handler = handler;
+        this.jpgEncoder = jpgEncoder;
+        this.captureEncoder = captureEncoder;
+    }
+
+    /**
+     * Return the bounds of the regions clipped to the content bounds, without the empty ones.
+     *
+     * @param regions 4 values (left, top, right, bottom) per region
+     */
+    static int[] clip(int[] regions, int left, int top, int right, int bottom) {
+        int[] clipped = new int[regions.length];
+        int count = 0;
+        for (int i = 0; i + 3 < regions.length; i += 4) {
+            int l = Math.max(regions[i], left);
+            int t = Math.max(regions[i + 1], top);
+            int r = Math.min(regions[i + 2], right);
+            int b = Math.min(regions[i + 3], bottom);
+            if (l < r && t < b) {
+                clipped[count++] = l;
+                clipped[count++] = t;
+                clipped[count++] = r;
+                clipped[count++] = b;
+            }
+        }
+        return Arrays.copyOf(clipped, count);
+    }
+
+    /**
+     * @param requestedRegions 4 values (left, top, right, bottom) per region, in device coordinates
+     */
+    void capture(Device device, int[] requestedRegions, int quality, int format, OnRegionsAvailableListener listener) {
+        Rect content = device.getScreenInfo().getContentRect();
+        int[] bounds = clip(requestedRegions, content.left, content.top, content.right, content.bottom);
+        Rect[] rects = new Rect[bounds.length / 4];
+        for (int i = 0; i < rects.length; ++i) {
+            rects[i] = new Rect(bounds[4 * i], bounds[4 * i + 1], bounds[4 * i + 2], bounds[4 * i + 3]);
+        }
+        if (!isSameRegions(rects)) {
+            if (!pendingRequests.isEmpty()) {
+                // with the regions they requested
+                deliver();
+            }
+            configure(rects, device.getLayerStack());
+        }
+        pendingRequests.add(new Request(quality, format, listener));
+        if (isComplete()) {
+            // the displays render only on change: the latest images are the current screen
+            deliver();
+        } else {
+            handler.removeCallbacks(firstImageTimeoutRunnable);
+            handler.postDelayed(firstImageTimeoutRunnable, FIRST_IMAGE_TIMEOUT_MS);
+        }
+    }
+
+    private boolean isSameRegions(Rect[] rects) {
+        if (rects.length != regions.size()) {
+            return false;
+        }
+        for (int i = 0; i < rects.length; ++i) {
+            if (!rects[i].equals(regions.get(i).rect)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @android.annotation.SuppressLint("WrongConstant")
+    private void configure(Rect[] rects, int layerStack) {
+        releaseRegions();
+        for (Rect rect : rects) {
+            final Region region = new Region(rect);
+            region.imageReader = ImageReader.newInstance(rect.width(), rect.height(), PixelFormat.RGBA_8888, 2);
+            region.imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    onImage(region, reader);
+                }
+            }, handler);
+            region.display = ScreenCapture.createDisplay("udt-screencap-roi-" + displayCount++);
+            // the layer stack rect only, at its native resolution, in the orientation of the device
+            ScreenCapture.setDisplaySurface(region.display, region.imageReader.getSurface(), 0, rect,
+                    new Rect(0, 0, rect.width(), rect.height()), layerStack);
+            regions.add(region);
+        }
+        UdtLn.i(TAG + "configured " + Arrays.toString(rects));
+    }
+
+    private void onImage(Region region, ImageReader reader) {
+        if (reader != region.imageReader) {
+            // released
+            return;
+        }
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            UdtLn.e(TAG + "acquire latest image failed by " + e);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        if (region.latestImage != null) {
+            region.latestImage.close();
+        }
+        region.latestImage = image;
+        if (!pendingRequests.isEmpty() && isComplete()) {
+            deliver();
+        }
+    }
+
+    private boolean isComplete() {
+        for (Region region : regions) {
+            if (region.latestImage == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver() {
+        handler.removeCallbacks(firstImageTimeoutRunnable);
+        Rect[] rects = new Rect[regions.size()];
+        for (int i = 0; i < rects.length; ++i) {
+            rects[i] = new Rect(regions.get(i).rect);
+        }
+        for (Request request : pendingRequests) {
+            JpgEncoder.JpgData[] images = new JpgEncoder.JpgData[rects.length];
+            for (int i = 0; i < rects.length; ++i) {
+                Image image = regions.get(i).latestImage;
+                if (image != null) {
+                    images[i] = encode(image, request.quality, request.format);
+                }
+            }
+            request.listener.onRegionsAvailable(request.format, rects, images);
+        }
+        pendingRequests.clear();
+    }
+
+    private JpgEncoder.JpgData encode(Image image, int quality, int format) {
+        try {
+            if (format == CaptureEncoder.FORMAT_JPEG) {
+                return jpgEncoder.encode(image, quality);
+            }
+            return captureEncoder.encode(image, format);
+        } catch (Exception e) {
+            UdtLn.e(TAG + "encode " + CaptureEncoder.getName(format) + " error: " + e);
+        }
+        return null;
+    }
+
+    private void releaseRegions() {
+        for (Region region : regions) {
+            if (region.latestImage != null) {
+                region.latestImage.close();
+            }
+            try {
+                SurfaceControl.destroyDisplay(region.display);
+            } catch (Exception e) {
+                UdtLn.e(TAG + " destroy display error:" + e);
+            }
+            region.imageReader.close();
+            region.imageReader = null;
+        }
+        regions.clear();
+    }
+
+    /**
+     * Release the displays, after delivering the pending requests with the available images.
+     */
+    void release() {
+        if (!pendingRequests.isEmpty()) {
+            deliver();
+        }
+        releaseRegions();
+    }
+}
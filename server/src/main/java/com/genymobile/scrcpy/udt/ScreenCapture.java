@@ -2,6 +2,7 @@ package com.genymobile.scrcpy.udt;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.media.Image;
@@ -10,7 +11,6 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
 import android.view.Surface;
 
 import com.genymobile.scrcpy.Device;
@@ -19,90 +19,240 @@ import com.genymobile.scrcpy.ScreenInfo;
 import com.genymobile.scrcpy.wrappers.SurfaceControl;
 
 import java.io.ByteArrayOutputStream;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Screenshots of the display, for {@code TYPE_CAPTURE_DEVICE}.
+ * <p>
+ * The capture session (device, virtual display and {@link ImageReader}) is kept alive while the captures are frequent: the latest
+ * image rendered by the display is held, so a capture is just a JPEG encoding of this image (the display only renders when the screen
+ * changes, so the held image is the current screen). The session is reconfigured only if the size or the rotation changes, and
+ * its display and reader are released after {@code udt_capture_idle_ms} without capture. The quality only applies to the encoding.
+ * <p>
+ * With {@code udt_capture_yuv}, the display renders {@code YUV_420_888} images (1.5 bytes per pixel instead of 4), compressed without
+ * color conversion. Not all the compositors can render a virtual display to YUV: if the reader cannot be created, if no YUV image is
+ * rendered or if it cannot be encoded, the session falls back to RGBA.
+ * <p>
+ * The other formats than JPEG (see {@link CaptureEncoder}) are pixel-exact: they need RGBA images, so such a capture switches a YUV
+ * session to RGBA.
+ * <p>
+ * The captures of regions of the screen are handled by a {@link RegionCapture}, on the same thread and with the same encoders.
+ */
 public final class ScreenCapture {
     public interface OnImageAvailableListener {
-        void onImageAvailable(byte[] bitmap, int size);
+        /**
+         * @param image the encoded image, owned by the listener (which must release it)
+         */
+        void onImageAvailable(JpgEncoder.JpgData image);
     }
 
-    private static class LoopThread extends Thread {
-        WeakReference<ScreenCapture> ScreenCaptureRef;
-        int fd;
+    private static final String TAG = "screencap:";
+    private static final boolean ENCODE_FROM_JPEG_TURBO = true;
 
-        LoopThread(ScreenCapture c, int fd) {
-            ScreenCaptureRef = new WeakReference<>(c);
-            this.fd = fd;
-        }
+    // the first image of a new display is rendered immediately, do not wait forever for a blank or secure display
+    private static final long FIRST_IMAGE_TIMEOUT_MS = 500;
 
-        @Override
-        public void run() {
-            ScreenCapture capture = ScreenCaptureRef.get();
-            if (capture == null) {
-                return;
-            }
+    private static final class Request {
+        private final int quality;
+        private final int format;
+        private final OnImageAvailableListener listener;
 
-            Looper.prepare();
-            String loopName = "udt-cap-" + System.currentTimeMillis();
-            capture.backgroundThread =
-                    new HandlerThread(loopName, android.os.Process.THREAD_PRIORITY_BACKGROUND);
-            capture.backgroundThread.start();
-            if (capture.backgroundHandler == null) {
-                capture.backgroundHandler = new Handler(capture.backgroundThread.getLooper());
-            }
-            capture.handlerLooper = Looper.myLooper();
-            Looper.loop();
-            UdtLn.i("exit of capture looper: " + loopName);
+        Request(int quality, int format, OnImageAvailableListener listener) {
+            this.quality = quality;
+            this.format = format;
+            this.listener = listener;
         }
     }
 
-    private static final String TAG = "screencap:";
-    private static final boolean ENCODE_FROM_JPEG_TURBO = true;
-
     private int fd;
 
-    private ImageReader imageReader;
-    private Handler backgroundHandler;
-    private HandlerThread backgroundThread;
-    private LoopThread loopThread;
-    private Looper handlerLooper;
+    private final HandlerThread backgroundThread;
+    private final Handler backgroundHandler;
     private JpgEncoder.JpgData lastData;
+    // not shared with the other connections: its output buffer is reused by each encoding
+    private final JpgEncoder jpgEncoder = new JpgEncoder();
+    private final CaptureEncoder captureEncoder = new CaptureEncoder();
+    private final RegionCapture regionCapture;
 
-    private static ScreenCapture sScreenCapture;
+    // accessed on the background thread only
+    private Device device;
+    private int height;
+    private IBinder display;
+    private ImageReader imageReader;
+    private Image latestImage;
+    private ScreenInfo configuredScreenInfo;
+    private boolean yuvCapture = UdtOption.sCaptureYuv;
+    private boolean yuvImageRendered;
+    private final List<Request> pendingRequests = new ArrayList<>();
+
+    private final Runnable idleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            UdtLn.i(TAG + "no capture for " + UdtOption.sCaptureIdleMs + "ms, release the capture session");
+            releaseSession();
+        }
+    };
+
+    private final Runnable firstImageTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            UdtLn.w(TAG + "no image rendered within " + FIRST_IMAGE_TIMEOUT_MS + "ms");
+            if (yuvCapture && !yuvImageRendered) {
+                // the first image is rendered immediately, unless the display cannot render YUV
+                fallbackToRgba("no YUV image rendered");
+                reconfigure();
+                return;
+            }
+            deliver(null);
+        }
+    };
 
     public ScreenCapture(int fd) {
         UdtLn.i("init ScreenCapture once");
-        startLoopThread();
         this.fd = fd;
+        backgroundThread = new HandlerThread("udt-cap-" + System.currentTimeMillis(), android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+        regionCapture = new RegionCapture(backgroundHandler, jpgEncoder, captureEncoder);
     }
 
-    private void startLoopThread() {
-        if (loopThread == null) {
-            loopThread = new LoopThread(this, fd);
-            loopThread.start();
-        }
+    public void stop() {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseSession();
+                if (device != null) {
+                    device.setRotationListener(null);
+                    device = null;
+                }
+                if (lastData != null) {
+                    lastData.release();
+                    lastData = null;
+                }
+                try {
+                    jpgEncoder.free();
+                } catch (Exception e) {
+                    UdtLn.w(TAG + "could not release the jpeg encoder: " + e);
+                }
+                captureEncoder.free();
+                UdtLn.i("exit of capture looper: " + backgroundThread.getName());
+                backgroundThread.quitSafely();
+            }
+        });
     }
 
-    public void stop() {
-        if (handlerLooper != null) {
-            UdtLn.i("Looper.myLooper().quit");
-            handlerLooper.quit();
-        }
-        if (backgroundHandler.getLooper() != null) {
-            UdtLn.i("backgroundHandler.myLooper().quit");
-            backgroundHandler.getLooper().quit();
-        }
+    /**
+     * @param format one of the {@code CaptureEncoder.FORMAT_*} values
+     */
+    public void capture(final int height, final int quality, final int format, final Options options,
+                        final OnImageAvailableListener listener) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                backgroundHandler.removeCallbacks(idleRunnable);
+                if (UdtOption.sCaptureIdleMs > 0) {
+                    backgroundHandler.postDelayed(idleRunnable, UdtOption.sCaptureIdleMs);
+                }
+                pendingRequests.add(new Request(quality, format, listener));
+                if (format != CaptureEncoder.FORMAT_JPEG && yuvCapture) {
+                    fallbackToRgba("the " + CaptureEncoder.getName(format) + " format needs RGBA images");
+                }
+                try {
+                    configure(height, options);
+                } catch (RuntimeException e) {
+                    UdtLn.e(TAG + "could not configure the capture: " + e);
+                    releaseSession();
+                    deliver(null);
+                    return;
+                }
+                if (latestImage != null) {
+                    // the display renders only on change: the latest image is the current screen
+                    deliver(latestImage);
+                }
+                // otherwise, delivered on the first image
+            }
+        });
+    }
+
+    /**
+     * Capture regions of the screen, in device coordinates, at their native resolution.
+     *
+     * @param regions 4 values (left, top, right, bottom) per region
+     * @param format one of the {@code CaptureEncoder.FORMAT_*} values, except the deltas
+     */
+    public void captureRegions(final int[] regions, final int quality, final int format, final Options options,
+                               final RegionCapture.OnRegionsAvailableListener listener) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                backgroundHandler.removeCallbacks(idleRunnable);
+                if (UdtOption.sCaptureIdleMs > 0) {
+                    backgroundHandler.postDelayed(idleRunnable, UdtOption.sCaptureIdleMs);
+                }
+                try {
+                    if (device == null) {
+                        // no scaling, the regions are captured at their native resolution
+                        createDevice(0, options);
+                    }
+                    regionCapture.capture(device, regions, quality, format, listener);
+                } catch (RuntimeException e) {
+                    UdtLn.e(TAG + "could not capture the regions: " + e);
+                    regionCapture.release();
+                    listener.onRegionsAvailable(format, new Rect[0], new JpgEncoder.JpgData[0]);
+                }
+            }
+        });
+    }
+
+    private void createDevice(int height, Options options) {
+        // do not change the options shared by the connections
+        Options captureOptions = options.copy();
+        captureOptions.setMaxSize(height);
+        captureOptions.setScaleImage(UdtOption.sRescaleImage);
+        device = new Device(captureOptions);
+        device.setRotationListener(new Device.RotationListener() {
+            @Override
+            public void onRotationChanged(int rotation) {
+                backgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the regions are in the coordinates of the previous rotation
+                        regionCapture.release();
+                        // if the session is released, the next capture configures it from the new screen info
+                        if (device != null && imageReader != null) {
+                            reconfigure();
+                        }
+                    }
+                });
+            }
+        });
+        this.height = height;
     }
 
     @android.annotation.SuppressLint("WrongConstant")
     @TargetApi(Build.VERSION_CODES.KITKAT)
-    public void capture(int height, int quality, Options options, OnImageAvailableListener listener) {
-        options.setMaxSize(height);
-        options.setScaleImage(UdtOption.sRescaleImage);
+    private void configure(int height, Options options) {
+        if (device == null) {
+            createDevice(height, options);
+        } else if (height != this.height) {
+            device.setMaxSize(height);
+            this.height = height;
+        }
+        ScreenInfo screenInfo = device.getScreenInfo();
+        if (imageReader == null || !isSameConfig(screenInfo, configuredScreenInfo)) {
+            reconfigure();
+        }
+    }
 
-        Device device = new Device(options);
-        IBinder display = createDisplay(fd);
+    private static boolean isSameConfig(ScreenInfo a, ScreenInfo b) {
+        return b != null && a.getVideoSize().equals(b.getVideoSize()) && a.getVideoRotation() == b.getVideoRotation()
+                && a.getContentRect().equals(b.getContentRect());
+    }
+
+    @android.annotation.SuppressLint("WrongConstant")
+    private void reconfigure() {
         ScreenInfo screenInfo = device.getScreenInfo();
         int w = screenInfo.getVideoSize().getWidth();
         int h = screenInfo.getVideoSize().getHeight();
@@ -111,69 +261,180 @@ public final class ScreenCapture {
         Rect unlockedVideoRect = screenInfo.getUnlockedVideoSize().toRect();
         int videoRotation = screenInfo.getVideoRotation();
         int layerStack = device.getLayerStack();
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+
+        // the held image does not match the new configuration
+        closeLatestImage();
+        if (imageReader == null || imageReader.getWidth() != w || imageReader.getHeight() != h) {
+            if (imageReader != null) {
+                imageReader.close();
+            }
+            imageReader = newImageReader(w, h);
+            imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    onImage(reader);
+                }
+            }, backgroundHandler);
+        }
+        if (display == null) {
+            display = createDisplay(fd++);
         }
-        imageReader = ImageReader.newInstance(w, h, PixelFormat.RGBA_8888, 2);
 
         UdtLn.i(TAG + " config:" + " cr" + contentRect.toString()
                 + " vw: " + w + " vh: " + h + " o: " + videoRotation);
 
         setDisplaySurface(display, imageReader.getSurface(), videoRotation, contentRect, unlockedVideoRect, layerStack);
-        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-            @Override
-            public void onImageAvailable(ImageReader reader) {
-                if (backgroundHandler == null) {
-                    UdtLn.e(TAG + "looper has stopped, ignore image");
-                    return;
-                }
+        configuredScreenInfo = screenInfo;
+        if (!pendingRequests.isEmpty()) {
+            backgroundHandler.removeCallbacks(firstImageTimeoutRunnable);
+            backgroundHandler.postDelayed(firstImageTimeoutRunnable, FIRST_IMAGE_TIMEOUT_MS);
+        }
+    }
 
-                try (Image image = reader.acquireLatestImage()) {
-                    if (image != null) {
-                        JpgEncoder.JpgData data;
-                        if (ENCODE_FROM_JPEG_TURBO) {
-                            data = getJpegFromEncoder(image, quality);
-                        } else {
-                            data = getJpegFromBitmap(image, quality);
-                        }
-                        image.close();
-
-                        if (listener != null) {
-                            if (data != null) {
-                                listener.onImageAvailable(data.data, data.size);
-                                if (lastData != null) {
-                                    lastData.free();
-                                }
-                                lastData = data.copy();
-                                data.free();
-                            } else {
-                                if (lastData != null) {
-                                    UdtLn.e(TAG + "acquire Latest Image failed, use last image " + lastData.size);
-                                    listener.onImageAvailable(lastData.data, lastData.size);
-                                } else {
-                                    listener.onImageAvailable(new byte[]{1}, 1);
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    UdtLn.e(TAG + "acquire Latest Image failed by image by " + e);
-                } finally {
-                    destroyDisplay(display);
-                    reader.close();
+    @android.annotation.SuppressLint("WrongConstant")
+    private ImageReader newImageReader(int w, int h) {
+        // one image held, the others for the display
+        if (yuvCapture) {
+            try {
+                return ImageReader.newInstance(w, h, ImageFormat.YUV_420_888, 3);
+            } catch (RuntimeException e) {
+                fallbackToRgba("could not create a YUV reader: " + e);
+            }
+        }
+        return ImageReader.newInstance(w, h, PixelFormat.RGBA_8888, 3);
+    }
+
+    /**
+     * Capture RGBA images until the end of the connection: the next configuration recreates the reader.
+     */
+    private void fallbackToRgba(String reason) {
+        UdtLn.w(TAG + reason + ", fall back to RGBA");
+        yuvCapture = false;
+        closeLatestImage();
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        configuredScreenInfo = null;
+    }
+
+    private void onImage(ImageReader reader) {
+        if (reader != imageReader) {
+            // replaced by a reconfiguration
+            return;
+        }
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            UdtLn.e(TAG + "acquire Latest Image failed by " + e);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            yuvImageRendered = true;
+        }
+        // keep only the latest image, so that the display always has a free buffer
+        closeLatestImage();
+        latestImage = image;
+        if (!pendingRequests.isEmpty()) {
+            deliver(latestImage);
+        }
+    }
+
+    /**
+     * Encode the image for the pending requests.
+     *
+     * @param image the current screen, or {@code null} if not available (the last capture is sent instead)
+     */
+    private void deliver(Image image) {
+        backgroundHandler.removeCallbacks(firstImageTimeoutRunnable);
+        boolean yuvFailed = false;
+        for (Request request : pendingRequests) {
+            JpgEncoder.JpgData data = null;
+            if (image != null) {
+                if (request.format != CaptureEncoder.FORMAT_JPEG) {
+                    data = getImageFromCaptureEncoder(image, request.format);
+                } else if (ENCODE_FROM_JPEG_TURBO) {
+                    data = getJpegFromEncoder(image, request.quality);
+                } else {
+                    data = getJpegFromBitmap(image, request.quality);
+                }
+                yuvFailed |= data == null && image.getFormat() == ImageFormat.YUV_420_888;
+            }
+            boolean delta = CaptureEncoder.isDelta(request.format);
+            if (data == null && delta) {
+                // a previous delta would not apply to the frame of the client: nothing changed, as far as we know
+                data = captureEncoder.encodeUnchanged();
+            }
+            if (data != null && !delta) {
+                // kept (not copied) for the fallback
+                if (lastData != null) {
+                    lastData.release();
+                }
+                lastData = data.retain();
+            }
+            if (request.listener == null) {
+                if (data != null) {
+                    data.release();
                 }
+                continue;
             }
-        }, backgroundHandler);
+            if (data != null) {
+                request.listener.onImageAvailable(data);
+            } else {
+                if (lastData != null) {
+                    UdtLn.e(TAG + "acquire Latest Image failed, use last image " + lastData.size);
+                    request.listener.onImageAvailable(lastData.retain());
+                } else {
+                    request.listener.onImageAvailable(new JpgEncoder.JpgData(new byte[]{1}, 1));
+                }
+            }
+        }
+        pendingRequests.clear();
+        if (yuvFailed) {
+            fallbackToRgba("could not encode the YUV image");
+            reconfigure();
+        }
+    }
+
+    private void closeLatestImage() {
+        if (latestImage != null) {
+            latestImage.close();
+            latestImage = null;
+        }
+    }
+
+    private void releaseSession() {
+        backgroundHandler.removeCallbacks(idleRunnable);
+        if (!pendingRequests.isEmpty()) {
+            deliver(null);
+        }
+        regionCapture.release();
+        closeLatestImage();
+        destroyDisplay(display);
+        display = null;
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        // the device is kept: it registers a rotation watcher, which cannot be unregistered
+        configuredScreenInfo = null;
     }
 
     protected static IBinder createDisplay(int fd) {
+        return createDisplay("udt-screencap-" + fd);
+    }
+
+    static IBinder createDisplay(String name) {
         boolean secure = Build.VERSION.SDK_INT <= Build.VERSION_CODES.R
                 && !Build.VERSION.CODENAME.equals("S");
-        return SurfaceControl.createDisplay("udt-screencap-" + (fd++), secure);
+        return SurfaceControl.createDisplay(name, secure);
     }
 
-    private static void setDisplaySurface(IBinder display, Surface surface, int orientation,
+    static void setDisplaySurface(IBinder display, Surface surface, int orientation,
                                           Rect deviceRect, Rect displayRect, int layerStack) {
         SurfaceControl.openTransaction();
         try {
@@ -197,13 +458,22 @@ public final class ScreenCapture {
 
     private JpgEncoder.JpgData getJpegFromEncoder(Image image, int quality) {
         try {
-            return JpgEncoder.getInstance().encode(image, quality);
+            return jpgEncoder.encode(image, quality);
         } catch (Exception e) {
             UdtLn.e(" encode jpeg by turbo error: " + e);
         }
         return null;
     }
 
+    private JpgEncoder.JpgData getImageFromCaptureEncoder(Image image, int format) {
+        try {
+            return captureEncoder.encode(image, format);
+        } catch (Exception e) {
+            UdtLn.e(TAG + "encode " + CaptureEncoder.getName(format) + " error: " + e);
+        }
+        return null;
+    }
+
     private Bitmap createBitmap(Image image, int width, int height) {
         Image.Plane[] planes = image.getPlanes();
         ByteBuffer buffer = planes[0].getBuffer();
@@ -0,0 +1,227 @@
+package com.genymobile.scrcpy.udt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Tile-based delta captures, for {@code CaptureEncoder.FORMAT_TILE_DELTA}.
+ * <p>
+ * The frame is split into square tiles, and the pixels and the 64-bit hash of each tile of the last capture (the base) are kept.
+ * A tile whose hash changed is changed; a tile whose hash is the same is compared to the base pixels, so that a hash collision never
+ * hides a change. Only the changed tiles are sent (losslessly), so that the client reconstructs a bit-identical frame by copying them
+ * over its base frame. A full frame is sent if there is no base (first capture, size change, request of the client), or if more
+ * than {@code thresholdPercent} of the tiles changed.
+ * <p>
+ * The payload is (big-endian):
+ * <ul>
+ *     <li>the width and the height (4 bytes each), the tile size (2 bytes);</li>
+ *     <li>the sequence number of the frame (4 bytes), and of its base frame (4 bytes, {@link #NO_BASE} for a full frame);</li>
+ *     <li>the number of tiles (4 bytes, 0 for a full frame), and the column and the row of each tile (2 bytes each);</li>
+ *     <li>the pixels as LZ4 blocks (see {@link Lz4Block}): the full frame, or the rows of each tile (clipped to the frame), in
+ *     order.</li>
+ * </ul>
+ * The client applies a delta only if its base is its current frame, otherwise it requests a full frame.
+ */
+final class TileDelta {
+
+    static final int NO_BASE = -1;
+
+    private static final int HEADER_SIZE = 22;
+    static final long PRIME1 = 0x9E3779B97F4A7C15L;
+    static final long PRIME2 = 0xC2B2AE3D27D4EB4FL; // also the initial hash of a tile
+
+    private final int tileSize;
+    private final int thresholdPercent;
+    private final Lz4Block lz4 = new Lz4Block();
+
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private long[] hashes = new long[0]; // of the base frame
+    private long[] nextHashes = new long[0];
+    private byte[] basePixels = new byte[0];
+    private int[] changedTiles = new int[0];
+    private byte[] tilePixels = new byte[0];
+    private int seq = NO_BASE; // of the base frame
+
+    TileDelta(int tileSize, int thresholdPercent) {
+        this.tileSize = tileSize;
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    static int getMaxSize(int width, int height, int tileSize) {
+        int tiles = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+        return HEADER_SIZE + 4 * tiles + Lz4Block.maxFramedLength(width * 4 * height);
+    }
+
+    /**
+     * Encode the frame, and make it the base of the next one.
+     *
+     * @param pixels RGBA, rows without padding
+     * @param full   {@code true} to send a full frame (the client has no base)
+     * @param out    backed by an array without offset, with {@link #getMaxSize(int, int, int)} bytes remaining
+     */
+    void encode(byte[] pixels, int width, int height, boolean full, ByteBuffer out) {
+        boolean hasBase = seq != NO_BASE && width == this.width && height == this.height;
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+        computeHashes(pixels);
+        int tileCount = columns * rows;
+        int changedCount = 0;
+        if (hasBase && !full) {
+            for (int i = 0; i < tileCount; ++i) {
+                if (nextHashes[i] != hashes[i] || !isTileUnchanged(pixels, i)) {
+                    changedTiles[changedCount++] = i;
+                }
+            }
+            full = (long) changedCount * 100 > (long) tileCount * thresholdPercent;
+        }
+        full |= !hasBase;
+
+        int newSeq = seq + 1 == NO_BASE ? 0 : seq + 1;
+        writeHeader(out, newSeq, full ? NO_BASE : seq);
+        if (full) {
+            out.putInt(0);
+            lz4.compressFramed(pixels, width * 4 * height, out);
+        } else {
+            out.putInt(changedCount);
+            int size = 0;
+            for (int i = 0; i < changedCount; ++i) {
+                int tile = changedTiles[i];
+                out.putShort((short) (tile % columns));
+                out.putShort((short) (tile / columns));
+                size = copyTile(pixels, tile, size);
+            }
+            lz4.compressFramed(tilePixels, size, out);
+        }
+
+        // the unchanged tiles are identical to the base, only the changed ones are copied
+        if (full) {
+            System.arraycopy(pixels, 0, basePixels, 0, width * 4 * height);
+        } else {
+            for (int i = 0; i < changedCount; ++i) {
+                copyTileToBase(pixels, changedTiles[i]);
+            }
+        }
+        long[] tmp = hashes;
+        hashes = nextHashes;
+        nextHashes = tmp;
+        seq = newSeq;
+    }
+
+    /**
+     * Encode a delta without change, if no new frame is available.
+     *
+     * @return {@code false} if there is no base
+     */
+    boolean encodeUnchanged(ByteBuffer out) {
+        if (seq == NO_BASE) {
+            return false;
+        }
+        int newSeq = seq + 1 == NO_BASE ? 0 : seq + 1;
+        writeHeader(out, newSeq, seq);
+        out.putInt(0);
+        lz4.compressFramed(tilePixels, 0, out);
+        seq = newSeq;
+        return true;
+    }
+
+    void reset() {
+        seq = NO_BASE;
+    }
+
+    private void writeHeader(ByteBuffer out, int frameSeq, int baseSeq) {
+        out.putInt(width);
+        out.putInt(height);
+        out.putShort((short) tileSize);
+        out.putInt(frameSeq);
+        out.putInt(baseSeq);
+    }
+
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + tileSize - 1) / tileSize;
+        rows = (height + tileSize - 1) / tileSize;
+        int tileCount = columns * rows;
+        hashes = new long[tileCount];
+        nextHashes = new long[tileCount];
+        changedTiles = new int[tileCount];
+        basePixels = new byte[width * 4 * height];
+        // the tiles are sent as a delta only up to the threshold
+        tilePixels = new byte[tileSize * 4 * tileSize * (int) ((long) tileCount * thresholdPercent / 100)];
+    }
+
+    private void computeHashes(byte[] pixels) {
+        Arrays.fill(nextHashes, PRIME2);
+        ByteBuffer buffer = ByteBuffer.wrap(pixels).order(ByteOrder.LITTLE_ENDIAN);
+        int rowSize = width * 4;
+        int tileRowSize = tileSize * 4;
+        for (int y = 0; y < height; ++y) {
+            int rowStart = y * rowSize;
+            int tile = (y / tileSize) * columns;
+            for (int x = 0; x < rowSize; x += tileRowSize, ++tile) {
+                int i = rowStart + x;
+                int end = rowStart + Math.min(x + tileRowSize, rowSize);
+                long h = nextHashes[tile];
+                for (; i + 8 <= end; i += 8) {
+                    h = mix(h, buffer.getLong(i));
+                }
+                if (i < end) {
+                    // odd number of pixels
+                    h = mix(h, buffer.getInt(i));
+                }
+                nextHashes[tile] = h;
+            }
+        }
+    }
+
+    static long mix(long h, long value) {
+        return Long.rotateLeft(h ^ value * PRIME2, 31) * PRIME1;
+    }
+
+    private boolean isTileUnchanged(byte[] pixels, int tile) {
+        int rowSize = width * 4;
+        int x = (tile % columns) * tileSize * 4;
+        int y = (tile / columns) * tileSize;
+        int tileRowSize = Math.min(tileSize * 4, rowSize - x);
+        int endY = Math.min(y + tileSize, height);
+        for (; y < endY; ++y) {
+            int start = y * rowSize + x;
+            int end = start + tileRowSize;
+            for (int i = start; i < end; ++i) {
+                if (pixels[i] != basePixels[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void copyTileToBase(byte[] pixels, int tile) {
+        int rowSize = width * 4;
+        int x = (tile % columns) * tileSize * 4;
+        int y = (tile / columns) * tileSize;
+        int tileRowSize = Math.min(tileSize * 4, rowSize - x);
+        int endY = Math.min(y + tileSize, height);
+        for (; y < endY; ++y) {
+            System.arraycopy(pixels, y * rowSize + x, basePixels, y * rowSize + x, tileRowSize);
+        }
+    }
+
+    private int copyTile(byte[] pixels, int tile, int pos) {
+        int rowSize = width * 4;
+        int x = (tile % columns) * tileSize * 4;
+        int y = (tile / columns) * tileSize;
+        int tileRowSize = Math.min(tileSize * 4, rowSize - x);
+        int endY = Math.min(y + tileSize, height);
+        for (; y < endY; ++y) {
+            System.arraycopy(pixels, y * rowSize + x, tilePixels, pos, tileRowSize);
+            pos += tileRowSize;
+        }
+        return pos;
+    }
+}
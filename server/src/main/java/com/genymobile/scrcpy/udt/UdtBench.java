@@ -0,0 +1,301 @@
+package com.genymobile.scrcpy.udt;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.PixelFormat;
+import android.os.Build;
+import android.os.Debug;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import com.genymobile.scrcpy.IO;
+
+import org.libjpegturbo.turbojpeg.TJException;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Micro-benchmarks to run on the device:
+ * <pre>
+ * adb push scrcpy-server /data/local/tmp/scrcpy-server.jar
+ * adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar app_process / com.genymobile.scrcpy.udt.UdtBench io [packets] [packet_size]
+ * adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar app_process / com.genymobile.scrcpy.udt.UdtBench jpeg [frames] [width] [height]
+ * adb shell screencap -p /data/local/tmp/screen.png
+ * adb shell CLASSPATH=/data/local/tmp/scrcpy-server.jar app_process / com.genymobile.scrcpy.udt.UdtBench formats [frames] [png_file]
+ * </pre>
+ */
+public final class UdtBench {
+
+    private static final int FRAME_META_SIZE = 12;
+
+    // typical throughputs of the links, in bytes per ms, to estimate the capture latency of each format
+    private static final String[] LINK_NAMES = {"usb2", "usb3", "wifi"};
+    private static final int[] LINK_BYTES_PER_MS = {30_000, 200_000, 5_000};
+
+    private UdtBench() {
+        // not instantiable
+    }
+
+    public static void main(String... args) throws Exception {
+        String name = args.length > 0 ? args[0] : "";
+        switch (name) {
+            case "io":
+                int packets = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+                int packetSize = args.length > 2 ? Integer.parseInt(args[2]) : 32 * 1024;
+                benchIo(packets, packetSize);
+                break;
+            case "jpeg":
+                int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+                int width = args.length > 2 ? Integer.parseInt(args[2]) : 1080;
+                int height = args.length > 3 ? Integer.parseInt(args[3]) : 1920;
+                benchJpeg(frames, width, height);
+                break;
+            case "formats":
+                int captures = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                benchFormats(captures, args.length > 2 ? args[2] : null);
+                break;
+            default:
+                System.out.println("Usage: UdtBench io [packets] [packet_size] | jpeg [frames] [width] [height] | formats [frames] [png_file]");
+                break;
+        }
+    }
+
+    /**
+     * Compare the write syscalls needed to send video packets with frame meta: header and payload written separately (as before) or
+     * gathered in a single writev().
+     */
+    private static void benchIo(int packets, int packetSize) throws IOException, ErrnoException, InterruptedException {
+        FileDescriptor writeFd = new FileDescriptor();
+        FileDescriptor readFd = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_STREAM, 0, writeFd, readFd);
+        Thread drain = startDrain(readFd);
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_META_SIZE);
+        // codec output buffers are direct
+        ByteBuffer payload = ByteBuffer.allocateDirect(packetSize);
+
+        try {
+            for (int pass = 0; pass < 2; ++pass) {
+                boolean gather = pass == 1;
+                long syscw = readWriteSyscalls();
+                long start = System.nanoTime();
+                for (int i = 0; i < packets; ++i) {
+                    header.clear();
+                    header.putLong(i);
+                    header.putInt(packetSize);
+                    header.flip();
+                    payload.clear();
+                    if (gather) {
+                        IO.writeFully(writeFd, header, payload);
+                    } else {
+                        IO.writeFully(writeFd, header);
+                        IO.writeFully(writeFd, payload);
+                    }
+                }
+                long elapsedUs = (System.nanoTime() - start) / 1000;
+                long syscalls = readWriteSyscalls() - syscw;
+                System.out.println(String.format(Locale.ENGLISH, "%-9s packets=%d size=%d write syscalls=%d (%.2f/packet) time=%dus (%.2fus/packet)",
+                        gather ? "writev" : "write x2", packets, packetSize, syscalls, (float) syscalls / packets, elapsedUs,
+                        (float) elapsedUs / packets));
+            }
+        } finally {
+            Os.close(writeFd);
+            drain.join();
+            Os.close(readFd);
+        }
+    }
+
+    /**
+     * Compare the allocations and the garbage collections per capture of the JPEG encoding: with the buffers allocated for each frame
+     * (as before) or reused across the frames of the same size, then with the strips encoded concurrently (one per core).
+     */
+    @SuppressWarnings("deprecation")
+    private static void benchJpeg(int frames, int width, int height) throws TJException {
+        int rowStride = width * 4;
+        // image planes are direct buffers
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * height);
+        for (int i = 0; plane.hasRemaining(); ++i) {
+            // not uniform, so that the compression does some work
+            plane.put((byte) (i * 31 + (i / rowStride) * 7));
+        }
+
+        JpgEncoder encoder = new JpgEncoder();
+        try {
+            for (int pass = 0; pass < 3; ++pass) {
+                boolean reuse = pass >= 1;
+                boolean parallel = pass == 2;
+                encoder.free();
+                encoder.setMaxThreads(parallel ? 0 : 1);
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                long gcCount = readGcCount();
+                long start = System.nanoTime();
+                long compressed = 0;
+                for (int i = 0; i < frames; ++i) {
+                    if (!reuse) {
+                        // the buffers are allocated again for each frame
+                        encoder.releaseBuffers();
+                    }
+                    plane.clear();
+                    JpgEncoder.JpgData data = encoder.encode(plane, width, height, rowStride, PixelFormat.RGBA_8888, 80);
+                    compressed += data.size;
+                    data.release();
+                }
+                long elapsedUs = (System.nanoTime() - start) / 1000;
+                Debug.stopAllocCounting();
+                int allocs = Debug.getThreadAllocCount();
+                long allocBytes = Debug.getThreadAllocSize();
+                long gcs = gcCount >= 0 ? readGcCount() - gcCount : -1;
+                String mode = parallel ? "strips" : reuse ? "reuse" : "alloc";
+                System.out.println(String.format(Locale.ENGLISH, "%-6s frames=%d size=%dx%d allocs/capture=%.1f bytes/capture=%d gcs=%d "
+                        + "(%.2f/capture) time=%.2fms/capture jpeg=%d bytes/capture", mode, frames, width, height,
+                        (float) allocs / frames, allocBytes / frames, gcs, (float) gcs / frames, elapsedUs / 1000f / frames,
+                        compressed / frames));
+            }
+        } finally {
+            encoder.free();
+        }
+    }
+
+    /**
+     * Print the size and the encoding time of a capture in each format, and the estimated latency (encoding and transfer) on typical
+     * links, to choose the format for a device and a link.
+     *
+     * @param path a screenshot of the device (for representative content), or {@code null} for a synthetic UI-like image
+     */
+    private static void benchFormats(int frames, String path) throws TJException {
+        int width;
+        int height;
+        ByteBuffer plane;
+        if (path != null) {
+            Bitmap bitmap = BitmapFactory.decodeFile(path);
+            if (bitmap == null) {
+                System.out.println("Could not decode " + path);
+                return;
+            }
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+            plane = ByteBuffer.allocateDirect(width * 4 * height);
+            bitmap.copyPixelsToBuffer(plane);
+            bitmap.recycle();
+        } else {
+            width = 1080;
+            height = 1920;
+            plane = ByteBuffer.allocateDirect(width * 4 * height);
+            for (int i = 0; plane.hasRemaining(); ++i) {
+                int y = i / (width * 4);
+                // flat bands, with a row of "text" every 8 rows
+                boolean text = y % 8 == 0 && (i / 4) % width < width / 2;
+                plane.put(i % 4 == 3 ? (byte) 0xFF : (byte) (text ? i * 31 : y / 64 * 40));
+            }
+        }
+
+        JpgEncoder jpgEncoder = new JpgEncoder();
+        CaptureEncoder captureEncoder = new CaptureEncoder();
+        int rawSize = width * 4 * height;
+        System.out.println(String.format(Locale.ENGLISH, "size=%dx%d raw=%d bytes frames=%d", width, height, rawSize, frames));
+        StringBuilder header = new StringBuilder(String.format(Locale.ENGLISH, "%-9s %10s %7s %10s", "format", "bytes", "ratio", "encode_ms"));
+        for (String link : LINK_NAMES) {
+            header.append(String.format(Locale.ENGLISH, " %10s", link + "_ms"));
+        }
+        System.out.println(header);
+        int[] bestFormats = new int[LINK_NAMES.length];
+        float[] bestLatencies = new float[LINK_NAMES.length];
+        try {
+            for (int format = CaptureEncoder.FORMAT_JPEG; format <= CaptureEncoder.FORMAT_WEBP; ++format) {
+                long size = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < frames; ++i) {
+                    plane.clear();
+                    JpgEncoder.JpgData data;
+                    if (format == CaptureEncoder.FORMAT_JPEG) {
+                        data = jpgEncoder.encode(plane, width, height, width * 4, PixelFormat.RGBA_8888, 80);
+                    } else {
+                        data = captureEncoder.encode(plane, width, height, width * 4, format);
+                    }
+                    size += data.size;
+                    data.release();
+                }
+                float encodeMs = (System.nanoTime() - start) / 1_000_000f / frames;
+                size /= frames;
+                StringBuilder line = new StringBuilder(String.format(Locale.ENGLISH, "%-9s %10d %7.2f %10.2f",
+                        CaptureEncoder.getName(format), size, (float) rawSize / size, encodeMs));
+                for (int l = 0; l < LINK_NAMES.length; ++l) {
+                    float latency = encodeMs + (float) size / LINK_BYTES_PER_MS[l];
+                    line.append(String.format(Locale.ENGLISH, " %10.2f", latency));
+                    // JPEG is lossy: the best pixel-exact format is reported
+                    if (format != CaptureEncoder.FORMAT_JPEG && (bestLatencies[l] == 0 || latency < bestLatencies[l])) {
+                        bestLatencies[l] = latency;
+                        bestFormats[l] = format;
+                    }
+                }
+                System.out.println(line);
+            }
+        } finally {
+            jpgEncoder.free();
+            captureEncoder.free();
+        }
+        for (int l = 0; l < LINK_NAMES.length; ++l) {
+            System.out.println(String.format(Locale.ENGLISH, "best pixel-exact format on %s (%d MB/s): %s", LINK_NAMES[l],
+                    LINK_BYTES_PER_MS[l] / 1000, CaptureEncoder.getName(bestFormats[l])));
+        }
+    }
+
+    /**
+     * Return the number of garbage collections so far, or -1 if not available.
+     */
+    private static long readGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat("art.gc.gc-count");
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Thread startDrain(final FileDescriptor fd) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[256 * 1024];
+                try {
+                    while (Os.read(fd, buffer, 0, buffer.length) > 0) {
+                        // discard
+                    }
+                } catch (ErrnoException | IOException e) {
+                    UdtLn.e("drain stopped: " + e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Return the number of write syscalls (write, writev...) issued so far by the current thread, or -1 if not available.
+     */
+    private static long readWriteSyscalls() {
+        String path = "/proc/self/task/" + android.os.Process.myTid() + "/io";
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring("syscw:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            UdtLn.w("could not read " + path + ": " + e);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,164 @@
+package com.genymobile.scrcpy.udt;
+
+/**
+ * Server-side adaptive bitrate, driven by the congestion of the video sockets.
+ * <p>
+ * Every {@link #INTERVAL_MS}, the controller looks at the bytes waiting in the send queues, the time spent in the last socket
+ * writes and the actual encoder output rate:
+ * <ul>
+ *     <li>if the queue holds more than {@link #MAX_QUEUE_DELAY_MS} of video or a write blocked more than
+ *     {@link #MAX_SEND_LATENCY_MS}, the bitrate is decreased multiplicatively;</li>
+ *     <li>after {@link #STABLE_INTERVALS} uncongested intervals, the bitrate is increased by a step, but only if the encoder
+ *     actually uses the current bitrate (a static screen proves nothing about the link capacity).</li>
+ * </ul>
+ * This class only takes the decisions, it does not touch the codec (so that it can be unit tested).
+ */
+public final class UdtBitrateController {
+
+    public static final byte REASON_CONGESTION = 1;
+    public static final byte REASON_PROBE = 2;
+
+    static final long INTERVAL_MS = 500;
+    static final int MAX_QUEUE_DELAY_MS = 250;
+    static final int MAX_SEND_LATENCY_MS = 100;
+    static final int STABLE_INTERVALS = 4;
+    // let the queue drain before decreasing again
+    static final long DECREASE_HOLD_MS = 1000;
+
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final float INCREASE_FACTOR = 1.1f;
+
+    public static final class Decision {
+        private final int bitRate;
+        private final int previousBitRate;
+        private final byte reason;
+        private final int queuedBytes;
+        private final int sendLatencyMs;
+        private final int outputBitRate;
+
+        Decision(int bitRate, int previousBitRate, byte reason, int queuedBytes, int sendLatencyMs, int outputBitRate) {
+            this.bitRate = bitRate;
+            this.previousBitRate = previousBitRate;
+            this.reason = reason;
+            this.queuedBytes = queuedBytes;
+            this.sendLatencyMs = sendLatencyMs;
+            this.outputBitRate = outputBitRate;
+        }
+
+        public int getBitRate() {
+            return bitRate;
+        }
+
+        public int getPreviousBitRate() {
+            return previousBitRate;
+        }
+
+        public byte getReason() {
+            return reason;
+        }
+
+        public int getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        public int getSendLatencyMs() {
+            return sendLatencyMs;
+        }
+
+        public int getOutputBitRate() {
+            return outputBitRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{bitRate=" + previousBitRate + "->" + bitRate + ", reason=" + (reason == REASON_CONGESTION ? "congestion" : "probe")
+                    + ", queued=" + queuedBytes + ", sendLatency=" + sendLatencyMs + "ms, output=" + outputBitRate + "}";
+        }
+    }
+
+    private final int minBitRate;
+    private int maxBitRate;
+    private int bitRate;
+
+    private long windowStart = -1;
+    private long windowBytes;
+    private int stableIntervals;
+    private long lastDecreaseTime = -1;
+
+    public UdtBitrateController(int bitRate, int minBitRate, int maxBitRate) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = Math.max(minBitRate, maxBitRate);
+        this.bitRate = clamp(bitRate);
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitRate, Math.min(maxBitRate, value));
+    }
+
+    public synchronized int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * The client set the bitrate explicitly: it becomes the new upper bound.
+     */
+    public synchronized void setMaxBitRate(int value) {
+        maxBitRate = Math.max(minBitRate, value);
+        bitRate = maxBitRate;
+        stableIntervals = 0;
+    }
+
+    /**
+     * Account an encoder output buffer.
+     */
+    public synchronized void onOutput(int size, long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+        }
+        windowBytes += size;
+    }
+
+    public synchronized boolean isDue(long now) {
+        return windowStart >= 0 && now - windowStart >= INTERVAL_MS;
+    }
+
+    /**
+     * Close the current interval and decide the new bitrate.
+     *
+     * @param queuedBytes   the bytes waiting in the most congested send queue
+     * @param sendLatencyMs the longest socket write during the interval
+     * @return the decision, or {@code null} if the bitrate does not change
+     */
+    public synchronized Decision evaluate(long now, int queuedBytes, int sendLatencyMs) {
+        long elapsed = Math.max(1, now - windowStart);
+        int outputBitRate = (int) (windowBytes * 8 * 1000 / elapsed);
+        windowStart = now;
+        windowBytes = 0;
+
+        int queueDelayMs = (int) ((long) queuedBytes * 8 * 1000 / bitRate);
+        int target = bitRate;
+        byte reason;
+        if (queueDelayMs > MAX_QUEUE_DELAY_MS || sendLatencyMs > MAX_SEND_LATENCY_MS) {
+            stableIntervals = 0;
+            if (lastDecreaseTime >= 0 && now - lastDecreaseTime < DECREASE_HOLD_MS) {
+                return null;
+            }
+            lastDecreaseTime = now;
+            target = clamp((int) (bitRate * DECREASE_FACTOR));
+            reason = REASON_CONGESTION;
+        } else {
+            if (++stableIntervals < STABLE_INTERVALS || outputBitRate < bitRate / 2) {
+                return null;
+            }
+            stableIntervals = 0;
+            target = clamp((int) (bitRate * INCREASE_FACTOR));
+            reason = REASON_PROBE;
+        }
+        if (target == bitRate) {
+            return null;
+        }
+        Decision decision = new Decision(target, bitRate, reason, queuedBytes, sendLatencyMs, outputBitRate);
+        bitRate = target;
+        return decision;
+    }
+}
@@ -0,0 +1,488 @@
+package com.genymobile.scrcpy.udt;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import com.genymobile.scrcpy.VideoCodec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the video encoder capabilities, so that a session does not walk {@link MediaCodecList} (nor let
+ * {@code createEncoderByType()} probe the vendor encoders) on every start.
+ * <p>
+ * The cache is keyed by the build fingerprint: it is rebuilt after an OS update.
+ * <p>
+ * A fallback configuration (downsized or another encoder) is only offered to the next sessions once it has been needed by
+ * {@link #FALLBACK_CONFIRMATIONS} sessions in a row, so that a transient failure (a vendor session limit, a bad crop) is not
+ * remembered; it is dropped as soon as the requested configuration works again.
+ */
+public final class UdtCodecCache {
+
+    public static final class EncoderInfo {
+        private final String name;
+        private final String mimeType;
+        private final boolean hardware;
+        private final int[] profiles;
+        private final int[] levels; // the level of each profile
+        private final int maxWidth; // 0 if unknown
+        private final int maxHeight; // 0 if unknown
+        private final List<String> bitrateModes;
+        private final boolean intraRefresh;
+
+        EncoderInfo(String name, String mimeType, boolean hardware, int[] profiles, int[] levels, int maxWidth, int maxHeight,
+                List<String> bitrateModes, boolean intraRefresh) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.hardware = hardware;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.bitrateModes = bitrateModes;
+            this.intraRefresh = intraRefresh;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public boolean isHardware() {
+            return hardware;
+        }
+
+        /**
+         * Return the highest level supported for the profile, or 0 if the profile is not supported.
+         */
+        public int getMaxLevel(int profile) {
+            int level = 0;
+            for (int i = 0; i < profiles.length; ++i) {
+                if (profiles[i] == profile) {
+                    level = Math.max(level, levels[i]);
+                }
+            }
+            return level;
+        }
+
+        public int getMaxWidth() {
+            return maxWidth;
+        }
+
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        public boolean supportsBitrateMode(String mode) {
+            return bitrateModes.contains(mode);
+        }
+
+        public boolean supportsIntraRefresh() {
+            return intraRefresh;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("mime", mimeType);
+            json.put("hardware", hardware);
+            JSONArray profileArray = new JSONArray();
+            for (int i = 0; i < profiles.length; ++i) {
+                profileArray.put(new JSONArray().put(profiles[i]).put(levels[i]));
+            }
+            json.put("profiles", profileArray);
+            json.put("max_width", maxWidth);
+            json.put("max_height", maxHeight);
+            json.put("bitrate_modes", new JSONArray(bitrateModes));
+            json.put("intra_refresh", intraRefresh);
+            return json;
+        }
+
+        static EncoderInfo fromJson(JSONObject json) throws JSONException {
+            JSONArray profileArray = json.getJSONArray("profiles");
+            int[] profiles = new int[profileArray.length()];
+            int[] levels = new int[profiles.length];
+            for (int i = 0; i < profiles.length; ++i) {
+                JSONArray profileLevel = profileArray.getJSONArray(i);
+                profiles[i] = profileLevel.getInt(0);
+                levels[i] = profileLevel.getInt(1);
+            }
+            JSONArray modeArray = json.getJSONArray("bitrate_modes");
+            List<String> bitrateModes = new ArrayList<>();
+            for (int i = 0; i < modeArray.length(); ++i) {
+                bitrateModes.add(modeArray.getString(i));
+            }
+            return new EncoderInfo(json.getString("name"), json.getString("mime"), json.getBoolean("hardware"), profiles, levels,
+                    json.getInt("max_width"), json.getInt("max_height"), bitrateModes, json.getBoolean("intra_refresh"));
+        }
+    }
+
+    public static final String BITRATE_MODE_CQ = "cq";
+    public static final String BITRATE_MODE_VBR = "vbr";
+    public static final String BITRATE_MODE_CBR = "cbr";
+
+    /**
+     * A configuration which worked after the requested one failed.
+     */
+    public static final class Fallback {
+        private final String encoder;
+        private final int maxSize;
+
+        Fallback(String encoder, int maxSize) {
+            this.encoder = encoder;
+            this.maxSize = maxSize;
+        }
+
+        public String getEncoder() {
+            return encoder;
+        }
+
+        /**
+         * @return the max size the fallback stepped down to, 0 if not downsized
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+    }
+
+    static final int FALLBACK_CONFIRMATIONS = 3;
+
+    private static final String CACHE_FILE = "/data/local/tmp/udt/encoders.json";
+    private static final int VERSION = 4;
+
+    private static List<EncoderInfo> sEncoders;
+    // known-good requested configuration by mime type: {"encoder": name, "width": w, "height": h}
+    private static Map<String, JSONObject> sKnownGood;
+    // fallback configuration by mime type: {"encoder": name, "max_size": downsized max size or 0, "count": consecutive sessions}
+    private static Map<String, JSONObject> sFallbacks;
+
+    private UdtCodecCache() {
+        // not instantiable
+    }
+
+    /**
+     * Return the encoders supporting the mime type, from the cache if it is valid for the current build.
+     */
+    public static synchronized List<EncoderInfo> getEncoders(String mimeType) {
+        load();
+        List<EncoderInfo> result = new ArrayList<>();
+        for (EncoderInfo info : sEncoders) {
+            if (info.mimeType.equals(mimeType)) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the capabilities of the encoder for the mime type, or {@code null} if it is not in the cache.
+     */
+    public static synchronized EncoderInfo getEncoder(String name, String mimeType) {
+        load();
+        for (EncoderInfo info : sEncoders) {
+            if (info.name.equals(name) && info.mimeType.equals(mimeType)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the max size fitting a video of {@code width}x{@code height} into the max size supported by an encoder (in either
+     * orientation), or 0 if it already fits or if the supported size is unknown.
+     */
+    public static int fitMaxSize(int width, int height, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return 0;
+        }
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        int maxLongSide = Math.max(maxWidth, maxHeight);
+        int maxShortSide = Math.min(maxWidth, maxHeight);
+        if (longSide <= maxLongSide && shortSide <= maxShortSide) {
+            return 0;
+        }
+        long fitted = Math.min(maxLongSide, (long) maxShortSide * longSide / shortSide);
+        // the video dimensions are multiples of 8
+        return (int) fitted & ~7;
+    }
+
+    /**
+     * Return the names of the encoders supporting the mime type, from the cache if it is valid for the current build.
+     */
+    public static synchronized String[] getEncoderNames(String mimeType) {
+        List<EncoderInfo> encoders = getEncoders(mimeType);
+        String[] names = new String[encoders.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = encoders.get(i).name;
+        }
+        return names;
+    }
+
+    /**
+     * Return the name of the last encoder successfully configured for the mime type on this build, or {@code null}.
+     */
+    public static synchronized String getKnownGoodEncoder(String mimeType) {
+        load();
+        JSONObject config = sKnownGood.get(mimeType);
+        return config != null ? config.optString("encoder", null) : null;
+    }
+
+    /**
+     * Return the fallback configuration confirmed by the last sessions on this build, or {@code null}.
+     */
+    public static synchronized Fallback getFallback(String mimeType) {
+        load();
+        JSONObject config = sFallbacks.get(mimeType);
+        if (config == null || config.optInt("count") < FALLBACK_CONFIRMATIONS) {
+            return null;
+        }
+        return new Fallback(config.optString("encoder"), config.optInt("max_size"));
+    }
+
+    /**
+     * Remember the requested encoder configuration as working, to be used first by the next sessions. Any saved fallback is
+     * dropped.
+     */
+    public static synchronized void onEncoderConfigured(String mimeType, String encoderName, int width, int height) {
+        load();
+        JSONObject previous = sKnownGood.get(mimeType);
+        boolean fallback = sFallbacks.remove(mimeType) != null;
+        if (!fallback && previous != null && encoderName.equals(previous.optString("encoder")) && previous.optInt("width") == width
+                && previous.optInt("height") == height) {
+            return;
+        }
+        try {
+            JSONObject config = new JSONObject();
+            config.put("encoder", encoderName);
+            config.put("width", width);
+            config.put("height", height);
+            sKnownGood.put(mimeType, config);
+        } catch (JSONException e) {
+            UdtLn.e("codec cache: could not store configuration", e);
+            return;
+        }
+        save();
+    }
+
+    /**
+     * Count a session which needed a fallback configuration: it is offered to the next sessions once confirmed.
+     *
+     * @param maxSize the max size the encoder fallback stepped down to, 0 if not downsized
+     */
+    public static synchronized void onFallbackConfigured(String mimeType, String encoderName, int maxSize) {
+        load();
+        JSONObject previous = sFallbacks.get(mimeType);
+        int count = 1;
+        if (previous != null && encoderName.equals(previous.optString("encoder")) && previous.optInt("max_size") == maxSize) {
+            if (previous.optInt("count") >= FALLBACK_CONFIRMATIONS) {
+                return;
+            }
+            count = previous.optInt("count") + 1;
+        }
+        try {
+            JSONObject config = new JSONObject();
+            config.put("encoder", encoderName);
+            config.put("max_size", maxSize);
+            config.put("count", count);
+            sFallbacks.put(mimeType, config);
+        } catch (JSONException e) {
+            UdtLn.e("codec cache: could not store fallback", e);
+            return;
+        }
+        UdtLn.i("codec cache: fallback " + encoderName + " -m" + maxSize + " needed by " + count + " session(s)");
+        save();
+    }
+
+    private static void load() {
+        if (sEncoders != null) {
+            return;
+        }
+        sKnownGood = new HashMap<>();
+        sFallbacks = new HashMap<>();
+        if (UdtOption.sCodecCache && read()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        sEncoders = probe();
+        UdtLn.i("codec cache: probed " + sEncoders.size() + " video encoders in " + (System.currentTimeMillis() - start) + "ms");
+        save();
+    }
+
+    private static boolean read() {
+        File file = new File(CACHE_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int len = 0;
+            while (len < data.length) {
+                int r = in.read(data, len, data.length - len);
+                if (r == -1) {
+                    break;
+                }
+                len += r;
+            }
+            JSONObject json = new JSONObject(new String(data, 0, len, StandardCharsets.UTF_8));
+            if (json.optInt("version") != VERSION || !Build.FINGERPRINT.equals(json.optString("fingerprint"))) {
+                UdtLn.i("codec cache: invalidated (version or build fingerprint changed)");
+                return false;
+            }
+            JSONArray encoderArray = json.getJSONArray("encoders");
+            List<EncoderInfo> encoders = new ArrayList<>();
+            for (int i = 0; i < encoderArray.length(); ++i) {
+                encoders.add(EncoderInfo.fromJson(encoderArray.getJSONObject(i)));
+            }
+            readConfigs(json.getJSONObject("known_good"), sKnownGood);
+            readConfigs(json.getJSONObject("fallbacks"), sFallbacks);
+            sEncoders = encoders;
+            UdtLn.d("codec cache: loaded " + encoders.size() + " video encoders");
+            return true;
+        } catch (IOException | JSONException e) {
+            UdtLn.w("codec cache: could not read " + CACHE_FILE + ": " + e);
+            sKnownGood.clear();
+            sFallbacks.clear();
+            return false;
+        }
+    }
+
+    private static void readConfigs(JSONObject json, Map<String, JSONObject> configs) throws JSONException {
+        JSONArray mimeTypes = json.names();
+        if (mimeTypes != null) {
+            for (int i = 0; i < mimeTypes.length(); ++i) {
+                String mimeType = mimeTypes.getString(i);
+                configs.put(mimeType, json.getJSONObject(mimeType));
+            }
+        }
+    }
+
+    private static void save() {
+        if (!UdtOption.sCodecCache) {
+            return;
+        }
+        File file = new File(CACHE_FILE);
+        File tmp = new File(CACHE_FILE + ".tmp");
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("fingerprint", Build.FINGERPRINT);
+            JSONArray encoderArray = new JSONArray();
+            for (EncoderInfo info : sEncoders) {
+                encoderArray.put(info.toJson());
+            }
+            json.put("encoders", encoderArray);
+            json.put("known_good", new JSONObject(sKnownGood));
+            json.put("fallbacks", new JSONObject(sFallbacks));
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            // never leave a truncated cache
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp);
+            }
+        } catch (IOException | JSONException e) {
+            UdtLn.w("codec cache: could not write " + CACHE_FILE + ": " + e);
+        }
+    }
+
+    private static List<EncoderInfo> probe() {
+        List<String> mimeTypes = new ArrayList<>();
+        for (VideoCodec codec : VideoCodec.values()) {
+            mimeTypes.add(codec.getMimeType());
+        }
+
+        List<EncoderInfo> result = new ArrayList<>();
+        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : list.getCodecInfos()) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (!mimeTypes.contains(type)) {
+                    continue;
+                }
+                try {
+                    result.add(probe(codecInfo, type));
+                } catch (IllegalArgumentException e) {
+                    UdtLn.w("codec cache: could not probe " + codecInfo.getName() + " for " + type + ": " + e);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static EncoderInfo probe(MediaCodecInfo codecInfo, String mimeType) {
+        MediaCodecInfo.CodecCapabilities caps = codecInfo.getCapabilitiesForType(mimeType);
+
+        int[] profiles = new int[caps.profileLevels.length];
+        int[] levels = new int[profiles.length];
+        for (int i = 0; i < profiles.length; ++i) {
+            profiles[i] = caps.profileLevels[i].profile;
+            levels[i] = caps.profileLevels[i].level;
+        }
+
+        int maxWidth = 0;
+        int maxHeight = 0;
+        MediaCodecInfo.VideoCapabilities videoCaps = caps.getVideoCapabilities();
+        if (videoCaps != null) {
+            Range<Integer> widths = videoCaps.getSupportedWidths();
+            Range<Integer> heights = videoCaps.getSupportedHeights();
+            maxWidth = widths.getUpper();
+            maxHeight = heights.getUpper();
+        }
+
+        List<String> bitrateModes = new ArrayList<>();
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        if (encoderCaps != null) {
+            if (encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) {
+                bitrateModes.add(BITRATE_MODE_CQ);
+            }
+            if (encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+                bitrateModes.add(BITRATE_MODE_VBR);
+            }
+            if (encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+                bitrateModes.add(BITRATE_MODE_CBR);
+            }
+        }
+
+        boolean intraRefresh = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+
+        return new EncoderInfo(codecInfo.getName(), mimeType, isHardwareEncoder(codecInfo), profiles, levels, maxWidth, maxHeight,
+                bitrateModes, intraRefresh);
+    }
+
+    private static boolean isHardwareEncoder(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+        String name = codecInfo.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+}
@@ -1,6 +1,7 @@
 package com.genymobile.scrcpy.udt;
 
 import android.content.pm.PackageInfo;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.LocaleList;
 import android.os.RemoteException;
@@ -88,7 +89,10 @@ public class UdtController {
                 onTick(connection, System.currentTimeMillis());
                 return true;
             case UdtControlMessage.TYPE_CAPTURE_DEVICE:
-                captureScreen(udtMsg.getCapHeight(), udtMsg.getCapQuality());
+                captureScreen(udtMsg.getCapHeight(), udtMsg.getCapQuality(), udtMsg.getCapFormat());
+                return true;
+            case UdtControlMessage.TYPE_CAPTURE_REGIONS:
+                captureRegions(udtMsg.getCapRegions(), udtMsg.getCapQuality(), udtMsg.getCapFormat());
                 return true;
             case UdtControlMessage.TYPE_PAUSE_VIDEO:
             case UdtControlMessage.TYPE_RESUME_VIDEO:
@@ -110,6 +114,14 @@ public class UdtController {
             case UdtControlMessage.TYPE_GET_SCREEN_INFO:
                 getScreenInfo();
                 return true;
+            case UdtControlMessage.TYPE_GET_VIDEO_STATS:
+                getVideoStats();
+                return true;
+            case UdtControlMessage.TYPE_SET_VIDEO_CONFIG:
+                device.setVideoConfig(udtMsg);
+                // the client must know the new video size to map its input events
+                getScreenInfo();
+                return true;
             default:
                 UdtLn.e("unknown udt control msg, type = " + udtMsg.getType());
                 return false;
@@ -135,16 +147,29 @@ public class UdtController {
         return thread;
     }
 
-    private void captureScreen(int height, int quality) {
-        UdtLn.i("capture screen by height: " + height + ", quality" + quality);
+    private void captureScreen(int height, int quality, int format) {
+        UdtLn.i("capture screen by height: " + height + ", quality" + quality + ", format: " + CaptureEncoder.getName(format));
         if (screenCapture == null) {
             screenCapture = new ScreenCapture(connection.getCtrlSocket().getFileDescriptor().hashCode());
         }
-        screenCapture.capture(height, quality, options,
+        screenCapture.capture(height, quality, format, options,
                 new ScreenCapture.OnImageAvailableListener() {
             @Override
-            public void onImageAvailable(byte[] bitmap, int size) {
-                udtSender.pushCaptureImage(bitmap, size);
+            public void onImageAvailable(JpgEncoder.JpgData image) {
+                udtSender.pushCaptureImage(image);
+            }
+        });
+    }
+
+    private void captureRegions(int[] regions, int quality, int format) {
+        UdtLn.i("capture " + regions.length / 4 + " regions, quality" + quality + ", format: " + CaptureEncoder.getName(format));
+        if (screenCapture == null) {
+            screenCapture = new ScreenCapture(connection.getCtrlSocket().getFileDescriptor().hashCode());
+        }
+        screenCapture.captureRegions(regions, quality, format, options, new RegionCapture.OnRegionsAvailableListener() {
+            @Override
+            public void onRegionsAvailable(int format, Rect[] regions, JpgEncoder.JpgData[] images) {
+                udtSender.pushCaptureRegions(format, regions, images);
             }
         });
     }
@@ -202,6 +227,12 @@ public class UdtController {
         udtSender.pushScreenInfo(info);
     }
 
+    private void getVideoStats() {
+        UdtVideoHub.VideoStats stats = UdtVideoHub.getVideoStats(options.getDisplayId());
+        UdtLn.i("get video stats: " + stats);
+        udtSender.pushVideoStats(stats);
+    }
+
     private static class RotationWatcher extends IRotationWatcher.Stub {
         private final WeakReference<UdtController> udtControllerRef;
 
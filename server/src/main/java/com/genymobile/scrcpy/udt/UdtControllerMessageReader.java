@@ -1,6 +1,9 @@
 package com.genymobile.scrcpy.udt;
 
+import android.graphics.Rect;
+
 import java.nio.ByteBuffer;
+
 public class UdtControllerMessageReader {
     public static class UdtControlMessage {
         public static final int TYPE_REQ_IDR        = 100;
@@ -14,12 +17,26 @@ public class UdtControllerMessageReader {
         public static final int TYPE_GET_APPS       = 108;
         public static final int TYPE_GET_ROTATION   = 109;
         public static final int TYPE_GET_SCREEN_INFO = 110;
+        public static final int TYPE_SET_VIDEO_CONFIG = 111;
+        public static final int TYPE_GET_VIDEO_STATS = 112;
+        public static final int TYPE_CAPTURE_DEVICE_FORMAT = 113;
+        public static final int TYPE_CAPTURE_REGIONS = 114;
+
+        public static final int UNCHANGED = -1;
 
         private int type;
         private int bitRate;
         private int capHeight;
         private int capQuality = 80;
+        private int capFormat = CaptureEncoder.FORMAT_JPEG;
+        private int[] capRegions;
         private String locale;
+        private int maxSize = UNCHANGED;
+        private int maxFps = UNCHANGED;
+        private int cropWidth = UNCHANGED;
+        private int cropHeight;
+        private int cropX;
+        private int cropY;
 
         public UdtControlMessage() {
         }
@@ -57,11 +74,118 @@ public class UdtControllerMessageReader {
             return capQuality;
         }
 
+        /**
+         * @return one of the {@code CaptureEncoder.FORMAT_*} values
+         */
+        public int getCapFormat() {
+            return capFormat;
+        }
+
+        /**
+         * @return the bounds of the regions to capture, in device coordinates: 4 values (left, top, right, bottom) per region
+         */
+        public int[] getCapRegions() {
+            return capRegions;
+        }
+
+        public static UdtControlMessage createCaptureRegions(int quality, int format, int[] regions) {
+            UdtControlMessage msg = new UdtControlMessage();
+            msg.type = TYPE_CAPTURE_REGIONS;
+            msg.capQuality = quality;
+            msg.capFormat = format;
+            msg.capRegions = regions;
+            return msg;
+        }
+
         public static UdtControlMessage createCaptureDevice(int height, int quality) {
+            return createCaptureDevice(height, quality, CaptureEncoder.FORMAT_JPEG);
+        }
+
+        public static UdtControlMessage createCaptureDevice(int height, int quality, int format) {
             UdtControlMessage msg = new UdtControlMessage();
             msg.type = TYPE_CAPTURE_DEVICE;
             msg.capHeight = height;
             msg.capQuality = quality;
+            msg.capFormat = format;
+            return msg;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public int getMaxFps() {
+            return maxFps;
+        }
+
+        public boolean isCropChanged() {
+            return cropWidth != UNCHANGED;
+        }
+
+        public int getCropWidth() {
+            return cropWidth;
+        }
+
+        public int getCropHeight() {
+            return cropHeight;
+        }
+
+        public int getCropX() {
+            return cropX;
+        }
+
+        public int getCropY() {
+            return cropY;
+        }
+
+        /**
+         * @return the new crop, or {@code null} to disable cropping
+         */
+        public Rect getCrop() {
+            if (cropWidth <= 0 || cropHeight <= 0) {
+                return null;
+            }
+            return new Rect(cropX, cropY, cropX + cropWidth, cropY + cropHeight);
+        }
+
+        /**
+         * Check a {@link #TYPE_SET_VIDEO_CONFIG} message against the display.
+         *
+         * @param displayWidth  the width of the display, in its natural orientation
+         * @param displayHeight the height of the display, in its natural orientation
+         * @return the reason why the message is invalid, or {@code null} if it is valid
+         */
+        public String checkVideoConfig(int displayWidth, int displayHeight) {
+            if (maxSize < 0 && maxSize != UNCHANGED) {
+                return "invalid max size: " + maxSize;
+            }
+            if (maxFps < 0 && maxFps != UNCHANGED) {
+                return "invalid max fps: " + maxFps;
+            }
+            if (cropWidth == UNCHANGED || (cropWidth == 0 && cropHeight == 0 && cropX == 0 && cropY == 0)) {
+                // unchanged or disabled
+                return null;
+            }
+            if (cropWidth <= 0 || cropHeight <= 0 || cropX < 0 || cropY < 0 || cropWidth > displayWidth - cropX
+                    || cropHeight > displayHeight - cropY) {
+                return "invalid crop " + cropWidth + ":" + cropHeight + ":" + cropX + ":" + cropY + " for display " + displayWidth + "x"
+                        + displayHeight;
+            }
+            return null;
+        }
+
+        /**
+         * Each value is {@link #UNCHANGED} to keep the current one; 0 disables the limit (or the crop).
+         */
+        public static UdtControlMessage createSetVideoConfig(int maxSize, int maxFps, int cropWidth, int cropHeight, int cropX, int cropY) {
+            UdtControlMessage msg = new UdtControlMessage();
+            msg.type = TYPE_SET_VIDEO_CONFIG;
+            msg.maxSize = maxSize;
+            msg.maxFps = maxFps;
+            msg.cropWidth = cropWidth;
+            msg.cropHeight = cropHeight;
+            msg.cropX = cropX;
+            msg.cropY = cropY;
             return msg;
         }
 
@@ -79,6 +203,10 @@ public class UdtControllerMessageReader {
 
     static final int SET_BITRATE_LENGTH = 4;
     static final int CAPTURE_DEVICE_SCREEN_LENGTH = 5; // type: 1 byte; height: 2 bytes; quality: 2 bytes
+    static final int CAPTURE_DEVICE_FORMAT_LENGTH = 9; // height: 4 bytes; quality: 4 bytes; format: 1 byte
+    static final int CAPTURE_REGIONS_HEADER_LENGTH = 6; // quality: 4 bytes; format: 1 byte; count: 1 byte
+    static final int CAPTURE_REGION_LENGTH = 16; // x, y, width, height: 4 bytes each
+    static final int SET_VIDEO_CONFIG_LENGTH = 24; // max size, max fps, crop width, height, x, y: 4 bytes each
 
     public static UdtControlMessage parseUdtEvent(ByteBuffer buffer, int type, ParseCallBack parseCallBack) {
         switch(type) {
@@ -86,6 +214,12 @@ public class UdtControllerMessageReader {
                 return parseSetBitrate(buffer);
             case UdtControlMessage.TYPE_CAPTURE_DEVICE:
                 return parseCaptureDevice(buffer);
+            case UdtControlMessage.TYPE_CAPTURE_DEVICE_FORMAT:
+                return parseCaptureDeviceFormat(buffer);
+            case UdtControlMessage.TYPE_CAPTURE_REGIONS:
+                return parseCaptureRegions(buffer);
+            case UdtControlMessage.TYPE_SET_VIDEO_CONFIG:
+                return parseSetVideoConfig(buffer);
             case UdtControlMessage.TYPE_REQ_IDR:
             case UdtControlMessage.TYPE_HEARTBEAT:
             case UdtControlMessage.TYPE_PAUSE_VIDEO:
@@ -94,6 +228,7 @@ public class UdtControllerMessageReader {
             case UdtControlMessage.TYPE_GET_APPS:
             case UdtControlMessage.TYPE_GET_ROTATION:
             case UdtControlMessage.TYPE_GET_SCREEN_INFO:
+            case UdtControlMessage.TYPE_GET_VIDEO_STATS:
                 return UdtControlMessage.createEmpty(type);
             case UdtControlMessage.TYPE_SET_LOCALE:
                 return parseSetLocale(parseCallBack);
@@ -119,6 +254,63 @@ public class UdtControllerMessageReader {
         return UdtControlMessage.createCaptureDevice(height, quality);
     }
 
+    private static UdtControlMessage parseCaptureDeviceFormat(ByteBuffer buffer) {
+        if (buffer.remaining() < CAPTURE_DEVICE_FORMAT_LENGTH) {
+            return null;
+        }
+        int height = buffer.getInt();
+        int quality = buffer.getInt();
+        int format = buffer.get();
+        if (!CaptureEncoder.isSupported(format)) {
+            UdtLn.w("unsupported capture format " + format + ", use jpeg");
+            format = CaptureEncoder.FORMAT_JPEG;
+        }
+        return UdtControlMessage.createCaptureDevice(height, quality, format);
+    }
+
+    private static UdtControlMessage parseCaptureRegions(ByteBuffer buffer) {
+        if (buffer.remaining() < CAPTURE_REGIONS_HEADER_LENGTH) {
+            return null;
+        }
+        int count = buffer.get(buffer.position() + CAPTURE_REGIONS_HEADER_LENGTH - 1) & 0xFF;
+        if (buffer.remaining() < CAPTURE_REGIONS_HEADER_LENGTH + count * CAPTURE_REGION_LENGTH) {
+            return null;
+        }
+        int quality = buffer.getInt();
+        int format = buffer.get();
+        buffer.get(); // count
+        int[] regions = new int[4 * count];
+        for (int i = 0; i < regions.length; i += 4) {
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            regions[i] = x;
+            regions[i + 1] = y;
+            regions[i + 2] = x + width;
+            regions[i + 3] = y + height;
+        }
+        if (!CaptureEncoder.isSupported(format) || CaptureEncoder.isDelta(format)) {
+            // the deltas apply to full frames
+            UdtLn.w("unsupported region capture format " + format + ", use jpeg");
+            format = CaptureEncoder.FORMAT_JPEG;
+        }
+        return UdtControlMessage.createCaptureRegions(quality, format, regions);
+    }
+
+    private static UdtControlMessage parseSetVideoConfig(ByteBuffer buffer) {
+        if (buffer.remaining() < SET_VIDEO_CONFIG_LENGTH) {
+            return null;
+        }
+        int maxSize = buffer.getInt();
+        int maxFps = buffer.getInt();
+        int cropWidth = buffer.getInt();
+        int cropHeight = buffer.getInt();
+        int cropX = buffer.getInt();
+        int cropY = buffer.getInt();
+        return UdtControlMessage.createSetVideoConfig(maxSize, maxFps, cropWidth, cropHeight, cropX, cropY);
+    }
+
     private static UdtControlMessage parseSetLocale(ParseCallBack parseCallBack) {
         String newLocal = parseCallBack.onParseString();
         if (newLocal == null) {
@@ -1,18 +1,24 @@
 package com.genymobile.scrcpy.udt;
 
+import android.graphics.Rect;
+
 import com.genymobile.scrcpy.DesktopConnection;
 import com.genymobile.scrcpy.Device;
 import com.genymobile.scrcpy.Options;
 import com.genymobile.scrcpy.ScreenEncoder;
 import com.genymobile.scrcpy.ScreenInfo;
+import com.genymobile.scrcpy.Size;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class UdtDevice {
     private UdtController udtController;
     private UdtEncoder udtEncoder;
     private DesktopConnection connection;
     private Device device;
+    private int displayId;
     private Thread deviceMessageSenderThread;
 
     public static UdtDevice build(Device device,DesktopConnection connection, ScreenEncoder encoder, Options options) {
@@ -32,6 +38,7 @@ public class UdtDevice {
         connection.getReader().setUdtController(udtController);
 
         this.device = device;
+        this.displayId = options.getDisplayId();
         Combiner.bind(device, this);
 
         deviceMessageSenderThread = startUDtDeviceMessageSender(udtController.getUdtSender());
@@ -69,21 +76,89 @@ public class UdtDevice {
         return device.getScreenInfo();
     }
 
+    /*
+     * The control connection does not own the video encoders: they are shared by all the video clients of the display, so its
+     * requests go through the hubs, which arbitrate between the control clients.
+     */
+
     public void reqIDRFrame() {
         if (udtEncoder != null) {
             udtEncoder.onReqIDRFrame();
+            return;
+        }
+        for (UdtVideoHub hub : UdtVideoHub.getHubs(displayId)) {
+            hub.requestKeyFrame(this);
         }
     }
 
     public void setBitRate(int bitrate) {
         if (udtEncoder != null) {
             udtEncoder.onBitrateChanged(bitrate);
+            return;
+        }
+        for (UdtVideoHub hub : UdtVideoHub.getHubs(displayId)) {
+            hub.requestBitRate(this, bitrate);
         }
     }
 
     public void reqPauseVideo(boolean pause) {
         if (udtEncoder != null) {
             udtEncoder.onPauseVideo(pause);
+            return;
+        }
+        for (UdtVideoHub hub : UdtVideoHub.getHubs(displayId)) {
+            hub.requestPause(this, pause);
+        }
+    }
+
+    /**
+     * Change the max size, max fps and crop of the running session: the encoders restart in place with the new video size.
+     */
+    public void setVideoConfig(UdtControllerMessageReader.UdtControlMessage msg) {
+        Size naturalSize = device.getNaturalDeviceSize();
+        String error = msg.checkVideoConfig(naturalSize.getWidth(), naturalSize.getHeight());
+        if (error != null) {
+            // it would be applied to every stream of the display
+            UdtLn.w("udt: ignore set video config, " + error);
+            return;
+        }
+        int maxSize = msg.getMaxSize() != UdtControllerMessageReader.UdtControlMessage.UNCHANGED ? msg.getMaxSize() : device.getMaxSize();
+        Rect crop = msg.isCropChanged() ? msg.getCrop() : device.getCrop();
+        UdtLn.i("udt: set video config, max size: " + maxSize + ", max fps: " + msg.getMaxFps() + ", crop: " + crop);
+        // the control device maps the input events, it must match the video size
+        device.setVideoConfig(maxSize, crop);
+        if (udtEncoder != null) {
+            // legacy mode: the video is streamed through the encoder bound to this device
+            udtEncoder.setVideoConfig(msg.getMaxFps());
+        }
+        for (UdtVideoHub hub : UdtVideoHub.getHubs(displayId)) {
+            hub.setVideoConfig(maxSize, crop, msg.getMaxFps());
+        }
+    }
+
+    /**
+     * The video device of the display was downsized by the encoder fallback: apply the same max size to the control devices, so that
+     * the input events keep matching the video size.
+     */
+    public static void syncMaxSize(int displayId, Device videoDevice, int maxSize) {
+        for (UdtDevice udtDevice : Combiner.getAll()) {
+            UdtController controller = udtDevice.udtController;
+            if (udtDevice.displayId == displayId && udtDevice.device != videoDevice && controller != null) {
+                udtDevice.device.setMaxSize(maxSize);
+                controller.getUdtSender().pushScreenInfo(udtDevice.device.getScreenInfo());
+            }
+        }
+    }
+
+    /**
+     * Report an adaptive bitrate decision to the control clients of the display.
+     */
+    static void reportBitRate(int displayId, UdtBitrateController.Decision decision) {
+        for (UdtDevice udtDevice : Combiner.getAll()) {
+            UdtController controller = udtDevice.udtController;
+            if (udtDevice.displayId == displayId && controller != null) {
+                controller.getUdtSender().pushBitRateDecision(decision);
+            }
         }
     }
 
@@ -96,6 +171,10 @@ public class UdtDevice {
         if (udtEncoder != null) {
             udtEncoder.onExitVideo();
             udtEncoder = null;
+        } else {
+            for (UdtVideoHub hub : UdtVideoHub.getHubs(displayId)) {
+                hub.removeClient(this);
+            }
         }
 
         if (deviceMessageSenderThread != null) {
@@ -108,16 +187,20 @@ public class UdtDevice {
     public static class Combiner {
         private static final HashMap<Device, UdtDevice> bindMaps = new HashMap<>();
 
-        public static void bind(Device device, UdtDevice udtDevice) {
+        public static synchronized void bind(Device device, UdtDevice udtDevice) {
             bindMaps.put(device, udtDevice);
         }
 
-        public static void unBind(Device device) {
+        public static synchronized void unBind(Device device) {
             bindMaps.remove(device);
         }
 
-        public static UdtDevice get(Device device) {
+        public static synchronized UdtDevice get(Device device) {
             return bindMaps.get(device);
         }
+
+        static synchronized List<UdtDevice> getAll() {
+            return new ArrayList<>(bindMaps.values());
+        }
     }
 }
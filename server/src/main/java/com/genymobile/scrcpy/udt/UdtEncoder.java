@@ -2,17 +2,25 @@ package com.genymobile.scrcpy.udt;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.genymobile.scrcpy.CodecOption;
 import com.genymobile.scrcpy.ScreenEncoder;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 public class UdtEncoder {
     private final ScreenEncoder encoder;
 
     public UdtEncoder(ScreenEncoder encoder) {
         this.encoder = encoder;
+        watchdog = UdtOption.sWatchdogMs > 0 ? new UdtEncoderWatchdog(UdtOption.sWatchdogMs) : null;
+        staticFilter = UdtOption.sStaticSuppress
+                ? new UdtStaticFilter(UdtOption.sStaticMaxBytes, ScreenEncoder.REPEAT_FRAME_DELAY_US, UdtOption.sKeepAliveMs) : null;
     }
 
     enum Mode {
@@ -22,11 +30,27 @@ public class UdtEncoder {
     }
 
     private MediaCodec codec;
+    private volatile Handler codecHandler; // null in synchronous mode
 
     private static final String KEY_DURATION = "duration";
 
-    private Mode videoMode = Mode.Resume;
+    // if no key frame is produced within this delay, the sync frame request is missed
+    private static final long SYNC_FRAME_TIMEOUT_MS = 500;
+    // after this number of consecutive misses, the encoder ignores PARAMETER_KEY_REQUEST_SYNC_FRAME (a single late key frame may be
+    // due to the load)
+    private static final int MAX_SYNC_FRAME_MISSES = 3;
+
+    private volatile Mode videoMode = Mode.Resume;
     private int bitRate;
+    private UdtVideoHub hub;
+    private final UdtEncoderWatchdog watchdog; // null if disabled
+    private final UdtStaticFilter staticFilter; // null if disabled
+
+    private boolean syncFrameSupported = true; // by the codec syncFrameCodecName
+    private String syncFrameCodecName;
+    private int syncFrameMisses; // consecutive
+    private long syncFrameRequestTime; // 0 if no sync frame is pending
+    private long resumeRequestTime; // 0 if not resuming
 
     public static boolean setUdtCodecOption(MediaFormat format, CodecOption codecOption) {
         String key = codecOption.getKey();
@@ -44,51 +68,352 @@ public class UdtEncoder {
         }
     }
 
-    public void onInit(MediaCodec codec) {
-        UdtLn.i("udt: init codec" + codec.getName());
+    void setHub(UdtVideoHub hub) {
+        this.hub = hub;
+    }
+
+    public boolean isBroadcasting() {
+        return hub != null;
+    }
+
+    public void onOutputBuffer(MediaCodec.BufferInfo bufferInfo, ByteBuffer header, ByteBuffer codecBuffer) {
+        hub.broadcast(bufferInfo, header, codecBuffer);
+    }
+
+    /**
+     * @param codecHandler the handler of the codec callbacks in asynchronous mode, {@code null} otherwise
+     */
+    public void onInit(MediaCodec codec, Handler codecHandler) {
+        UdtLn.i("udt: init codec" + codec.getName() + (codecHandler != null ? " (async)" : ""));
+        synchronized (this) {
+            // a new codec always starts with a key frame
+            syncFrameRequestTime = 0;
+            if (!codec.getName().equals(syncFrameCodecName)) {
+                // another encoder (fallback): it may support sync frame requests
+                syncFrameCodecName = codec.getName();
+                syncFrameSupported = true;
+                syncFrameMisses = 0;
+            }
+        }
+        this.codecHandler = codecHandler;
         this.codec = codec;
+        if (staticFilter != null) {
+            staticFilter.reset();
+        }
+        if (watchdog != null) {
+            // a new codec always encodes its first frame
+            watchdog.onInput(SystemClock.uptimeMillis());
+            watchdog.start(new UdtEncoderWatchdog.Target() {
+                @Override
+                public boolean isActive() {
+                    return videoMode == Mode.Resume && UdtEncoder.this.codec != null;
+                }
+
+                @Override
+                public int recover(int action) {
+                    return onStall(action);
+                }
+            });
+        }
+    }
+
+    private int onStall(int action) {
+        switch (action) {
+            case UdtEncoderWatchdog.ACTION_SYNC_FRAME:
+                requestSyncFrame();
+                return action;
+            case UdtEncoderWatchdog.ACTION_SOFTWARE:
+                if (encoder.useSoftwareEncoder()) {
+                    restartCodec();
+                    return action;
+                }
+                // no software encoder, or already using it
+                restartCodec();
+                return UdtEncoderWatchdog.ACTION_RECREATE;
+            default:
+                restartCodec();
+                return UdtEncoderWatchdog.ACTION_RECREATE;
+        }
+    }
+
+    /**
+     * Called when a frame is rendered to the input surface of the codec, if it is observable (the simulcast layers).
+     */
+    public void onFrameRendered() {
+        if (watchdog != null) {
+            watchdog.onInput(SystemClock.uptimeMillis());
+        }
     }
 
+    /**
+     * Return the timeout of {@code dequeueOutputBuffer()} in synchronous mode for this encoder.
+     *
+     * @param durationUs the timeout set by the "duration" codec option, or -1
+     */
+    public long getDequeueTimeoutUs(long durationUs) {
+        if (watchdog != null && durationUs < 0) {
+            // a wedged codec must not block encode() forever
+            return UdtEncoderWatchdog.DEQUEUE_TIMEOUT_US;
+        }
+        return durationUs;
+    }
+
+    void addWatchdogMetrics(UdtEncoderWatchdog.Metrics metrics) {
+        if (watchdog != null) {
+            watchdog.addMetrics(metrics);
+        }
+    }
+
+    /**
+     * Called on the codec thread before sending an output buffer.
+     *
+     * @return {@link UdtStaticFilter#FORWARD}, {@link UdtStaticFilter#SUPPRESS} or {@link UdtStaticFilter#KEEP_ALIVE}
+     */
+    public int filterStatic(MediaCodec.BufferInfo bufferInfo, int size) {
+        if (staticFilter == null) {
+            return UdtStaticFilter.FORWARD;
+        }
+        int decision = staticFilter.filter(bufferInfo.flags, bufferInfo.presentationTimeUs, size);
+        if (decision == UdtStaticFilter.FORWARD_SYNC) {
+            // in case a suppressed frame was a real change
+            requestKeyFrame();
+            return UdtStaticFilter.FORWARD;
+        }
+        return decision;
+    }
+
+    void addStaticStats(UdtVideoHub.VideoStats stats) {
+        if (staticFilter != null) {
+            staticFilter.addStats(stats);
+        }
+    }
+
+    /**
+     * In asynchronous mode, the codec parameters are changed on the codec thread, serialized with the output buffers, instead of
+     * racing them from the control thread.
+     */
+    private void runOnCodecThread(Runnable runnable) {
+        Handler handler = codecHandler;
+        if (handler == null || Looper.myLooper() == handler.getLooper()) {
+            runnable.run();
+        } else {
+            handler.post(runnable);
+        }
+    }
+
+    /**
+     * Called on the codec thread for every output buffer, whatever its destination.
+     */
+    public void onEncoded(MediaCodec.BufferInfo bufferInfo) {
+        long now = SystemClock.uptimeMillis();
+        if (watchdog != null) {
+            long stallMs = watchdog.onOutput(now);
+            if (stallMs >= 0) {
+                UdtLn.i("watchdog: encoder " + codec.getName() + " recovered after a stall of " + stallMs + "ms");
+            }
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (this) {
+            if (resumeRequestTime != 0) {
+                UdtLn.i("udt: resume to first frame latency: " + (now - resumeRequestTime) + "ms");
+                resumeRequestTime = 0;
+            }
+            if (syncFrameRequestTime == 0) {
+                return;
+            }
+            long elapsed = now - syncFrameRequestTime;
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                UdtLn.d("udt: sync frame produced in " + elapsed + "ms");
+                syncFrameRequestTime = 0;
+                syncFrameMisses = 0;
+                return;
+            }
+            if (elapsed < SYNC_FRAME_TIMEOUT_MS) {
+                return;
+            }
+            syncFrameRequestTime = 0;
+            if (++syncFrameMisses >= MAX_SYNC_FRAME_MISSES && syncFrameSupported) {
+                UdtLn.w("udt: encoder " + codec.getName() + " ignores sync frame requests, fallback to codec restart");
+                syncFrameSupported = false;
+            }
+        }
+        UdtLn.w("udt: no sync frame within " + SYNC_FRAME_TIMEOUT_MS + "ms, restart the codec");
+        restartCodec();
+    }
+
+    /**
+     * Bitrate requested by the client.
+     */
     public void onBitrateChanged(int bitrate) {
+        setBitRate(bitrate);
+    }
+
+    void setBitRate(final int bitrate) {
         UdtLn.i("udt: change bitrate, new: " + bitrate + ", old: " + bitRate);
         if (waitCodecReady()) {
             bitRate = bitrate;
-            try {
-                android.os.Bundle b = new android.os.Bundle();
-                b.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
-                codec.setParameters(b);
-            } catch (IllegalStateException e) {
-                UdtLn.e("onBitrateChanged failed", e);
-            }
+            runOnCodecThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Bundle b = new Bundle();
+                        b.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+                        codec.setParameters(b);
+                    } catch (IllegalStateException e) {
+                        UdtLn.e("onBitrateChanged failed", e);
+                    }
+                }
+            });
         }
     }
 
     public void onReqIDRFrame() {
         UdtLn.i("udt: req IDRFrame now");
+        if (videoMode == Mode.Pause) {
+            // resuming requests a key frame
+            onPauseVideo(false);
+            return;
+        }
+        requestKeyFrame();
+    }
+
+    /**
+     * Request a key frame without changing the pause state: a paused stream gets its key frame on resume.
+     */
+    public void requestKeyFrame() {
+        if (videoMode == Mode.Pause) {
+            return;
+        }
         if (waitCodecReady()) {
-            videoMode = Mode.Resume;
-            resetCodec();
+            requestSyncFrame();
+        }
+    }
+
+    private void requestSyncFrame() {
+        long now = SystemClock.uptimeMillis();
+        boolean supported;
+        synchronized (this) {
+            if (syncFrameRequestTime != 0 && now - syncFrameRequestTime < SYNC_FRAME_TIMEOUT_MS) {
+                // a key frame is already on its way, it will serve this request too
+                UdtLn.d("udt: sync frame already pending, request coalesced");
+                return;
+            }
+            syncFrameRequestTime = now;
+            supported = syncFrameSupported;
+        }
+        if (watchdog != null) {
+            // the previous frame is repeated on a static screen (KEY_REPEAT_PREVIOUS_FRAME_AFTER), so a key frame is due anyway
+            watchdog.onInput(now);
+        }
+        if (!supported) {
+            restartCodec();
+            return;
         }
+        runOnCodecThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bundle b = new Bundle();
+                    b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                    codec.setParameters(b);
+                } catch (IllegalStateException e) {
+                    UdtLn.e("requestSyncFrame failed, fallback to codec restart", e);
+                    restartCodec();
+                }
+            }
+        });
     }
 
-    private void resetCodec() {
-        if (ScreenEncoder.durationUs > -1) {
-            UdtLn.i("udt: generate key frame by update rotation and wait timeout");
-            encoder.onRotationChanged(0);
+    /**
+     * The device video config changed: restart the codec with the new size.
+     *
+     * @param maxFps the new max fps, or a negative value to keep the current one
+     */
+    void setVideoConfig(int maxFps) {
+        if (maxFps >= 0) {
+            encoder.setMaxFps(maxFps);
         }
+        UdtLn.i("udt: restart the codec with the new video config");
+        encoder.onRotationChanged(0);
     }
 
-    public void onPauseVideo(boolean pause) {
-        UdtLn.i("udt: pauseing video thread: " + pause);
+    private void restartCodec() {
+        UdtLn.i("udt: generate key frame by restarting the codec");
+        encoder.onRotationChanged(0);
+    }
+
+    public void onPauseVideo(final boolean pause) {
+        UdtLn.i("udt: pausing video: " + pause);
+        synchronized (this) {
+            if (videoMode == Mode.Exit) {
+                return;
+            }
             videoMode = pause ? Mode.Pause : Mode.Resume;
-        if (waitCodecReady()) {
-            resetCodec();
+            if (!pause) {
+                resumeRequestTime = SystemClock.uptimeMillis();
+            }
+            // wake up onFinish() if the codec was released while paused
+            notifyAll();
+        }
+        if (!waitCodecReady()) {
+            return;
+        }
+        // keep the codec and the virtual display configured, just stop feeding frames to the encoder
+        runOnCodecThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!setSuspended(pause)) {
+                    if (pause) {
+                        // the codec could not be suspended, release it and wait for resume in onFinish()
+                        restartCodec();
+                    }
+                    return;
+                }
+                if (!pause) {
+                    requestSyncFrame();
+                }
+            }
+        });
+    }
+
+    private boolean setSuspended(boolean suspended) {
+        try {
+            Bundle b = new Bundle();
+            b.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+            codec.setParameters(b);
+            return true;
+        } catch (IllegalStateException e) {
+            UdtLn.e("setSuspended(" + suspended + ") failed", e);
+            return false;
         }
     }
 
     public void onExitVideo() {
         UdtLn.d("udt: exit video thread");
-        videoMode = Mode.Exit;
+        synchronized (this) {
+            videoMode = Mode.Exit;
+            notifyAll();
+        }
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        if (codec != null) {
+            runOnCodecThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // a suspended codec produces no output, end the stream so that encode() returns
+                        codec.signalEndOfInputStream();
+                    } catch (IllegalStateException e) {
+                        // the codec is not running, onFinish() will stop the stream
+                    }
+                }
+            });
+        }
+        // break out of encode(), onFinish() will then stop the stream
+        encoder.onRotationChanged(0);
     }
 
     private boolean waitCodecReady() {
@@ -102,12 +427,12 @@ public class UdtEncoder {
         return codec != null;
     }
 
-    public boolean onFinish(FileDescriptor fd) {
-        if (videoMode == Mode.Pause) {
-            while (videoMode == Mode.Pause) {
-                try {
-                    Thread.sleep(50);
-                } catch (Exception e) {}
+    public synchronized boolean onFinish(FileDescriptor fd) {
+        while (videoMode == Mode.Pause) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return true;
             }
         }
         return videoMode == Mode.Exit;
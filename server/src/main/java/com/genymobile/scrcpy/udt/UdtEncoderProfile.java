@@ -0,0 +1,181 @@
+package com.genymobile.scrcpy.udt;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Named encoder settings, selected by the {@code encoder_profile} option.
+ * <p>
+ * {@code low_latency} applies, when the encoder supports them, the keys otherwise passed by hand in {@code codec_options}: latency of 1
+ * frame, realtime priority, operating rate, no B-frames, (constrained) baseline profile for H.264 and the vendor low-latency extensions.
+ * The keys explicitly set by {@code codec_options} are left untouched.
+ * <p>
+ * {@code intra_refresh_period} (in frames) replaces the periodic IDR frames by intra refresh, so that the refresh is spread across
+ * the frames instead of a bitrate spike every second. It is an option of each stream ({@code Options}), so that a simulcast layer
+ * may select its own. The IDR frames are then only produced on request (client request, new
+ * subscriber, recovery of a slow subscriber).
+ * <p>
+ * If the encoder rejects the configuration, the profile is disabled for this encoder and the codec is configured again without it.
+ */
+public final class UdtEncoderProfile {
+
+    public static final String DEFAULT = "default";
+    public static final String LOW_LATENCY = "low_latency";
+
+    // vendor extensions, only set if reported by MediaCodec.getSupportedVendorParameters()
+    private static final String[] VENDOR_LOW_LATENCY_KEYS = {
+            "vendor.qti-ext-enc-low-latency.enable",
+            "vendor.rtc-ext-enc-low-latency.enable",
+    };
+
+    // in seconds, before negative values were supported
+    private static final int NO_PERIODIC_KEY_FRAME_INTERVAL = 3600;
+
+    // encoders which failed to configure with the profile
+    private static final Set<String> sRejected = new HashSet<>();
+
+    private UdtEncoderProfile() {
+        // not instantiable
+    }
+
+    public static String parse(String value) {
+        if (!DEFAULT.equals(value) && !LOW_LATENCY.equals(value)) {
+            throw new IllegalArgumentException("Unsupported encoder profile (default, low_latency): " + value);
+        }
+        return value;
+    }
+
+    private static boolean isLowLatency() {
+        return LOW_LATENCY.equals(UdtOption.sEncoderProfile);
+    }
+
+    /**
+     * @param intraRefreshPeriod the intra refresh period of the stream, 0 for periodic key frames
+     */
+    public static synchronized boolean shouldApply(MediaCodec codec, int intraRefreshPeriod) {
+        return (isLowLatency() || intraRefreshPeriod > 0) && !sRejected.contains(codec.getName());
+    }
+
+    public static synchronized void onRejected(MediaCodec codec, Exception e) {
+        UdtLn.w("encoder profile: " + codec.getName() + " rejected the configuration (" + e + "), fallback to the default configuration");
+        sRejected.add(codec.getName());
+    }
+
+    /**
+     * Apply the requested settings supported by the codec.
+     *
+     * @param maxFps             the max fps option, 0 if unlimited
+     * @param intraRefreshPeriod the intra refresh period of the stream, 0 for periodic key frames
+     */
+    public static void apply(MediaFormat format, MediaCodec codec, String mimeType, int maxFps, int intraRefreshPeriod) {
+        if (isLowLatency()) {
+            applyLowLatency(format, codec, mimeType, maxFps);
+        }
+        if (intraRefreshPeriod > 0) {
+            applyIntraRefresh(format, codec, mimeType, intraRefreshPeriod);
+        }
+    }
+
+    private static void applyLowLatency(MediaFormat format, MediaCodec codec, String mimeType, int maxFps) {
+        List<String> applied = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // output each frame as soon as it is encoded
+            setInteger(format, MediaFormat.KEY_LATENCY, 1, applied);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // 0 is realtime
+            setInteger(format, MediaFormat.KEY_PRIORITY, 0, applied);
+            setInteger(format, MediaFormat.KEY_OPERATING_RATE, maxFps > 0 ? maxFps : 60, applied);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // B-frames delay the output by reordering
+            setInteger(format, MediaFormat.KEY_MAX_B_FRAMES, 0, applied);
+        }
+        UdtCodecCache.EncoderInfo info = UdtCodecCache.getEncoder(codec.getName(), mimeType);
+        if (info != null && info.supportsBitrateMode(UdtCodecCache.BITRATE_MODE_CBR)) {
+            // a constant bitrate keeps the send queue (and the latency) stable
+            setInteger(format, MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR, applied);
+        }
+        if (info != null && MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            applyAvcProfile(format, info, applied);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            List<String> vendorKeys = codec.getSupportedVendorParameters();
+            for (String key : VENDOR_LOW_LATENCY_KEYS) {
+                if (vendorKeys.contains(key)) {
+                    setInteger(format, key, 1, applied);
+                }
+            }
+        }
+        UdtLn.i("encoder profile: " + LOW_LATENCY + " on " + codec.getName() + ", applied: " + applied);
+    }
+
+    private static void applyIntraRefresh(MediaFormat format, MediaCodec codec, String mimeType, int period) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            UdtLn.w("encoder profile: intra refresh requires Android 7, keep periodic key frames");
+            return;
+        }
+        UdtCodecCache.EncoderInfo info = UdtCodecCache.getEncoder(codec.getName(), mimeType);
+        if (info == null || !info.supportsIntraRefresh()) {
+            UdtLn.w("encoder profile: " + codec.getName() + " does not support intra refresh, keep periodic key frames");
+            return;
+        }
+        List<String> applied = new ArrayList<>();
+        setInteger(format, MediaFormat.KEY_INTRA_REFRESH_PERIOD, period, applied);
+        if (applied.isEmpty()) {
+            // disabled by codec_options
+            return;
+        }
+        // only the first frame is a key frame (a negative value is supported since Android 7.1), the others are requested explicitly
+        int interval = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1 ? -1 : NO_PERIODIC_KEY_FRAME_INTERVAL;
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, interval);
+        applied.add(MediaFormat.KEY_I_FRAME_INTERVAL + "=" + interval);
+        UdtLn.i("encoder profile: intra refresh on " + codec.getName() + ", applied: " + applied);
+    }
+
+    /**
+     * The profiles are read from the codec cache, instead of querying the codec capabilities on every configuration.
+     */
+    private static void applyAvcProfile(MediaFormat format, UdtCodecCache.EncoderInfo info, List<String> applied) {
+        if (format.containsKey(MediaFormat.KEY_PROFILE)) {
+            return;
+        }
+        int[] preferred = {MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+        for (int profile : preferred) {
+            int level = info.getMaxLevel(profile);
+            if (level != 0) {
+                setInteger(format, MediaFormat.KEY_PROFILE, profile, applied);
+                // some encoders ignore the profile without the level
+                setInteger(format, MediaFormat.KEY_LEVEL, level, applied);
+                return;
+            }
+        }
+    }
+
+    private static void setInteger(MediaFormat format, String key, int value, List<String> applied) {
+        if (format.containsKey(key)) {
+            // set by codec_options
+            return;
+        }
+        format.setInteger(key, value);
+        applied.add(key + "=" + value);
+    }
+
+    /**
+     * Log the configuration actually retained by the codec.
+     */
+    public static void logEffective(MediaCodec codec) {
+        try {
+            UdtLn.i("encoder profile: effective input format of " + codec.getName() + ": " + codec.getInputFormat());
+        } catch (IllegalStateException e) {
+            // not configured
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.genymobile.scrcpy.udt;
+
+import android.os.SystemClock;
+
+/**
+ * Detect a wedged encoder and escalate the recovery.
+ * <p>
+ * An idle screen may produce no output at all (not every encoder honors {@code KEY_REPEAT_PREVIOUS_FRAME_AFTER}), so the silence of
+ * the encoder alone is not a stall. The watchdog is armed by the events which must produce an output ({@link #onInput(long)}):
+ * <ul>
+ *     <li>a new codec, which always encodes its first frame;</li>
+ *     <li>a sync frame request (client IDR request, new or recovering subscriber, resume), so that an encoder wedged in the middle
+ *     of a session is detected on the main stream too, where the frames rendered by the virtual display are not observable;</li>
+ *     <li>a frame rendered to its input surface (the simulcast layers).</li>
+ * </ul>
+ * If no output buffer is received during the threshold after an input, the encoder is stalled, and the watchdog successively:
+ * <ol>
+ *     <li>requests a sync frame;</li>
+ *     <li>recreates the codec;</li>
+ *     <li>switches to a software encoder (then keeps recreating it).</li>
+ * </ol>
+ * Each step waits for the threshold again. Any output buffer ends the stall, and disarms the watchdog until the next input.
+ */
+public final class UdtEncoderWatchdog {
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_SYNC_FRAME = 1;
+    public static final int ACTION_RECREATE = 2;
+    public static final int ACTION_SOFTWARE = 3;
+
+    // bounded dequeueOutputBuffer() timeout, so that a stalled encode() loop can be restarted
+    public static final long DEQUEUE_TIMEOUT_US = 250_000;
+    private static final long POLL_MS = 250;
+
+    public static final class Metrics {
+        private int stalls;
+        private int syncFrames;
+        private int recreations;
+        private int softwareFallbacks;
+        private long longestStallMs;
+
+        public int getStalls() {
+            return stalls;
+        }
+
+        public int getSyncFrames() {
+            return syncFrames;
+        }
+
+        public int getRecreations() {
+            return recreations;
+        }
+
+        public int getSoftwareFallbacks() {
+            return softwareFallbacks;
+        }
+
+        public long getLongestStallMs() {
+            return longestStallMs;
+        }
+
+        void add(Metrics other) {
+            stalls += other.stalls;
+            syncFrames += other.syncFrames;
+            recreations += other.recreations;
+            softwareFallbacks += other.softwareFallbacks;
+            longestStallMs = Math.max(longestStallMs, other.longestStallMs);
+        }
+
+        @Override
+        public String toString() {
+            return "stalls=" + stalls + ", syncFrames=" + syncFrames + ", recreations=" + recreations + ", softwareFallbacks="
+                    + softwareFallbacks + ", longestStall=" + longestStallMs + "ms";
+        }
+    }
+
+    interface Target {
+        /**
+         * @return {@code true} if the encoder is expected to produce output (started and not paused)
+         */
+        boolean isActive();
+
+        /**
+         * Perform the recovery action.
+         *
+         * @return the action actually performed (the software fallback may not be available)
+         */
+        int recover(int action);
+    }
+
+    private final long thresholdMs;
+    private final Metrics metrics = new Metrics();
+    private Target target;
+    private Thread thread;
+
+    private long inputTime = -1; // of the first input since the last output, -1 if none
+    private int level = ACTION_NONE;
+    private long levelTime;
+
+    public UdtEncoderWatchdog(long thresholdMs) {
+        this.thresholdMs = thresholdMs;
+    }
+
+    synchronized void start(Target target) {
+        if (thread != null) {
+            return;
+        }
+        this.target = target;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "udt-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void loop() throws InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            Thread.sleep(POLL_MS);
+            long now = SystemClock.uptimeMillis();
+            int action = check(now, target.isActive());
+            if (action != ACTION_NONE) {
+                UdtLn.w("watchdog: no encoder output " + (now - getInputTime()) + "ms after its input, recovery: " + actionName(action));
+                record(target.recover(action));
+            }
+        }
+    }
+
+    /**
+     * Called when the encoder is expected to produce output: the codec started, or a frame was rendered to its input.
+     */
+    public synchronized void onInput(long now) {
+        if (inputTime < 0) {
+            inputTime = now;
+        }
+    }
+
+    /**
+     * Called for every output buffer.
+     *
+     * @return the duration of the stall which just ended, or -1 if the encoder was not stalled
+     */
+    public synchronized long onOutput(long now) {
+        long stallMs = -1;
+        if (level != ACTION_NONE) {
+            stallMs = now - inputTime;
+            metrics.longestStallMs = Math.max(metrics.longestStallMs, stallMs);
+            level = ACTION_NONE;
+        }
+        inputTime = -1;
+        return stallMs;
+    }
+
+    synchronized long getInputTime() {
+        return inputTime;
+    }
+
+    /**
+     * Decide the next recovery action, if any.
+     *
+     * @param active {@code true} if the encoder is expected to produce output
+     */
+    synchronized int check(long now, boolean active) {
+        if (!active) {
+            // paused or not started: wait for a new input
+            inputTime = -1;
+            level = ACTION_NONE;
+            return ACTION_NONE;
+        }
+        if (inputTime < 0) {
+            // nothing to encode
+            return ACTION_NONE;
+        }
+        long reference = level == ACTION_NONE ? inputTime : levelTime;
+        if (now - reference < thresholdMs) {
+            return ACTION_NONE;
+        }
+        if (level == ACTION_NONE) {
+            ++metrics.stalls;
+        }
+        level = Math.min(level + 1, ACTION_SOFTWARE);
+        levelTime = now;
+        return level;
+    }
+
+    synchronized void record(int action) {
+        switch (action) {
+            case ACTION_SYNC_FRAME:
+                ++metrics.syncFrames;
+                break;
+            case ACTION_RECREATE:
+                ++metrics.recreations;
+                break;
+            case ACTION_SOFTWARE:
+                ++metrics.softwareFallbacks;
+                break;
+            default:
+                break;
+        }
+    }
+
+    public synchronized void addMetrics(Metrics result) {
+        result.add(metrics);
+    }
+
+    static String actionName(int action) {
+        switch (action) {
+            case ACTION_SYNC_FRAME:
+                return "sync frame";
+            case ACTION_RECREATE:
+                return "recreate codec";
+            case ACTION_SOFTWARE:
+                return "software encoder";
+            default:
+                return "none";
+        }
+    }
+}
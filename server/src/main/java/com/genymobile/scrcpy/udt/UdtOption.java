@@ -1,5 +1,8 @@
 package com.genymobile.scrcpy.udt;
 
+import com.genymobile.scrcpy.Options;
+
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
@@ -9,6 +12,29 @@ public class UdtOption {
 
     public static boolean sRescaleImage = false;
     public static boolean sRotationAutoSync = false;
+    public static boolean sCodecCache = true;
+    public static boolean sAsyncCodec = false;
+    public static boolean sAdaptiveBitRate = false;
+    public static int sMinBitRate = 1_000_000;
+    public static int sMaxBitRate = 0; // 0 for the bit_rate option
+    public static int sVideoQueueMs = 1000; // per video socket, at the bit_rate option
+    public static String sEncoderProfile = UdtEncoderProfile.DEFAULT;
+    public static int sWatchdogMs = 0; // > 0 to enable the encoder stall watchdog
+    public static boolean sStaticSuppress = false;
+    public static int sStaticMaxBytes = 256; // larger frames always contain a change
+    public static int sKeepAliveMs = 1000; // while the screen is static
+    public static List<UdtSimulcast.Layer> sSimulcastLayers; // null if disabled
+    public static int sCaptureIdleMs = 5000; // capture session kept alive between screenshots, 0 to keep it until disconnection
+    public static boolean sCaptureYuv = false; // falls back to RGBA if the display cannot render YUV
+    public static int sDeltaTileSize = 64;
+    public static int sDeltaThresholdPercent = 50; // of the tiles changed, above which a full frame is sent
+    public static boolean sPreview = false;
+    public static int sPreviewMaxSize = 426; // 240p
+    public static int sPreviewFps = 2;
+    public static int sPreviewQuality = 50;
+    public static int sPreviewCpuPercent = 5; // of one core, 0 for no budget
+    public static int sPreviewMaxKbps = 256; // per preview socket, 0 for no cap
+    public static int sJpegThreads = 0; // strips encoded concurrently, 0 for one per core, 1 to disable
 
     private static final String DEFAULT_UDT_LIB_PATH = "/data/local/tmp/udt/";
 
@@ -17,7 +43,7 @@ public class UdtOption {
         System.setProperty(JpgEncoder.LIB_PATH, DEFAULT_UDT_LIB_PATH);
     }
 
-    public static boolean createOptions( String key, String value) {
+    public static boolean createOptions(Options options, String key, String value) {
         switch (key) {
             case "udt_enable":
                 SUPPORT = Boolean.parseBoolean(value);
@@ -39,6 +65,78 @@ public class UdtOption {
             case "rotation_autosync":
                 sRotationAutoSync = Boolean.parseBoolean(value);
                 return true;
+            case "udt_codec_cache":
+                sCodecCache = Boolean.parseBoolean(value);
+                return true;
+            case "udt_async_codec":
+                sAsyncCodec = Boolean.parseBoolean(value);
+                return true;
+            case "udt_abr":
+                sAdaptiveBitRate = Boolean.parseBoolean(value);
+                return true;
+            case "udt_abr_min_bitrate":
+                sMinBitRate = Integer.parseInt(value);
+                return true;
+            case "udt_abr_max_bitrate":
+                sMaxBitRate = Integer.parseInt(value);
+                return true;
+            case "udt_video_queue_ms":
+                sVideoQueueMs = Integer.parseInt(value);
+                return true;
+            case "encoder_profile":
+                sEncoderProfile = UdtEncoderProfile.parse(value);
+                return true;
+            case "intra_refresh_period":
+                options.setIntraRefreshPeriod(Integer.parseInt(value));
+                return true;
+            case "udt_watchdog_ms":
+                sWatchdogMs = Integer.parseInt(value);
+                return true;
+            case "udt_static_suppress":
+                sStaticSuppress = Boolean.parseBoolean(value);
+                return true;
+            case "udt_static_max_bytes":
+                sStaticMaxBytes = Integer.parseInt(value);
+                return true;
+            case "udt_keepalive_ms":
+                sKeepAliveMs = Integer.parseInt(value);
+                return true;
+            case "udt_simulcast":
+                sSimulcastLayers = UdtSimulcast.parseLayers(value);
+                return true;
+            case "udt_capture_idle_ms":
+                sCaptureIdleMs = Integer.parseInt(value);
+                return true;
+            case "udt_capture_yuv":
+                sCaptureYuv = Boolean.parseBoolean(value);
+                return true;
+            case "udt_delta_tile_size":
+                sDeltaTileSize = Integer.parseInt(value);
+                return true;
+            case "udt_delta_threshold_percent":
+                sDeltaThresholdPercent = Integer.parseInt(value);
+                return true;
+            case "udt_preview":
+                sPreview = Boolean.parseBoolean(value);
+                return true;
+            case "udt_preview_max_size":
+                sPreviewMaxSize = Integer.parseInt(value);
+                return true;
+            case "udt_preview_fps":
+                sPreviewFps = Integer.parseInt(value);
+                return true;
+            case "udt_preview_quality":
+                sPreviewQuality = Integer.parseInt(value);
+                return true;
+            case "udt_preview_cpu_percent":
+                sPreviewCpuPercent = Integer.parseInt(value);
+                return true;
+            case "udt_preview_max_kbps":
+                sPreviewMaxKbps = Integer.parseInt(value);
+                return true;
+            case "udt_jpeg_threads":
+                sJpegThreads = Integer.parseInt(value);
+                return true;
             default:
                 return false;
         }
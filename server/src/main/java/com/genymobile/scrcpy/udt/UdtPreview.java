@@ -0,0 +1,369 @@
+package com.genymobile.scrcpy.udt;
+
+import android.annotation.SuppressLint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import com.genymobile.scrcpy.Device;
+import com.genymobile.scrcpy.IO;
+import com.genymobile.scrcpy.Options;
+import com.genymobile.scrcpy.ScreenEncoder;
+import com.genymobile.scrcpy.ScreenInfo;
+import com.genymobile.scrcpy.Size;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Low fps JPEG preview of a display, for thumbnails, served on the {@code <socket_name>-preview} socket.
+ * <p>
+ * Unlike the video stream, there is no codec to configure: a virtual display renders into a small {@link ImageReader} (at most
+ * {@code udt_preview_max_size}), and the latest image is encoded by a dedicated {@link JpgEncoder}, on a background priority thread.
+ * The pipeline is shared by all the preview sockets of the display, and kept alive {@link #LINGER_MS} after the last one is closed,
+ * so that a reconnecting client gets the last frame immediately.
+ * <p>
+ * The frames are paced by the most restrictive of:
+ * <ul>
+ *     <li>{@code udt_preview_fps};</li>
+ *     <li>the CPU budget {@code udt_preview_cpu_percent} (of one core), from the thread CPU time of the last encoding;</li>
+ *     <li>the bandwidth cap {@code udt_preview_max_kbps}, from the size of the last frame.</li>
+ * </ul>
+ * No frame is produced while the screen is static. Each frame is sent as an 8-byte timestamp (in µs), a 4-byte size and the JPEG
+ * data. A slow socket only receives the latest frame. As nothing may be sent for a long time, the socket is polled for its closing
+ * every {@link #DISCONNECT_POLL_MS} while idle, so that a client disconnected from a static screen releases the pipeline.
+ */
+public final class UdtPreview {
+
+    private static final String TAG = "[preview] ";
+
+    static final long LINGER_MS = 10_000;
+    static final long DISCONNECT_POLL_MS = 1000;
+
+    private static final HashMap<Integer, UdtPreview> sPreviews = new HashMap<>();
+
+    private final int displayId;
+    private final Device device;
+    private final JpgEncoder jpgEncoder = new JpgEncoder();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private HandlerThread thread;
+    private Handler handler;
+
+    // accessed on the preview thread only
+    private IBinder display;
+    private ImageReader imageReader;
+    private Image latestImage;
+    private boolean encodeScheduled;
+    private long lastEncodeTime;
+    private long intervalMs;
+
+    private Frame lastFrame; // guarded by this
+
+    private final Runnable encodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            encodeScheduled = false;
+            encodeLatestImage();
+        }
+    };
+
+    private final Runnable stopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopIfUnused();
+        }
+    };
+
+    private static final class Frame {
+        private final byte[] data;
+        private final int size;
+        private final long ptsUs;
+
+        Frame(byte[] data, int size, long ptsUs) {
+            this.data = data;
+            this.size = size;
+            this.ptsUs = ptsUs;
+        }
+    }
+
+    private UdtPreview(Options options) {
+        displayId = options.getDisplayId();
+        Options previewOptions = options.copy();
+        previewOptions.setMaxSize(UdtOption.sPreviewMaxSize);
+        device = new Device(previewOptions);
+        // the CPU budget is measured on the preview thread: keep the encoding on it
+        jpgEncoder.setMaxThreads(1);
+        intervalMs = 1000 / Math.max(1, UdtOption.sPreviewFps);
+    }
+
+    /**
+     * Compute the delay before the next encoding.
+     *
+     * @param encodeCpuMs the thread CPU time of the last encoding
+     * @param frameBytes  the size of the last frame
+     */
+    static long computeIntervalMs(int fps, int cpuPercent, int maxKbps, long encodeCpuMs, int frameBytes) {
+        long interval = 1000 / Math.max(1, fps);
+        if (cpuPercent > 0) {
+            interval = Math.max(interval, encodeCpuMs * 100 / cpuPercent);
+        }
+        if (maxKbps > 0) {
+            // 1 kbps is 1 bit per ms
+            interval = Math.max(interval, (long) frameBytes * 8 / maxKbps);
+        }
+        return interval;
+    }
+
+    /**
+     * Stream the preview of the display to the socket, until it is closed (by the client, or on error).
+     */
+    public static void stream(FileDescriptor fd, Options options) throws IOException, InterruptedException {
+        Subscriber subscriber = new Subscriber(fd);
+        UdtPreview preview = subscribe(options, subscriber);
+        try {
+            subscriber.loop();
+        } finally {
+            preview.unsubscribe(subscriber);
+        }
+    }
+
+    private static UdtPreview subscribe(Options options, Subscriber subscriber) {
+        UdtPreview preview;
+        synchronized (UdtPreview.class) {
+            preview = sPreviews.get(options.getDisplayId());
+            if (preview == null) {
+                preview = new UdtPreview(options);
+                preview.start();
+                sPreviews.put(options.getDisplayId(), preview);
+            }
+            preview.subscribers.add(subscriber);
+        }
+        synchronized (preview) {
+            if (preview.lastFrame != null) {
+                // the screen may be static: do not wait for a change to show something
+                subscriber.offer(preview.lastFrame);
+            }
+        }
+        UdtLn.i(TAG + "subscriber added, count: " + preview.subscribers.size() + ", display: " + preview.displayId);
+        return preview;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        UdtLn.i(TAG + "subscriber removed, count: " + subscribers.size() + ", display: " + displayId);
+        if (subscribers.isEmpty()) {
+            handler.removeCallbacks(stopRunnable);
+            handler.postDelayed(stopRunnable, LINGER_MS);
+        }
+    }
+
+    private void stopIfUnused() {
+        synchronized (UdtPreview.class) {
+            if (!subscribers.isEmpty()) {
+                return;
+            }
+            sPreviews.remove(displayId);
+        }
+        device.setRotationListener(null);
+        releaseCapture();
+        try {
+            jpgEncoder.free();
+        } catch (Exception e) {
+            UdtLn.w(TAG + "could not release the jpeg encoder: " + e);
+        }
+        thread.quitSafely();
+        UdtLn.i(TAG + "stopped, display: " + displayId);
+    }
+
+    private void start() {
+        thread = new HandlerThread("udt-preview", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                configure();
+            }
+        });
+        device.setRotationListener(new Device.RotationListener() {
+            @Override
+            public void onRotationChanged(int rotation) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        configure();
+                    }
+                });
+            }
+        });
+    }
+
+    @SuppressLint("WrongConstant")
+    private void configure() {
+        long start = SystemClock.uptimeMillis();
+        ScreenInfo screenInfo = device.getScreenInfo();
+        Size videoSize = screenInfo.getVideoSize();
+        releaseCapture();
+        // one image held by the encoder, the others for the display
+        imageReader = ImageReader.newInstance(videoSize.getWidth(), videoSize.getHeight(), PixelFormat.RGBA_8888, 3);
+        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                onImage(reader);
+            }
+        }, handler);
+        display = ScreenEncoder.createDisplay();
+        Rect unlockedVideoRect = screenInfo.getUnlockedVideoSize().toRect();
+        ScreenEncoder.setDisplaySurface(display, imageReader.getSurface(), screenInfo.getVideoRotation(), screenInfo.getContentRect(),
+                unlockedVideoRect, device.getLayerStack());
+        UdtLn.i(TAG + "capture " + videoSize + " configured in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    private void releaseCapture() {
+        handler.removeCallbacks(encodeRunnable);
+        encodeScheduled = false;
+        if (latestImage != null) {
+            latestImage.close();
+            latestImage = null;
+        }
+        if (display != null) {
+            ScreenEncoder.destroyDisplay(display);
+            display = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+    }
+
+    private void onImage(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            UdtLn.w(TAG + "could not acquire image: " + e);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        // keep only the latest image, so that the display always has a free buffer
+        if (latestImage != null) {
+            latestImage.close();
+        }
+        latestImage = image;
+        if (!encodeScheduled) {
+            encodeScheduled = true;
+            long delay = lastEncodeTime + intervalMs - SystemClock.uptimeMillis();
+            handler.postDelayed(encodeRunnable, Math.max(0, delay));
+        }
+    }
+
+    private void encodeLatestImage() {
+        Image image = latestImage;
+        latestImage = null;
+        if (image == null) {
+            return;
+        }
+        long cpuStart = SystemClock.currentThreadTimeMillis();
+        long ptsUs = image.getTimestamp() / 1000;
+        JpgEncoder.JpgData data;
+        try {
+            data = jpgEncoder.encode(image, UdtOption.sPreviewQuality);
+        } catch (Exception e) {
+            UdtLn.e(TAG + "could not encode image: " + e);
+            return;
+        } finally {
+            image.close();
+        }
+        lastEncodeTime = SystemClock.uptimeMillis();
+        if (data == null) {
+            return;
+        }
+        long encodeCpuMs = SystemClock.currentThreadTimeMillis() - cpuStart;
+        intervalMs = computeIntervalMs(UdtOption.sPreviewFps, UdtOption.sPreviewCpuPercent, UdtOption.sPreviewMaxKbps, encodeCpuMs,
+                data.size);
+        // the frame may be kept long (for the next subscribers): copy the compressed size only, and recycle the encoder buffer
+        Frame frame = new Frame(data.copy().data, data.size, ptsUs);
+        data.release();
+        synchronized (this) {
+            lastFrame = frame;
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(frame);
+        }
+    }
+
+    private static final class Subscriber {
+        private final FileDescriptor fd;
+        private final ByteBuffer header = ByteBuffer.allocate(12);
+        private Frame pending; // latest frame not sent yet
+
+        Subscriber(FileDescriptor fd) {
+            this.fd = fd;
+        }
+
+        synchronized void offer(Frame frame) {
+            pending = frame;
+            notify();
+        }
+
+        void loop() throws IOException, InterruptedException {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    while (pending == null) {
+                        wait(DISCONNECT_POLL_MS);
+                        if (pending == null && isDisconnected()) {
+                            return;
+                        }
+                    }
+                    frame = pending;
+                    pending = null;
+                }
+                header.clear();
+                header.putLong(frame.ptsUs);
+                header.putInt(frame.size);
+                header.flip();
+                IO.writeFully(fd, header, ByteBuffer.wrap(frame.data, 0, frame.size));
+            }
+        }
+
+        /**
+         * Check, without blocking, whether the client closed the socket.
+         */
+        private boolean isDisconnected() {
+            StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = fd;
+            pollFd.events = (short) OsConstants.POLLIN;
+            try {
+                if (Os.poll(new StructPollfd[]{pollFd}, 0) <= 0) {
+                    return false;
+                }
+                if ((pollFd.revents & (OsConstants.POLLHUP | OsConstants.POLLERR | OsConstants.POLLNVAL)) != 0) {
+                    return true;
+                }
+                // the client sends nothing on this socket: readable means the end of the stream (any byte is ignored)
+                return Os.read(fd, new byte[1], 0, 1) <= 0;
+            } catch (ErrnoException | InterruptedIOException e) {
+                return true;
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.genymobile.scrcpy.udt;
 
+import android.graphics.Rect;
+
 import com.genymobile.scrcpy.DesktopConnection;
 import com.genymobile.scrcpy.ScreenInfo;
 import com.genymobile.scrcpy.Size;
@@ -9,16 +11,28 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 
 public final class UdtSender {
+    // beyond, the client is too slow for the deltas: the queued ones are dropped
+    private static final int MAX_DELTA_IMAGES = 4;
+    // beyond, the oldest bitrate decisions are dropped
+    private static final int MAX_BITRATE_DECISIONS = 16;
+
     private final DesktopConnection connection;
     private final UdtDeviceMessageWriter writer;
 
-    private byte[] captureImage;
+    private JpgEncoder.JpgData captureImage; // owned until sent
+    // each delta applies to the previous one: they are all sent, in order
+    private final ArrayDeque<JpgEncoder.JpgData> deltaImages = new ArrayDeque<>();
+    private UdtDeviceMessage regionCapture; // owned until sent
     private String curLocale;
     private String appLists;
     private int rotation = -1;
     private ScreenInfo screenInfo = null;
+    // each decision is reported, in order
+    private final ArrayDeque<UdtBitrateController.Decision> bitRateDecisions = new ArrayDeque<>();
+    private UdtVideoHub.VideoStats videoStats;
 
     public UdtSender(DesktopConnection connection) {
         this.connection = connection;
@@ -27,14 +41,58 @@ public final class UdtSender {
 
     public void stop() {
         writer.free();
+        synchronized (this) {
+            if (captureImage != null) {
+                captureImage.release();
+                captureImage = null;
+            }
+            for (JpgEncoder.JpgData image : deltaImages) {
+                image.release();
+            }
+            deltaImages.clear();
+            if (regionCapture != null) {
+                regionCapture.releaseRegionImages();
+                regionCapture = null;
+            }
+        }
     }
 
-    public synchronized void pushCaptureImage(byte[] image, int size) {
-        if (image != null) {
-            captureImage = new byte[size];
-            System.arraycopy(image, 0, captureImage, 0, captureImage.length);
+    /**
+     * Send the capture. The sender takes the ownership of the image, and releases it once written (without copy).
+     */
+    public synchronized void pushCaptureImage(JpgEncoder.JpgData image) {
+        if (image != null && CaptureEncoder.isDelta(image.format)) {
+            if (deltaImages.size() >= MAX_DELTA_IMAGES) {
+                // the base of the new delta is missing on the client, so it requests a full frame (like a video subscriber restarts
+                // at the next key frame)
+                UdtLn.w("capture: " + deltaImages.size() + " deltas not sent, dropped");
+                for (JpgEncoder.JpgData queued : deltaImages) {
+                    queued.release();
+                }
+                deltaImages.clear();
+            }
+            deltaImages.add(image);
             notify();
+        } else if (image != null) {
+            if (captureImage != null) {
+                // replaced before being sent, only the latest capture matters
+                captureImage.release();
+            }
+            captureImage = image;
+            notify();
+        }
+    }
+
+    /**
+     * Send the capture of regions. The sender takes the ownership of the images, and releases them once written.
+     */
+    public synchronized void pushCaptureRegions(int format, Rect[] regions, JpgEncoder.JpgData[] images) {
+        if (regionCapture != null) {
+            // replaced before being sent, only the latest capture matters
+            regionCapture.releaseRegionImages();
         }
+        regionCapture = UdtDeviceMessage.createCaptureRegions(format, regions, images);
+        notify();
     }
 
     public synchronized void pushLocale(String locale) {
@@ -65,27 +123,55 @@ public final class UdtSender {
         }
     }
 
+    public synchronized void pushBitRateDecision(UdtBitrateController.Decision decision) {
+        if (decision != null) {
+            if (bitRateDecisions.size() >= MAX_BITRATE_DECISIONS) {
+                UdtLn.w("bitrate: decision " + bitRateDecisions.poll() + " not sent, dropped");
+            }
+            bitRateDecisions.add(decision);
+            notify();
+        }
+    }
+
+    public synchronized void pushVideoStats(UdtVideoHub.VideoStats stats) {
+        if (stats != null) {
+            videoStats = stats;
+            notify();
+        }
+    }
+
     public void loop() throws IOException, InterruptedException {
         while (true) {
-            byte[] image = null;
+            JpgEncoder.JpgData image = null;
+            JpgEncoder.JpgData deltaImage = null;
+            UdtDeviceMessage regions = null;
             String newLocale = null;
             String apps = null;
             int rotation = -1;
             ScreenInfo info = null;
+            UdtBitrateController.Decision decision = null;
+            UdtVideoHub.VideoStats stats = null;
             synchronized (this) {
                 while (captureImage == null
+                        && deltaImages.isEmpty()
+                        && regionCapture == null
                         && curLocale == null
                         && appLists == null
                         && this.rotation < 0
                         && screenInfo == null
+                        && bitRateDecisions.isEmpty()
+                        && videoStats == null
                 ) {
                     wait();
                 }
-                if (captureImage != null && captureImage.length > 0) {
-                    image = new byte[captureImage.length];
-                    System.arraycopy(captureImage, 0, image, 0, captureImage.length);
+                if (captureImage != null) {
+                    image = captureImage;
                     captureImage = null;
                 }
+                // one at a time, the others are sent on the next iterations
+                deltaImage = deltaImages.poll();
+                regions = regionCapture;
+                regionCapture = null;
                 if (curLocale != null) {
                     newLocale = curLocale;
                     curLocale = null;
@@ -102,51 +188,121 @@ public final class UdtSender {
                     info = screenInfo;
                     screenInfo = null;
                 }
+                // one at a time, the others are sent on the next iterations
+                decision = bitRateDecisions.poll();
+                if (videoStats != null) {
+                    stats = videoStats;
+                    videoStats = null;
+                }
             }
             if (image != null) {
                 UdtDeviceMessage event = UdtDeviceMessage.createCapture(image);
-                writer.sendUdtDeviceMessage(event, connection.getOutputStream());
+                try {
+                    send(event);
+                } finally {
+                    image.release();
+                }
+            }
+            if (deltaImage != null) {
+                UdtDeviceMessage event = UdtDeviceMessage.createCapture(deltaImage);
+                try {
+                    send(event);
+                } finally {
+                    deltaImage.release();
+                }
+            }
+            if (regions != null) {
+                try {
+                    send(regions);
+                } finally {
+                    regions.releaseRegionImages();
+                }
             }
             if (newLocale != null) {
                 UdtDeviceMessage event = UdtDeviceMessage.createLocale(newLocale);
-                writer.sendUdtDeviceMessage(event, connection.getOutputStream());
+                send(event);
             }
             if (apps != null) {
                 UdtDeviceMessage event = UdtDeviceMessage.createInstalledApps(apps);
-                writer.sendUdtDeviceMessage(event, connection.getOutputStream());
+                send(event);
             }
             if (rotation >= 0) {
                 UdtDeviceMessage event = UdtDeviceMessage.createGetRotation(rotation);
-                writer.sendUdtDeviceMessage(event, connection.getOutputStream());
+                send(event);
             }
             if (info != null) {
                 UdtDeviceMessage event = UdtDeviceMessage.createScreenInfo(info);
-                writer.sendUdtDeviceMessage(event, connection.getOutputStream());
+                send(event);
+            }
+            if (decision != null) {
+                UdtDeviceMessage event = UdtDeviceMessage.createBitRate(decision);
+                send(event);
+            }
+            if (stats != null) {
+                UdtDeviceMessage event = UdtDeviceMessage.createVideoStats(stats);
+                send(event);
             }
         }
     }
 
+    /**
+     * Write a whole message (header and chunks) to the control stream, which the device message sender of the connection shares.
+     */
+    private void send(UdtDeviceMessage msg) throws IOException {
+        synchronized (connection.getControlOutputLock()) {
+            writer.sendUdtDeviceMessage(msg, connection.getOutputStream());
+        }
+    }
+
     public static class UdtDeviceMessage {
         public static final int TYPE_HEARTBEAT  = 102;
         public static final int TYPE_CAPTURE    = 103;
         public static final int TYPE_GET_LOCALE = 104;
         public static final int TYPE_GET_APPS   = 105;
         public static final int TYPE_GET_ROTATION   = 106;
+        public static final int TYPE_CAPTURE_FORMAT = 107; // a capture in another format than JPEG
+        public static final int TYPE_CAPTURE_REGIONS = 108;
+        // device-initiated reports, no matching request
+        public static final int TYPE_BITRATE        = 120;
+        public static final int TYPE_VIDEO_STATS    = UdtControllerMessageReader.UdtControlMessage.TYPE_GET_VIDEO_STATS;
 
         private int type;
-        private byte[] image;
+        private JpgEncoder.JpgData image;
+        private int regionFormat;
+        private Rect[] regions;
+        private JpgEncoder.JpgData[] regionImages;
         private String curLocale;
         private String apps;
         private int rotation = -1;
         private ScreenInfo screenInfo;
+        private UdtBitrateController.Decision bitRateDecision;
+        private UdtVideoHub.VideoStats videoStats;
 
-        public static UdtDeviceMessage createCapture(byte[] image) {
+        public static UdtDeviceMessage createCapture(JpgEncoder.JpgData image) {
             UdtDeviceMessage event = new UdtDeviceMessage();
-            event.type = TYPE_CAPTURE;
+            // the JPEG captures keep the message of the clients not aware of the formats
+            event.type = image.format == CaptureEncoder.FORMAT_JPEG ? TYPE_CAPTURE : TYPE_CAPTURE_FORMAT;
             event.image = image;
             return event;
         }
 
+        public static UdtDeviceMessage createCaptureRegions(int format, Rect[] regions, JpgEncoder.JpgData[] images) {
+            UdtDeviceMessage event = new UdtDeviceMessage();
+            event.type = TYPE_CAPTURE_REGIONS;
+            event.regionFormat = format;
+            event.regions = regions;
+            event.regionImages = images;
+            return event;
+        }
+
+        void releaseRegionImages() {
+            for (JpgEncoder.JpgData image : regionImages) {
+                if (image != null) {
+                    image.release();
+                }
+            }
+        }
+
         public static UdtDeviceMessage createLocale(String locale) {
             UdtDeviceMessage event = new UdtDeviceMessage();
             event.type = TYPE_GET_LOCALE;
@@ -175,11 +331,25 @@ public final class UdtSender {
             return event;
         }
 
+        public static UdtDeviceMessage createBitRate(UdtBitrateController.Decision decision) {
+            UdtDeviceMessage event = new UdtDeviceMessage();
+            event.type = TYPE_BITRATE;
+            event.bitRateDecision = decision;
+            return event;
+        }
+
+        public static UdtDeviceMessage createVideoStats(UdtVideoHub.VideoStats stats) {
+            UdtDeviceMessage event = new UdtDeviceMessage();
+            event.type = TYPE_VIDEO_STATS;
+            event.videoStats = stats;
+            return event;
+        }
+
         public int getType() {
             return type;
         }
 
-        public byte[] getImage() {
+        public JpgEncoder.JpgData getImage() {
             return image;
         }
 
@@ -197,11 +367,21 @@ public final class UdtSender {
         public ScreenInfo getScreenInfo() {
             return screenInfo;
         }
+
+        public UdtBitrateController.Decision getBitRateDecision() {
+            return bitRateDecision;
+        }
+
+        public UdtVideoHub.VideoStats getVideoStats() {
+            return videoStats;
+        }
     }
 
     public static class UdtDeviceMessageWriter {
 
         private static final int MESSAGE_MAX_SIZE = 1 << 20; // 1M
+        // the captures are not copied into the message buffer, they are streamed by chunks
+        private static final int CHUNK_SIZE = 256 * 1024;
         public static final int LOCALE_MAX_LENGTH = 5 + 32; // type: 1 byte; length: 4 bytes;
         public static final int TEXT_MAX_LENGTH = MESSAGE_MAX_SIZE - 5; // type: 1 byte; length: 4 bytes
 
@@ -221,10 +401,37 @@ public final class UdtSender {
             buffer.put((byte) msg.getType());
             switch (msg.getType()) {
                 case UdtDeviceMessage.TYPE_CAPTURE:
-                    byte[] image = msg.getImage();
-                    buffer.putInt(image.length);
-                    buffer.put(image, 0, image.length);
+                case UdtDeviceMessage.TYPE_CAPTURE_FORMAT:
+                    JpgEncoder.JpgData image = msg.getImage();
+                    if (msg.getType() == UdtDeviceMessage.TYPE_CAPTURE_FORMAT) {
+                        buffer.put((byte) image.format);
+                    }
+                    buffer.putInt(image.size);
                     output.write(rawBuffer, 0, buffer.position());
+                    writeChunks(image, output);
+                    return;
+                case UdtDeviceMessage.TYPE_CAPTURE_REGIONS:
+                    // format: 1 byte; count: 1 byte; then for each region: x, y, width, height, size: 4 bytes each; data
+                    buffer.put((byte) msg.regionFormat);
+                    buffer.put((byte) msg.regions.length);
+                    for (int r = 0; r < msg.regions.length; ++r) {
+                        Rect rect = msg.regions[r];
+                        JpgEncoder.JpgData regionImage = msg.regionImages[r];
+                        buffer.putInt(rect.left);
+                        buffer.putInt(rect.top);
+                        buffer.putInt(rect.width());
+                        buffer.putInt(rect.height());
+                        buffer.putInt(regionImage != null ? regionImage.size : 0);
+                        output.write(rawBuffer, 0, buffer.position());
+                        buffer.clear();
+                        if (regionImage != null) {
+                            writeChunks(regionImage, output);
+                        }
+                    }
+                    if (buffer.position() > 0) {
+                        // no region
+                        output.write(rawBuffer, 0, buffer.position());
+                    }
                     return;
                 case UdtDeviceMessage.TYPE_GET_LOCALE:
                     String locale = msg.getCurLocale();
@@ -255,10 +462,44 @@ public final class UdtSender {
                     buffer.putInt(info.getDeviceRotation());
                     output.write(rawBuffer, 0, buffer.position());
                     return;
+                case UdtDeviceMessage.TYPE_BITRATE:
+                    UdtBitrateController.Decision decision = msg.getBitRateDecision();
+                    buffer.putInt(decision.getBitRate());
+                    buffer.putInt(decision.getPreviousBitRate());
+                    buffer.put(decision.getReason());
+                    buffer.putInt(decision.getQueuedBytes());
+                    buffer.putInt(decision.getSendLatencyMs());
+                    buffer.putInt(decision.getOutputBitRate());
+                    output.write(rawBuffer, 0, buffer.position());
+                    return;
+                case UdtDeviceMessage.TYPE_VIDEO_STATS:
+                    UdtVideoHub.VideoStats stats = msg.getVideoStats();
+                    buffer.putInt(stats.getSubscribers());
+                    buffer.putLong(stats.getDroppedPackets());
+                    buffer.putLong(stats.getDroppedBytes());
+                    buffer.putInt(stats.getDropEvents());
+                    UdtEncoderWatchdog.Metrics watchdog = stats.getWatchdogMetrics();
+                    buffer.putInt(watchdog.getStalls());
+                    buffer.putInt(watchdog.getSyncFrames());
+                    buffer.putInt(watchdog.getRecreations());
+                    buffer.putInt(watchdog.getSoftwareFallbacks());
+                    buffer.putLong(watchdog.getLongestStallMs());
+                    buffer.putLong(stats.getSuppressedFrames());
+                    buffer.putLong(stats.getSuppressedBytes());
+                    buffer.putLong(stats.getKeepAlives());
+                    output.write(rawBuffer, 0, buffer.position());
+                    return;
                 default:
             }
         }
 
+        private static void writeChunks(JpgEncoder.JpgData image, OutputStream output) throws IOException {
+            // the payload is written from the encoder buffer, whatever its size
+            for (int offset = 0; offset < image.size; offset += CHUNK_SIZE) {
+                output.write(image.data, offset, Math.min(CHUNK_SIZE, image.size - offset));
+            }
+        }
+
         public void free() {
             if (buffer != null) {
                 buffer = null;
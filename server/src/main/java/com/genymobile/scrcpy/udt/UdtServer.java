@@ -3,7 +3,6 @@ package com.genymobile.scrcpy.udt;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 
-import com.genymobile.scrcpy.CodecOption;
 import com.genymobile.scrcpy.Controller;
 import com.genymobile.scrcpy.DesktopConnection;
 import com.genymobile.scrcpy.Device;
@@ -40,7 +39,8 @@ public class UdtServer {
                                     sClientCount++;
                                     UdtLn.i("[ctrl] on connect and current count = " + sClientCount);
                                     try {
-                                        StreamClient client = new StreamClient(DesktopConnection.build(null, socket), options);
+                                        StreamClient client = new StreamClient(DesktopConnection.build(null, socket), options,
+                                                StreamClient.TYPE_CONTROL);
                                         client.start();
                                     } catch (IOException e) {
                                         // ignore
@@ -54,6 +54,21 @@ public class UdtServer {
             }
         }).start();
 
+        // Start the simulcast layer servers, one video socket per layer
+        if (UdtOption.sSimulcastLayers != null) {
+            List<UdtSimulcast.Layer> layers = UdtOption.sSimulcastLayers;
+            for (int i = 0; i < layers.size(); ++i) {
+                UdtLn.i("simulcast: layer " + (i + 1) + ": " + layers.get(i));
+                startStreamServer(UdtOption.SOCKET_NAME + "-video-" + (i + 1), layers.get(i).createOptions(options), sendDummyByte,
+                        StreamClient.TYPE_LAYER);
+            }
+        }
+
+        // Start the preview server
+        if (UdtOption.sPreview) {
+            startStreamServer(UdtOption.SOCKET_NAME + "-preview", options, sendDummyByte, StreamClient.TYPE_PREVIEW);
+        }
+
         // Start video server
         try {
             open(UdtOption.SOCKET_NAME+"-video", sendDummyByte,
@@ -63,7 +78,7 @@ public class UdtServer {
                             sClientCount++;
                             UdtLn.i("[video] on connect and current count = " + sClientCount);
                             try {
-                                StreamClient client = new StreamClient(DesktopConnection.build(socket, null), options);
+                                StreamClient client = new StreamClient(DesktopConnection.build(socket, null), options, StreamClient.TYPE_VIDEO);
                                 client.start();
                             } catch (IOException e) {
                                 // ignore
@@ -76,13 +91,47 @@ public class UdtServer {
         return true;
     }
 
+    private static void startStreamServer(final String socketName, final Options streamOptions, final boolean sendDummyByte, final int type) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open(socketName, sendDummyByte,
+                            new DesktopConnectionListener() {
+                                @Override
+                                public void onConnect(LocalSocket socket) {
+                                    sClientCount++;
+                                    UdtLn.i("[video] " + socketName + " on connect and current count = " + sClientCount);
+                                    try {
+                                        StreamClient client = new StreamClient(DesktopConnection.build(socket, null), streamOptions, type);
+                                        client.start();
+                                    } catch (IOException e) {
+                                        // ignore
+                                    }
+                                }
+                            });
+                } catch (Exception e) {
+                    // this is expected on close
+                    UdtLn.d(socketName + " server stopped");
+                }
+            }
+        }).start();
+    }
+
     private static class StreamClient extends Thread {
         WeakReference<DesktopConnection> connectionRef;
+        static final int TYPE_CONTROL = 0;
+        static final int TYPE_VIDEO = 1;
+        static final int TYPE_LAYER = 2; // simulcast layer video socket
+        static final int TYPE_PREVIEW = 3;
+
         Options options;
+        int type;
 
-        StreamClient(DesktopConnection connection, Options options) {
+        StreamClient(DesktopConnection connection, Options options, int type) {
             this.connectionRef = new WeakReference<>(connection);
             this.options = options;
+            this.type = type;
         }
 
         @Override
@@ -111,10 +160,15 @@ public class UdtServer {
             boolean isVideo = connection.getVideoFd() != null;
 
             UdtLn.i("StreamClient start for connect: " + connection);
-            List<CodecOption> codecOptions = options.getCodecOptions();
             try {
-                final Device device = new Device(options);
-                streamScreen(connection, device, options, codecOptions, isVideo);
+                if (type == TYPE_PREVIEW) {
+                    streamPreview(connection, options);
+                } else if (isVideo) {
+                    streamVideo(connection, options, type == TYPE_LAYER);
+                } else {
+                    final Device device = new Device(options);
+                    streamScreen(connection, device, options);
+                }
             } catch (IOException e) {
                 UdtLn.i("client: " + connection +
                         ", exit by IOException: " + e);
@@ -138,69 +192,75 @@ public class UdtServer {
         }
     }
 
-    // sync with {com.genymobile.scrcpy.Server.startController()}
-    private static void streamScreen(DesktopConnection connection, Device device, Options options,
-                                     List<CodecOption> codecOptions, boolean isVideo) throws IOException {
-        // 如果该client为video client
-        if (isVideo) {
+    /**
+     * Subscribe the video client to the shared encoder of its configuration, and write its packets until the socket is closed.
+     */
+    private static void streamVideo(DesktopConnection connection, Options options, boolean layer) throws IOException {
+        UdtVideoHub.Subscriber subscriber = new UdtVideoHub.Subscriber(connection.getVideoFd());
+        UdtVideoHub hub = UdtVideoHub.subscribe(options, subscriber, layer);
+        try {
             if (options.getSendDeviceMeta()) {
-                Size videoSize = device.getScreenInfo().getVideoSize();
-                connection.sendDeviceMeta(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight());
+                Size videoSize = hub.getVideoSize();
+                connection.sendDeviceMeta(Device.getDeviceName(), videoSize.getWidth(), videoSize.getHeight(), hub.getVideoCodec());
             }
+            // synchronous
+            subscriber.loop();
+        } catch (IOException | InterruptedException e) {
+            // this is expected on close
+            UdtLn.w("Screen streaming stopped for " + connection.getVideoFd());
+        } finally {
+            hub.unsubscribe(subscriber);
+        }
+    }
 
-            ScreenEncoder screenEncoder = new ScreenEncoder(options.getSendFrameMeta(), options.getBitRate(), options.getMaxFps(), codecOptions,
-                    options.getEncoderName(), options.getDownsizeOnError());
+    /**
+     * Stream the JPEG preview of the display until the socket is closed.
+     */
+    private static void streamPreview(DesktopConnection connection, Options options) {
+        try {
+            UdtPreview.stream(connection.getVideoFd(), options);
+        } catch (IOException | InterruptedException e) {
+            // this is expected on close
+            UdtLn.w("Preview streaming stopped for " + connection.getVideoFd());
+        }
+    }
 
-            // FIXME: 这里有隐藏的风险，需要注意
-            UdtDevice udtDevice = UdtDevice.Combiner.get(device);
-            if (udtDevice != null) {
-                udtDevice.setUdtEncoder(screenEncoder);
-            }
-            try {
-                // synchronous
-                screenEncoder.streamScreen(device, connection.getVideoFd());
-            } catch (IOException e) {
-                // this is expected on close
-                UdtLn.w("Screen streaming stopped for " + connection.getVideoFd());
-            } finally {
-                // initThread.interrupt();
-            }
-        } else {
-            // 该client为control client
-            Thread controllerThread = null;
-            UdtDevice udtDevice = null;
-            final Controller controller = new Controller(device, connection, options.getClipboardAutosync(), options.getPowerOn());
-            if (UdtOption.SUPPORT) {
-                udtDevice = UdtDevice.build(device, connection, null, options);
-            }
+    // sync with {com.genymobile.scrcpy.Server.startController()}
+    private static void streamScreen(DesktopConnection connection, Device device, Options options) throws IOException {
+        // 该client为control client
+        Thread controllerThread = null;
+        UdtDevice udtDevice = null;
+        final Controller controller = new Controller(device, connection, options.getClipboardAutosync(), options.getPowerOn());
+        if (UdtOption.SUPPORT) {
+            udtDevice = UdtDevice.build(device, connection, null, options);
+        }
 
-            device.setClipboardListener(new Device.ClipboardListener() {
-                @Override
-                public void onClipboardTextChanged(String text) {
-                    controller.getSender().pushClipboardText(text);
-                }
-            });
+        device.setClipboardListener(new Device.ClipboardListener() {
+            @Override
+            public void onClipboardTextChanged(String text) {
+                controller.getSender().pushClipboardText(text);
+            }
+        });
 
-            // asynchronous
-            controllerThread = startController(controller, udtDevice);
+        // asynchronous
+        controllerThread = startController(controller, udtDevice);
 
-            // synchronous
-            try {
-                controller.getSender().loop();
-            } catch (IOException | InterruptedException e) {
-                // this is expected on close
-                UdtLn.d("Device message sender stopped");
-            }
+        // synchronous
+        try {
+            controller.getSender().loop();
+        } catch (IOException | InterruptedException e) {
+            // this is expected on close
+            UdtLn.d("Device message sender stopped");
+        }
 
-            if (UdtOption.SUPPORT) {
-                if (udtDevice != null) {
-                    udtDevice.stop();
-                }
-            }
-            if (controllerThread != null) {
-                controllerThread.interrupt();
+        if (UdtOption.SUPPORT) {
+            if (udtDevice != null) {
+                udtDevice.stop();
             }
         }
+        if (controllerThread != null) {
+            controllerThread.interrupt();
+        }
     }
 
     // sync with {com.genymobile.scrcpy.Server.startController()}
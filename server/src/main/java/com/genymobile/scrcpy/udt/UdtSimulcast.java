@@ -0,0 +1,537 @@
+package com.genymobile.scrcpy.udt;
+
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.view.Surface;
+
+import com.genymobile.scrcpy.Options;
+import com.genymobile.scrcpy.ScreenEncoder;
+import com.genymobile.scrcpy.ScreenInfo;
+import com.genymobile.scrcpy.Size;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Single capture path shared by the simulcast layers of a display.
+ * <p>
+ * Without simulcast, each encoder owns a virtual display, so every resolution costs a full composition of the screen. With the
+ * {@code udt_simulcast} option, one virtual display renders into a {@link SurfaceTexture}, and a GL thread draws each captured frame,
+ * scaled, to the input surface of every layer encoder. The encoders keep their own size, bitrate, max fps and codec lifecycle: they
+ * only attach their input surface instead of creating a display.
+ * <p>
+ * The capture follows the largest attached layer: its projection (content rect, rotation, layer stack) is updated when a layer
+ * attaches with another projection (rotation, crop) or a larger size.
+ */
+public final class UdtSimulcast {
+
+    /**
+     * An additional stream of the display, served on the video socket {@code <socket_name>-video-<index>}.
+     */
+    public static final class Layer {
+        private final int maxSize;
+        private final int bitRate;
+        private final int maxFps;
+        private final int intraRefreshPeriod; // -1 to keep the one of the main stream
+
+        Layer(int maxSize, int bitRate, int maxFps, int intraRefreshPeriod) {
+            this.maxSize = maxSize;
+            this.bitRate = bitRate;
+            this.maxFps = maxFps;
+            this.intraRefreshPeriod = intraRefreshPeriod;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public int getBitRate() {
+            return bitRate;
+        }
+
+        public int getMaxFps() {
+            return maxFps;
+        }
+
+        public int getIntraRefreshPeriod() {
+            return intraRefreshPeriod;
+        }
+
+        /**
+         * Derive the options of this layer from the options of the main stream.
+         */
+        public Options createOptions(Options options) {
+            Options layerOptions = options.copy();
+            layerOptions.setMaxSize(maxSize);
+            layerOptions.setBitRate(bitRate);
+            layerOptions.setMaxFps(maxFps);
+            if (intraRefreshPeriod >= 0) {
+                layerOptions.setIntraRefreshPeriod(intraRefreshPeriod);
+            }
+            return layerOptions;
+        }
+
+        @Override
+        public String toString() {
+            return "Layer{maxSize=" + maxSize + ", bitRate=" + bitRate + ", maxFps=" + maxFps + ", intraRefreshPeriod=" + intraRefreshPeriod
+                    + "}";
+        }
+    }
+
+    /**
+     * Parse the layers, in the format {@code maxSize:bitRate[:maxFps[:intraRefreshPeriod]],...}, for example
+     * {@code 360:1000000:15:30,720:4000000}. Without an intra refresh period, a layer uses the one of the main stream.
+     */
+    public static List<Layer> parseLayers(String value) {
+        List<Layer> layers = new ArrayList<>();
+        for (String token : value.split(",")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            String[] fields = token.split(":");
+            if (fields.length < 2 || fields.length > 4) {
+                throw new IllegalArgumentException("Invalid simulcast layer (maxSize:bitRate[:maxFps[:intraRefreshPeriod]]): " + token);
+            }
+            int maxSize = Integer.parseInt(fields[0]);
+            int bitRate = Integer.parseInt(fields[1]);
+            int maxFps = fields.length >= 3 ? Integer.parseInt(fields[2]) : 0;
+            int intraRefreshPeriod = fields.length == 4 ? Integer.parseInt(fields[3]) : -1;
+            layers.add(new Layer(maxSize, bitRate, maxFps, intraRefreshPeriod));
+        }
+        return layers;
+    }
+
+    private static final HashMap<String, UdtSimulcast> sCaptures = new HashMap<>();
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private static final String VERTEX_SHADER = ""
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTexCoord;\n"
+            + "uniform mat4 uTexMatrix;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = aPosition;\n"
+            + "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER = ""
+            + "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+            + "}\n";
+
+    private static final float[] VERTICES = {-1, -1, 1, -1, -1, 1, 1, 1};
+    private static final float[] TEX_COORDS = {0, 0, 1, 0, 0, 1, 1, 1};
+
+    private static final class Target {
+        private final Surface surface;
+        private final EGLSurface eglSurface;
+        private final int width;
+        private final int height;
+        private final UdtEncoder encoder; // may be null
+        private boolean failed;
+
+        Target(Surface surface, EGLSurface eglSurface, int width, int height, UdtEncoder encoder) {
+            this.surface = surface;
+            this.eglSurface = eglSurface;
+            this.width = width;
+            this.height = height;
+            this.encoder = encoder;
+        }
+    }
+
+    private final String key;
+    private int refCount;
+
+    private HandlerThread thread;
+    private Handler handler;
+
+    // accessed on the GL thread only
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    private EGLSurface pbuffer = EGL14.EGL_NO_SURFACE;
+    private int program;
+    private int textureId;
+    private int aPosition;
+    private int aTexCoord;
+    private int uTexMatrix;
+    private FloatBuffer vertices;
+    private FloatBuffer texCoords;
+    private final float[] texMatrix = new float[16];
+
+    private SurfaceTexture surfaceTexture;
+    private Surface captureSurface;
+    private IBinder display;
+    private Size captureSize;
+    private Rect contentRect;
+    private int videoRotation;
+    private int layerStack;
+    private final List<Target> targets = new ArrayList<>();
+
+    private UdtSimulcast(String key) {
+        this.key = key;
+    }
+
+    private static String keyOf(Options options) {
+        Rect crop = options.getCrop();
+        return options.getDisplayId()
+                + ":" + options.getLockVideoOrientation()
+                + ":" + options.getScaleImage()
+                + ":" + (crop == null ? "" : crop.flattenToString());
+    }
+
+    /**
+     * Return the capture shared by the streams of the display, created on first use.
+     */
+    public static UdtSimulcast acquire(Options options) {
+        String key = keyOf(options);
+        synchronized (UdtSimulcast.class) {
+            UdtSimulcast capture = sCaptures.get(key);
+            if (capture == null) {
+                capture = new UdtSimulcast(key);
+                capture.start();
+                sCaptures.put(key, capture);
+            }
+            ++capture.refCount;
+            return capture;
+        }
+    }
+
+    public void release() {
+        synchronized (UdtSimulcast.class) {
+            if (--refCount > 0) {
+                return;
+            }
+            sCaptures.remove(key);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseGl();
+                thread.quitSafely();
+            }
+        });
+    }
+
+    private void start() {
+        thread = new HandlerThread("udt-simulcast");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        try {
+            runSync(new Runnable() {
+                @Override
+                public void run() {
+                    initGl();
+                }
+            });
+        } catch (RuntimeException e) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseGl();
+                    thread.quitSafely();
+                }
+            });
+            throw e;
+        }
+    }
+
+    /**
+     * Draw the captured frames to the encoder input surface, until {@link #detach(Surface)}.
+     *
+     * @param encoder notified of the frames drawn to the surface, may be {@code null}
+     */
+    public void attach(final Surface surface, final ScreenInfo screenInfo, final int layerStack, final UdtEncoder encoder) {
+        runSync(new Runnable() {
+            @Override
+            public void run() {
+                Size videoSize = screenInfo.getVideoSize();
+                if (needsProjection(screenInfo, layerStack)) {
+                    project(screenInfo, layerStack);
+                }
+                int[] attribs = {EGL14.EGL_NONE};
+                EGLSurface eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, attribs, 0);
+                checkEgl(eglSurface != EGL14.EGL_NO_SURFACE, "eglCreateWindowSurface");
+                targets.add(new Target(surface, eglSurface, videoSize.getWidth(), videoSize.getHeight(), encoder));
+                UdtLn.i("simulcast: layer attached (" + videoSize + "), capture: " + captureSize + ", layers: " + targets.size());
+            }
+        });
+    }
+
+    /**
+     * Stop drawing to the encoder input surface. Must be called before releasing the codec.
+     */
+    public void detach(final Surface surface) {
+        runSync(new Runnable() {
+            @Override
+            public void run() {
+                for (Iterator<Target> it = targets.iterator(); it.hasNext(); ) {
+                    Target target = it.next();
+                    if (target.surface == surface) {
+                        EGL14.eglDestroySurface(eglDisplay, target.eglSurface);
+                        it.remove();
+                    }
+                }
+                if (targets.isEmpty() && display != null) {
+                    // nothing to capture for
+                    ScreenEncoder.destroyDisplay(display);
+                    display = null;
+                    captureSize = null;
+                }
+            }
+        });
+    }
+
+    private boolean needsProjection(ScreenInfo screenInfo, int layerStack) {
+        if (display == null) {
+            return true;
+        }
+        Size videoSize = screenInfo.getVideoSize();
+        boolean larger = (long) videoSize.getWidth() * videoSize.getHeight() > (long) captureSize.getWidth() * captureSize.getHeight();
+        // rotation or crop changed: the layer restarted before the others, capture for it until the larger ones attach again
+        boolean moved = screenInfo.getVideoRotation() != videoRotation || !screenInfo.getContentRect().equals(contentRect)
+                || layerStack != this.layerStack || (videoSize.getWidth() > videoSize.getHeight()) != (captureSize.getWidth()
+                > captureSize.getHeight());
+        return larger || moved;
+    }
+
+    private void project(ScreenInfo screenInfo, int layerStack) {
+        if (display == null) {
+            display = ScreenEncoder.createDisplay();
+        }
+        captureSize = screenInfo.getVideoSize();
+        contentRect = screenInfo.getContentRect();
+        videoRotation = screenInfo.getVideoRotation();
+        this.layerStack = layerStack;
+        surfaceTexture.setDefaultBufferSize(captureSize.getWidth(), captureSize.getHeight());
+        Rect unlockedVideoRect = screenInfo.getUnlockedVideoSize().toRect();
+        ScreenEncoder.setDisplaySurface(display, captureSurface, videoRotation, contentRect, unlockedVideoRect, layerStack);
+    }
+
+    private void initGl() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        checkEgl(EGL14.eglInitialize(eglDisplay, version, 0, version, 1), "eglInitialize");
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE,
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        checkEgl(EGL14.eglChooseConfig(eglDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0) && numConfigs[0] > 0,
+                "eglChooseConfig");
+        eglConfig = configs[0];
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        checkEgl(eglContext != EGL14.EGL_NO_CONTEXT, "eglCreateContext");
+        // the context must be current to update the texture, even when no layer is attached
+        int[] pbufferAttribs = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        pbuffer = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig, pbufferAttribs, 0);
+        checkEgl(pbuffer != EGL14.EGL_NO_SURFACE, "eglCreatePbufferSurface");
+        checkEgl(EGL14.eglMakeCurrent(eglDisplay, pbuffer, pbuffer, eglContext), "eglMakeCurrent");
+
+        program = createProgram();
+        aPosition = GLES20.glGetAttribLocation(program, "aPosition");
+        aTexCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+        uTexMatrix = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        vertices = createFloatBuffer(VERTICES);
+        texCoords = createFloatBuffer(TEX_COORDS);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                drawFrame();
+            }
+        }, handler);
+        captureSurface = new Surface(surfaceTexture);
+    }
+
+    private void releaseGl() {
+        if (display != null) {
+            ScreenEncoder.destroyDisplay(display);
+            display = null;
+        }
+        for (Target target : targets) {
+            EGL14.eglDestroySurface(eglDisplay, target.eglSurface);
+        }
+        targets.clear();
+        if (captureSurface != null) {
+            captureSurface.release();
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+        }
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            GLES20.glDeleteProgram(program);
+            GLES20.glDeleteTextures(1, new int[] {textureId}, 0);
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(eglDisplay, pbuffer);
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            EGL14.eglTerminate(eglDisplay);
+            eglDisplay = EGL14.EGL_NO_DISPLAY;
+        }
+        UdtLn.i("simulcast: capture released: " + key);
+    }
+
+    private void drawFrame() {
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(eglDisplay, pbuffer, pbuffer, eglContext);
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+        long timestamp = surfaceTexture.getTimestamp();
+        for (Target target : targets) {
+            if (target.failed) {
+                continue;
+            }
+            EGL14.eglMakeCurrent(eglDisplay, target.eglSurface, target.eglSurface, eglContext);
+            GLES20.glViewport(0, 0, target.width, target.height);
+            draw();
+            EGLExt.eglPresentationTimeANDROID(eglDisplay, target.eglSurface, timestamp);
+            if (!EGL14.eglSwapBuffers(eglDisplay, target.eglSurface)) {
+                // the codec is stopping, the surface is abandoned until detach()
+                target.failed = true;
+                UdtLn.w("simulcast: could not draw to layer (" + target.width + "x" + target.height + "), error: 0x"
+                        + Integer.toHexString(EGL14.eglGetError()));
+            } else if (target.encoder != null) {
+                target.encoder.onFrameRendered();
+            }
+        }
+    }
+
+    private void draw() {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(uTexMatrix, 1, false, texMatrix, 0);
+        GLES20.glEnableVertexAttribArray(aPosition);
+        GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, 0, vertices);
+        GLES20.glEnableVertexAttribArray(aTexCoord);
+        GLES20.glVertexAttribPointer(aTexCoord, 2, GLES20.GL_FLOAT, false, 0, texCoords);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(aPosition);
+        GLES20.glDisableVertexAttribArray(aTexCoord);
+    }
+
+    private static int createProgram() {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("Could not link the simulcast program: " + log);
+        }
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Could not compile the simulcast shader: " + log);
+        }
+        return shader;
+    }
+
+    private static FloatBuffer createFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static void checkEgl(boolean success, String operation) {
+        if (!success) {
+            throw new IllegalStateException(operation + " failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    /**
+     * Run on the GL thread and wait for the result. A failure is rethrown to the caller (the encoder restarts or falls back as for a
+     * codec error).
+     */
+    private void runSync(final Runnable runnable) {
+        final Object lock = new Object();
+        final boolean[] done = {false};
+        final RuntimeException[] error = {null};
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                } finally {
+                    synchronized (lock) {
+                        done[0] = true;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+        synchronized (lock) {
+            while (!done[0]) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.genymobile.scrcpy.udt;
+
+import android.media.MediaCodec;
+
+/**
+ * Suppress the duplicate frames of a static screen.
+ * <p>
+ * When the screen does not change, the encoder still repeats the previous frame every {@code KEY_REPEAT_PREVIOUS_FRAME_AFTER}: each
+ * repeat is a tiny P-frame with no change (all blocks skipped), timestamped exactly one repeat delay after the previous frame. A frame
+ * is considered a duplicate if it is not a key frame, its payload is at most {@code maxBytes} and it follows the previous frame by the
+ * repeat delay (within a small tolerance, neither earlier nor later).
+ * <p>
+ * Dropping a skipped frame does not change the decoder state (it reconstructs the reference as is). But a small real change may
+ * happen to be rendered on the repeat delay, and dropping it would leave the decoder without a reference the encoder used. So the
+ * first frame forwarded after suppressed frames is {@link #FORWARD_SYNC}: the caller requests a sync frame, which heals the stream
+ * if any suppressed frame was misclassified. Key frames are never suppressed, and need no sync frame. Instead of the
+ * duplicates, a keep-alive marker (a frame meta header without payload) is sent at most every {@code keepAliveMs}, so that the
+ * client can tell a static screen from a dead stream.
+ * <p>
+ * This class only takes the decisions (so that it can be unit tested).
+ */
+public final class UdtStaticFilter {
+
+    public static final int FORWARD = 0;
+    public static final int SUPPRESS = 1;
+    public static final int KEEP_ALIVE = 2;
+    public static final int FORWARD_SYNC = 3;
+
+    // tolerance on the repeat delay, both ways
+    private static final int REPEAT_TOLERANCE_PERCENT = 10;
+
+    private final int maxBytes;
+    private final long repeatDelayUs;
+    private final long keepAliveUs;
+
+    private long lastPtsUs = -1;
+    private long lastSentPtsUs = -1;
+    private boolean suppressed; // since the last forwarded frame
+
+    private long suppressedFrames;
+    private long suppressedBytes;
+    private long keepAlives;
+
+    public UdtStaticFilter(int maxBytes, long repeatDelayUs, long keepAliveMs) {
+        this.maxBytes = maxBytes;
+        this.repeatDelayUs = repeatDelayUs;
+        this.keepAliveUs = keepAliveMs * 1000;
+    }
+
+    /**
+     * Decide what to send for an output buffer.
+     *
+     * @return {@link #FORWARD} to send the packet, {@link #FORWARD_SYNC} to send it and request a sync frame, {@link #SUPPRESS} to
+     * drop it, {@link #KEEP_ALIVE} to send a marker instead
+     */
+    public synchronized int filter(int flags, long ptsUs, int size) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return FORWARD;
+        }
+        boolean repeat = lastPtsUs >= 0 && Math.abs(ptsUs - lastPtsUs - repeatDelayUs) * 100 <= repeatDelayUs * REPEAT_TOLERANCE_PERCENT;
+        lastPtsUs = ptsUs;
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyFrame || size > maxBytes || !repeat) {
+            lastSentPtsUs = ptsUs;
+            boolean resync = suppressed && !keyFrame;
+            suppressed = false;
+            return resync ? FORWARD_SYNC : FORWARD;
+        }
+        suppressed = true;
+        ++suppressedFrames;
+        suppressedBytes += size;
+        if (ptsUs - lastSentPtsUs >= keepAliveUs) {
+            lastSentPtsUs = ptsUs;
+            ++keepAlives;
+            return KEEP_ALIVE;
+        }
+        return SUPPRESS;
+    }
+
+    /**
+     * The codec was restarted: its timestamps and frames do not follow the previous ones.
+     */
+    public synchronized void reset() {
+        lastPtsUs = -1;
+        lastSentPtsUs = -1;
+        suppressed = false;
+    }
+
+    synchronized void addStats(UdtVideoHub.VideoStats stats) {
+        stats.addSuppressed(suppressedFrames, suppressedBytes, keepAlives);
+    }
+}
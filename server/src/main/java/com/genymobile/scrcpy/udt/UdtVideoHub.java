@@ -0,0 +1,680 @@
+package com.genymobile.scrcpy.udt;
+
+import android.graphics.Rect;
+import android.media.MediaCodec;
+import android.os.SystemClock;
+
+import com.genymobile.scrcpy.Device;
+import com.genymobile.scrcpy.IO;
+import com.genymobile.scrcpy.Options;
+import com.genymobile.scrcpy.ScreenEncoder;
+import com.genymobile.scrcpy.Size;
+import com.genymobile.scrcpy.VideoCodec;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One screen encoder per display and configuration, broadcasting its packets to every subscribed video socket.
+ * <p>
+ * Each subscriber owns its send queue, drained by its own thread, so that a slow socket never blocks the codec thread nor the other
+ * subscribers. A subscriber joining a running encoder receives the cached config packet (SPS/PPS) first, then starts at the next key frame.
+ * <p>
+ * The queues are bounded: when a socket cannot keep up, its queued frames are dropped and it restarts at the next key frame (which is
+ * requested immediately).
+ * <p>
+ * The frame packets are shared by the subscribers and reference counted: their buffer returns to the hub pool once every subscriber
+ * has written or dropped it.
+ * <p>
+ * The control clients share the encoder too, so their requests are arbitrated: the codec is suspended only when there are at least
+ * as many pausing clients as subscribers (a viewer without control never pauses), and the bitrate is the lowest one requested.
+ */
+public final class UdtVideoHub {
+    private static final HashMap<String, UdtVideoHub> sHubs = new HashMap<>();
+
+    private final String key;
+    private final Options options;
+    private final Device device;
+    private final VideoCodec videoCodec; // null if not requested by the options
+    private final ScreenEncoder screenEncoder;
+    private final UdtEncoder udtEncoder;
+    private final UdtBitrateController bitrateController; // null if adaptive bitrate is disabled
+    private final int defaultBitRate; // if no client requested a bitrate
+    private final boolean layer; // an additional simulcast layer
+    private final UdtSimulcast simulcast; // null if the encoder owns its display
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final int queueLimit; // in bytes, for each subscriber
+    private final PacketPool packetPool = new PacketPool();
+    private Packet configPacket;
+    private Thread encoderThread;
+
+    // the requests of the control clients, guarded by clientLock
+    private final Object clientLock = new Object();
+    private final HashSet<Object> pausingClients = new HashSet<>();
+    private final HashMap<Object, Integer> requestedBitRates = new HashMap<>();
+    private boolean paused;
+
+    private UdtVideoHub(String key, Options options, boolean layer) {
+        this.key = key;
+        this.options = options;
+        this.layer = layer;
+        this.device = new Device(options);
+        List<VideoCodec> videoCodecs = options.getVideoCodecs();
+        this.videoCodec = videoCodecs != null ? ScreenEncoder.selectVideoCodec(videoCodecs, options.getEncoderName()) : null;
+        this.screenEncoder = new ScreenEncoder(videoCodec != null ? videoCodec : VideoCodec.H264, options.getSendFrameMeta(),
+                options.getBitRate(), options.getMaxFps(), options.getCodecOptions(), options.getEncoderName(), options.getDownsizeOnError());
+        screenEncoder.setIntraRefreshPeriod(options.getIntraRefreshPeriod());
+        this.udtEncoder = new UdtEncoder(screenEncoder);
+        udtEncoder.setHub(this);
+        screenEncoder.setUdtEncoder(udtEncoder);
+        if (UdtOption.sSimulcastLayers != null) {
+            simulcast = UdtSimulcast.acquire(options);
+            screenEncoder.setSimulcast(simulcast, layer);
+        } else {
+            simulcast = null;
+        }
+        queueLimit = (int) Math.min(Integer.MAX_VALUE, (long) options.getBitRate() / 8 * UdtOption.sVideoQueueMs / 1000);
+        if (UdtOption.sAdaptiveBitRate) {
+            int maxBitRate = UdtOption.sMaxBitRate > 0 ? UdtOption.sMaxBitRate : options.getBitRate();
+            bitrateController = new UdtBitrateController(options.getBitRate(), UdtOption.sMinBitRate, maxBitRate);
+            defaultBitRate = maxBitRate;
+        } else {
+            bitrateController = null;
+            defaultBitRate = options.getBitRate();
+        }
+    }
+
+    public static UdtVideoHub subscribe(Options options, Subscriber subscriber) {
+        return subscribe(options, subscriber, false);
+    }
+
+    /**
+     * @param layer {@code true} for an additional simulcast layer (see {@link UdtSimulcast})
+     */
+    public static UdtVideoHub subscribe(Options options, Subscriber subscriber, boolean layer) {
+        String key = keyOf(options) + (layer ? ":layer" : "");
+        UdtVideoHub hub;
+        boolean created;
+        synchronized (UdtVideoHub.class) {
+            hub = sHubs.get(key);
+            created = hub == null;
+            if (created) {
+                hub = new UdtVideoHub(key, options, layer);
+                sHubs.put(key, hub);
+            }
+            hub.add(subscriber);
+            if (created) {
+                hub.start();
+            }
+        }
+        synchronized (hub.clientLock) {
+            // a new viewer is not paused
+            hub.updatePause();
+        }
+        if (!created) {
+            // join the running stream as soon as possible instead of waiting for the periodic key frame
+            hub.udtEncoder.requestKeyFrame();
+        }
+        return hub;
+    }
+
+    /**
+     * Return the drop counters of the subscribers currently streaming the given display.
+     */
+    public static synchronized VideoStats getVideoStats(int displayId) {
+        VideoStats stats = new VideoStats();
+        for (UdtVideoHub hub : sHubs.values()) {
+            if (hub.options.getDisplayId() == displayId) {
+                for (Subscriber subscriber : hub.subscribers) {
+                    subscriber.addDropStats(stats);
+                }
+                hub.udtEncoder.addWatchdogMetrics(stats.watchdog);
+                hub.udtEncoder.addStaticStats(stats);
+            }
+        }
+        return stats;
+    }
+
+    static synchronized List<UdtVideoHub> getHubs(int displayId) {
+        List<UdtVideoHub> result = new ArrayList<>();
+        for (UdtVideoHub hub : sHubs.values()) {
+            if (hub.options.getDisplayId() == displayId) {
+                result.add(hub);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reconfigure the running stream. The hub keeps its key: the clients connecting with the initial options join the
+     * reconfigured stream.
+     */
+    void setVideoConfig(int maxSize, Rect crop, int maxFps) {
+        if (layer) {
+            // a simulcast layer keeps its own size and fps, only the crop is shared
+            maxSize = device.getMaxSize();
+            maxFps = UdtControllerMessageReader.UdtControlMessage.UNCHANGED;
+        }
+        device.setVideoConfig(maxSize, crop);
+        udtEncoder.setVideoConfig(maxFps);
+        UdtLn.i("[video] new video size: " + getVideoSize() + ", hub: " + key);
+    }
+
+    private static String keyOf(Options options) {
+        Rect crop = options.getCrop();
+        return options.getDisplayId()
+                + ":" + options.getMaxSize()
+                + ":" + options.getBitRate()
+                + ":" + options.getMaxFps()
+                + ":" + options.getLockVideoOrientation()
+                + ":" + options.getSendFrameMeta()
+                + ":" + options.getEncoderName()
+                + ":" + options.getVideoCodecs()
+                + ":" + options.getIntraRefreshPeriod()
+                + ":" + (crop == null ? "" : crop.flattenToString());
+    }
+
+    public Size getVideoSize() {
+        return device.getScreenInfo().getVideoSize();
+    }
+
+    /**
+     * Return the codec negotiated from the {@code video_codec} option, or {@code null} if the option was not set (h264).
+     */
+    public VideoCodec getVideoCodec() {
+        return videoCodec;
+    }
+
+    public UdtEncoder getUdtEncoder() {
+        return udtEncoder;
+    }
+
+    private void add(Subscriber subscriber) {
+        subscriber.setQueueLimit(queueLimit);
+        synchronized (this) {
+            if (configPacket != null) {
+                subscriber.offer(configPacket);
+            }
+            subscribers.add(subscriber);
+        }
+        UdtLn.i("[video] subscriber added: " + subscriber + ", count: " + subscribers.size() + ", hub: " + key);
+    }
+
+    /**
+     * Pause or resume the stream for a control client.
+     */
+    void requestPause(Object client, boolean pause) {
+        synchronized (clientLock) {
+            if (pause) {
+                pausingClients.add(client);
+            } else {
+                pausingClients.remove(client);
+            }
+            updatePause();
+        }
+    }
+
+    /**
+     * A control client requested a key frame: it resumes the stream for this client.
+     */
+    void requestKeyFrame(Object client) {
+        synchronized (clientLock) {
+            pausingClients.remove(client);
+            updatePause();
+            if (paused) {
+                // the other subscribers are still paused, the key frame is produced on resume
+                return;
+            }
+        }
+        udtEncoder.requestKeyFrame();
+    }
+
+    void requestBitRate(Object client, int bitRate) {
+        synchronized (clientLock) {
+            requestedBitRates.put(client, bitRate);
+            updateBitRate();
+        }
+    }
+
+    /**
+     * The control client is disconnected: withdraw its requests.
+     */
+    void removeClient(Object client) {
+        synchronized (clientLock) {
+            boolean bitRateChanged = requestedBitRates.remove(client) != null;
+            if (pausingClients.remove(client)) {
+                updatePause();
+            }
+            if (bitRateChanged) {
+                updateBitRate();
+            }
+        }
+    }
+
+    private void updatePause() {
+        boolean pause = !pausingClients.isEmpty() && pausingClients.size() >= subscribers.size();
+        if (pause != paused) {
+            paused = pause;
+            UdtLn.i("[video] " + (pause ? "pause" : "resume") + ", pausing clients: " + pausingClients.size() + ", subscribers: "
+                    + subscribers.size() + ", hub: " + key);
+            udtEncoder.onPauseVideo(pause);
+        }
+    }
+
+    private void updateBitRate() {
+        int bitRate = defaultBitRate;
+        if (!requestedBitRates.isEmpty()) {
+            bitRate = Integer.MAX_VALUE;
+            for (int requested : requestedBitRates.values()) {
+                bitRate = Math.min(bitRate, requested);
+            }
+        }
+        if (bitrateController != null) {
+            // the adaptive bitrate starts from the requested bitrate, and never exceeds it
+            bitrateController.setMaxBitRate(bitRate);
+        }
+        udtEncoder.setBitRate(bitRate);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        boolean last;
+        synchronized (UdtVideoHub.class) {
+            subscribers.remove(subscriber);
+            last = subscribers.isEmpty();
+            if (last && sHubs.get(key) == this) {
+                sHubs.remove(key);
+            }
+        }
+        // release the packets still queued, and reject those of a broadcast in progress
+        subscriber.close();
+        VideoStats stats = new VideoStats();
+        subscriber.addDropStats(stats);
+        UdtLn.i("[video] subscriber removed: " + subscriber + ", count: " + subscribers.size() + ", hub: " + key + ", " + stats);
+        if (last) {
+            udtEncoder.onExitVideo();
+        } else {
+            synchronized (clientLock) {
+                updatePause();
+            }
+        }
+    }
+
+    private void start() {
+        encoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    screenEncoder.streamScreen(device, null);
+                } catch (Exception e) {
+                    UdtLn.e("[video] encoder stopped for hub " + key + " by " + e);
+                } finally {
+                    onEncoderStopped();
+                }
+            }
+        }, "udt-video-" + key);
+        encoderThread.start();
+    }
+
+    private void onEncoderStopped() {
+        // under the registry lock: a concurrent subscribe() either joins this hub before it is closed, or creates a new one
+        synchronized (UdtVideoHub.class) {
+            if (sHubs.get(key) == this) {
+                sHubs.remove(key);
+            }
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+        if (simulcast != null) {
+            simulcast.release();
+        }
+        UdtLn.i("[video] hub stopped: " + key);
+    }
+
+    /**
+     * Called on the codec thread for every output buffer.
+     *
+     * @param header the frame meta header, or {@code null} if frame meta is disabled
+     */
+    void broadcast(MediaCodec.BufferInfo bufferInfo, ByteBuffer header, ByteBuffer codecBuffer) {
+        int headerSize = header != null ? header.remaining() : 0;
+        int length = headerSize + codecBuffer.remaining();
+        boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        // the config packet is cached for the next subscribers, it is never recycled
+        byte[] data = config ? new byte[length] : packetPool.obtain(length);
+        if (header != null) {
+            header.get(data, 0, headerSize);
+        }
+        codecBuffer.get(data, headerSize, length - headerSize);
+
+        Packet packet = new Packet(data, length, config, keyFrame, config ? null : packetPool);
+        boolean requestKeyFrame = false;
+        synchronized (this) {
+            if (config) {
+                configPacket = packet;
+            }
+            for (Subscriber subscriber : subscribers) {
+                requestKeyFrame |= subscriber.offer(packet);
+            }
+        }
+        // the subscribers hold their own references
+        packet.release();
+        if (requestKeyFrame) {
+            UdtLn.w("[video] subscriber too slow, drop frames until the next key frame, hub: " + key);
+            // let the slow subscribers restart as soon as possible
+            udtEncoder.requestKeyFrame();
+        }
+        if (bitrateController != null) {
+            adaptBitRate(length);
+        }
+    }
+
+    private void adaptBitRate(int packetSize) {
+        long now = SystemClock.uptimeMillis();
+        bitrateController.onOutput(packetSize, now);
+        if (!bitrateController.isDue(now)) {
+            return;
+        }
+        int queuedBytes = 0;
+        int sendLatencyMs = 0;
+        for (Subscriber subscriber : subscribers) {
+            queuedBytes = Math.max(queuedBytes, subscriber.getQueuedBytes());
+            sendLatencyMs = Math.max(sendLatencyMs, subscriber.takeSendLatency());
+        }
+        UdtBitrateController.Decision decision = bitrateController.evaluate(now, queuedBytes, sendLatencyMs);
+        if (decision == null) {
+            return;
+        }
+        UdtLn.i("[video] adaptive bitrate: " + decision + ", hub: " + key);
+        udtEncoder.setBitRate(decision.getBitRate());
+        UdtDevice.reportBitRate(options.getDisplayId(), decision);
+    }
+
+    /**
+     * Recycle the packet buffers: a few buffers, large enough for the recent packets, so that the codec thread does not allocate
+     * a new array for every frame.
+     */
+    static final class PacketPool {
+        private static final int MAX_FREE_BUFFERS = 8;
+        private static final int SIZE_ALIGNMENT = 16 * 1024; // so that a buffer fits the next packets of similar size
+
+        private final LinkedList<byte[]> freeBuffers = new LinkedList<>();
+
+        synchronized byte[] obtain(int size) {
+            Iterator<byte[]> it = freeBuffers.iterator();
+            while (it.hasNext()) {
+                byte[] buffer = it.next();
+                if (buffer.length >= size) {
+                    it.remove();
+                    return buffer;
+                }
+            }
+            return new byte[(size + SIZE_ALIGNMENT - 1) / SIZE_ALIGNMENT * SIZE_ALIGNMENT];
+        }
+
+        synchronized void recycle(byte[] buffer) {
+            if (freeBuffers.size() >= MAX_FREE_BUFFERS) {
+                // keep the largest buffers, they fit any packet
+                byte[] smallest = freeBuffers.getFirst();
+                for (byte[] free : freeBuffers) {
+                    if (free.length < smallest.length) {
+                        smallest = free;
+                    }
+                }
+                if (smallest.length >= buffer.length) {
+                    return;
+                }
+                freeBuffers.remove(smallest);
+            }
+            freeBuffers.addLast(buffer);
+        }
+
+        synchronized int getFreeCount() {
+            return freeBuffers.size();
+        }
+    }
+
+    /**
+     * A packet shared by the subscribers.
+     * <p>
+     * It is created with a single reference (the hub's); each subscriber queuing it takes another one, and releases it once written or
+     * dropped.
+     */
+    static final class Packet {
+        final byte[] data;
+        final int length;
+        final boolean config;
+        final boolean keyFrame;
+        private final PacketPool pool; // null if the buffer is not recycled
+        private int refCount = 1;
+
+        Packet(byte[] data, boolean config, boolean keyFrame) {
+            this(data, data.length, config, keyFrame, null);
+        }
+
+        Packet(byte[] data, int length, boolean config, boolean keyFrame, PacketPool pool) {
+            this.data = data;
+            this.length = length;
+            this.config = config;
+            this.keyFrame = keyFrame;
+            this.pool = pool;
+        }
+
+        synchronized void retain() {
+            ++refCount;
+        }
+
+        void release() {
+            boolean free;
+            synchronized (this) {
+                free = --refCount == 0;
+            }
+            if (free && pool != null) {
+                pool.recycle(data);
+            }
+        }
+    }
+
+    public static final class VideoStats {
+        private int subscribers;
+        private long droppedPackets;
+        private long droppedBytes;
+        private int dropEvents;
+        private final UdtEncoderWatchdog.Metrics watchdog = new UdtEncoderWatchdog.Metrics();
+        private long suppressedFrames;
+        private long suppressedBytes;
+        private long keepAlives;
+
+        public int getSubscribers() {
+            return subscribers;
+        }
+
+        public long getDroppedPackets() {
+            return droppedPackets;
+        }
+
+        public long getDroppedBytes() {
+            return droppedBytes;
+        }
+
+        public int getDropEvents() {
+            return dropEvents;
+        }
+
+        public UdtEncoderWatchdog.Metrics getWatchdogMetrics() {
+            return watchdog;
+        }
+
+        public long getSuppressedFrames() {
+            return suppressedFrames;
+        }
+
+        public long getSuppressedBytes() {
+            return suppressedBytes;
+        }
+
+        public long getKeepAlives() {
+            return keepAlives;
+        }
+
+        void addSuppressed(long frames, long bytes, long markers) {
+            suppressedFrames += frames;
+            suppressedBytes += bytes;
+            keepAlives += markers;
+        }
+
+        @Override
+        public String toString() {
+            return "VideoStats{subscribers=" + subscribers + ", droppedPackets=" + droppedPackets + ", droppedBytes=" + droppedBytes
+                    + ", dropEvents=" + dropEvents + ", " + watchdog + ", suppressedFrames=" + suppressedFrames + ", suppressedBytes="
+                    + suppressedBytes + ", keepAlives=" + keepAlives + "}";
+        }
+    }
+
+    public static final class Subscriber {
+        private final FileDescriptor fd;
+        private final LinkedList<Packet> queue = new LinkedList<>();
+        private boolean waitKeyFrame = true;
+        private boolean closed;
+        private int queuedBytes;
+        private int maxSendLatencyMs; // since the last takeSendLatency()
+        private int queueLimit = Integer.MAX_VALUE;
+        private boolean dropping; // waiting for a key frame after an overflow
+
+        // drop counters
+        private long droppedPackets;
+        private long droppedBytes;
+        private int dropEvents;
+
+        public Subscriber(FileDescriptor fd) {
+            this.fd = fd;
+        }
+
+        synchronized void setQueueLimit(int queueLimit) {
+            this.queueLimit = queueLimit;
+        }
+
+        /**
+         * @return {@code true} if the queue overflowed and a key frame is needed to resume
+         */
+        synchronized boolean offer(Packet packet) {
+            if (closed) {
+                return false;
+            }
+            boolean overflow = false;
+            if (!packet.config) {
+                if (!packet.keyFrame && !waitKeyFrame && queuedBytes + packet.length > queueLimit) {
+                    overflow = true;
+                    dropping = true;
+                    ++dropEvents;
+                    dropQueuedFrames();
+                }
+                if (waitKeyFrame && !packet.keyFrame) {
+                    // the decoder could not use it, wait for the next key frame
+                    if (dropping) {
+                        ++droppedPackets;
+                        droppedBytes += packet.length;
+                    }
+                    return overflow;
+                }
+                waitKeyFrame = false;
+                dropping = false;
+            }
+            packet.retain();
+            queue.addLast(packet);
+            queuedBytes += packet.length;
+            notify();
+            return false;
+        }
+
+        /**
+         * Drop the queued frames, they would only increase the latency: the stream restarts at the next key frame.
+         */
+        private void dropQueuedFrames() {
+            Iterator<Packet> it = queue.iterator();
+            while (it.hasNext()) {
+                Packet queued = it.next();
+                if (!queued.config) {
+                    it.remove();
+                    queuedBytes -= queued.length;
+                    ++droppedPackets;
+                    droppedBytes += queued.length;
+                    queued.release();
+                }
+            }
+            waitKeyFrame = true;
+        }
+
+        synchronized void addDropStats(VideoStats stats) {
+            ++stats.subscribers;
+            stats.droppedPackets += droppedPackets;
+            stats.droppedBytes += droppedBytes;
+            stats.dropEvents += dropEvents;
+        }
+
+        synchronized int getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        synchronized int takeSendLatency() {
+            int result = maxSendLatencyMs;
+            maxSendLatencyMs = 0;
+            return result;
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Packet queued : queue) {
+                queued.release();
+            }
+            queue.clear();
+            queuedBytes = 0;
+            notify();
+        }
+
+        /**
+         * Write the queued packets to the socket until the subscriber or the encoder is closed.
+         */
+        public void loop() throws IOException, InterruptedException {
+            while (true) {
+                Packet packet;
+                synchronized (this) {
+                    while (!closed && queue.isEmpty()) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    packet = queue.removeFirst();
+                    queuedBytes -= packet.length;
+                }
+                long start = SystemClock.uptimeMillis();
+                try {
+                    // blocks while the socket buffer is full
+                    IO.writeFully(fd, packet.data, 0, packet.length);
+                } finally {
+                    packet.release();
+                }
+                int latencyMs = (int) (SystemClock.uptimeMillis() - start);
+                synchronized (this) {
+                    maxSendLatencyMs = Math.max(maxSendLatencyMs, latencyMs);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Subscriber{fd=" + fd + "}";
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.genymobile.scrcpy.udt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Planar YUV 4:2:0 copy of a {@code YUV_420_888} image, in the layout of the TurboJPEG YUV images.
+ * <p>
+ * The luma plane and planar chroma planes (pixel stride 1) are copied as is, with their row stride. Semi-planar chroma planes
+ * (NV12/NV21, pixel stride 2) are de-interleaved. The arrays are reused across the images.
+ */
+final class YuvPlanes {
+
+    final byte[][] planes = {new byte[0], new byte[0], new byte[0]};
+    final int[] strides = new int[3];
+
+    private byte[] interleaved = new byte[0];
+
+    private static int getChromaSize(int size) {
+        return (size + 1) / 2;
+    }
+
+    /**
+     * Copy a plane.
+     *
+     * @param index       0 for Y, 1 for U (Cb), 2 for V (Cr)
+     * @param buffer      the plane buffer, from its position
+     * @param rowStride   the row stride of the plane
+     * @param pixelStride the pixel stride of the plane (1 or 2 for the chroma planes)
+     */
+    void copy(int index, ByteBuffer buffer, int rowStride, int pixelStride, int width, int height) {
+        int planeWidth = index == 0 ? width : getChromaSize(width);
+        int planeHeight = index == 0 ? height : getChromaSize(height);
+        if (pixelStride == 1) {
+            strides[index] = rowStride;
+            planes[index] = copyBuffer(buffer, planes[index], rowStride * planeHeight);
+            return;
+        }
+        interleaved = copyBuffer(buffer, interleaved, rowStride * planeHeight);
+        byte[] plane = planes[index];
+        if (plane.length < planeWidth * planeHeight) {
+            plane = new byte[planeWidth * planeHeight];
+            planes[index] = plane;
+        }
+        strides[index] = planeWidth;
+        for (int y = 0; y < planeHeight; ++y) {
+            int src = y * rowStride;
+            int dst = y * planeWidth;
+            for (int x = 0; x < planeWidth; ++x) {
+                plane[dst + x] = interleaved[src + x * pixelStride];
+            }
+        }
+    }
+
+    /**
+     * Return the offsets of the rows {@code y} (even) in the planes.
+     */
+    int[] getOffsets(int y, int[] offsets) {
+        offsets[0] = y * strides[0];
+        offsets[1] = y / 2 * strides[1];
+        offsets[2] = y / 2 * strides[2];
+        return offsets;
+    }
+
+    private static byte[] copyBuffer(ByteBuffer buffer, byte[] array, int size) {
+        // the last row of a plane may not be padded to the row stride
+        int length = buffer.remaining();
+        if (array.length < Math.max(size, length)) {
+            array = new byte[Math.max(size, length)];
+        }
+        buffer.get(array, 0, length);
+        return array;
+    }
+}
@@ -0,0 +1,41 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class VideoCodecTest {
+
+    @Test
+    public void testParseSingle() {
+        List<VideoCodec> codecs = VideoCodec.parse("h265");
+        Assert.assertEquals(Arrays.asList(VideoCodec.H265), codecs);
+    }
+
+    @Test
+    public void testParsePreferences() {
+        List<VideoCodec> codecs = VideoCodec.parse("av1, H265,h264");
+        Assert.assertEquals(Arrays.asList(VideoCodec.AV1, VideoCodec.H265, VideoCodec.H264), codecs);
+    }
+
+    @Test
+    public void testParseAuto() {
+        List<VideoCodec> codecs = VideoCodec.parse("auto");
+        Assert.assertEquals(Arrays.asList(VideoCodec.AV1, VideoCodec.H265, VideoCodec.H264), codecs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknown() {
+        VideoCodec.parse("vp8");
+    }
+
+    @Test
+    public void testIds() {
+        // 4-byte ASCII codec names sent in the device meta
+        Assert.assertEquals(0x68323634, VideoCodec.H264.getId()); // "h264"
+        Assert.assertEquals(0x68323635, VideoCodec.H265.getId()); // "h265"
+        Assert.assertEquals(0x00617631, VideoCodec.AV1.getId()); // "\0av1"
+    }
+}
@@ -0,0 +1,83 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class JpgStitcherTest {
+
+    private static final int[] APP0 = {0xFF, 0xE0, 0x00, 0x04, 'J', 'F'};
+    private static final int[] SOF0 = {0xFF, 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x20, 0x01, 0x01, 0x22, 0x00};
+    private static final int[] SOS = {0xFF, 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00, 0x3F, 0x00};
+
+    private static byte[] createStrip(int... entropyData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        write(out, APP0);
+        write(out, SOF0);
+        write(out, SOS);
+        write(out, entropyData);
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, int[] bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+
+    @Test
+    public void testStitch() {
+        byte[][] strips = {createStrip(0x11, 0xFF, 0x00), createStrip(0x22), createStrip(0x33, 0x34)};
+        int[] sizes = {strips[0].length, strips[1].length, strips[2].length};
+        byte[] out = new byte[JpgStitcher.getMaxSize(sizes, 3)];
+        int size = JpgStitcher.stitch(strips, sizes, 3, 40, 2, out);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(0xFF);
+        expected.write(0xD8);
+        write(expected, APP0);
+        int[] sof = SOF0.clone();
+        sof[6] = 40; // full height
+        write(expected, sof);
+        write(expected, new int[]{0xFF, 0xDD, 0x00, 0x04, 0x00, 0x02});
+        write(expected, SOS);
+        write(expected, new int[]{0x11, 0xFF, 0x00, 0xFF, 0xD0, 0x22, 0xFF, 0xD1, 0x33, 0x34, 0xFF, 0xD9});
+
+        byte[] result = new byte[size];
+        System.arraycopy(out, 0, result, 0, size);
+        Assert.assertArrayEquals(expected.toByteArray(), result);
+    }
+
+    @Test
+    public void testStripGeometry() {
+        Assert.assertEquals(1, JpgStitcher.computeStripCount(240, 8));
+        Assert.assertEquals(4, JpgStitcher.computeStripCount(1080, 8));
+        Assert.assertEquals(8, JpgStitcher.computeStripCount(2400, 8));
+
+        // 1080 / 4 = 270, rounded up to the 4:2:0 MCU height
+        int stripHeight = JpgStitcher.computeStripHeight(1920, 1080, 4, 16, 16);
+        Assert.assertEquals(272, stripHeight);
+        Assert.assertEquals(120 * 17, JpgStitcher.computeRestartInterval(1920, stripHeight, 16, 16));
+
+        // the restart interval must fit in 16 bits
+        stripHeight = JpgStitcher.computeStripHeight(8192, 16384, 2, 16, 16);
+        Assert.assertTrue(JpgStitcher.computeRestartInterval(8192, stripHeight, 16, 16) <= 0xFFFF);
+        Assert.assertEquals(0, stripHeight % 16);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectRestartMarkers() {
+        byte[] strip = createStrip(0x11);
+        byte[] withDri = new byte[strip.length + 6];
+        System.arraycopy(strip, 0, withDri, 0, 2);
+        byte[] dri = {(byte) 0xFF, (byte) 0xDD, 0x00, 0x04, 0x00, 0x01};
+        System.arraycopy(dri, 0, withDri, 2, 6);
+        System.arraycopy(strip, 2, withDri, 8, strip.length - 2);
+        JpgStitcher.parse(withDri, withDri.length);
+    }
+}
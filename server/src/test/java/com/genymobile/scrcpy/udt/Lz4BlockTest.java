@@ -0,0 +1,113 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class Lz4BlockTest {
+
+    /**
+     * Decode framed blocks, from the position of {@code in}.
+     */
+    static byte[] decompressFramed(ByteBuffer in, int originalSize) {
+        byte[] dst = new byte[originalSize];
+        int op = 0;
+        int size;
+        while ((size = in.getInt()) != 0) {
+            byte[] block = new byte[size & ~Lz4Block.BLOCK_UNCOMPRESSED];
+            in.get(block);
+            if ((size & Lz4Block.BLOCK_UNCOMPRESSED) != 0) {
+                System.arraycopy(block, 0, dst, op, block.length);
+                op += block.length;
+            } else {
+                int blockSize = Math.min(Lz4Block.BLOCK_SIZE, originalSize - op);
+                System.arraycopy(decompress(block, block.length, blockSize), 0, dst, op, blockSize);
+                op += blockSize;
+            }
+        }
+        Assert.assertEquals(originalSize, op);
+        return dst;
+    }
+
+    // reference decoder of the LZ4 block format
+    private static byte[] decompress(byte[] src, int srcLen, int originalSize) {
+        byte[] dst = new byte[originalSize];
+        int ip = 0;
+        int op = 0;
+        while (true) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcLen) {
+                // the last sequence has no match
+                return dst;
+            }
+            int offset = src[ip++] & 0xFF | (src[ip++] & 0xFF) << 8;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += 4;
+            Assert.assertTrue("the last 5 bytes must be literals", op + matchLength <= originalSize - 5);
+            for (int i = 0; i < matchLength; ++i) {
+                dst[op + i] = dst[op - offset + i];
+            }
+            op += matchLength;
+        }
+    }
+
+    private static void assertRoundTrip(byte[] data) {
+        Lz4Block lz4 = new Lz4Block();
+        // compress from an offset, as the blocks of a capture
+        byte[] src = new byte[data.length + 7];
+        System.arraycopy(data, 0, src, 7, data.length);
+        byte[] dst = new byte[3 + Lz4Block.maxCompressedLength(data.length)];
+        int size = lz4.compress(src, 7, data.length, dst, 3);
+        byte[] compressed = new byte[size];
+        System.arraycopy(dst, 3, compressed, 0, size);
+        Assert.assertArrayEquals(data, decompress(compressed, size, data.length));
+    }
+
+    @Test
+    public void testScreenLikeData() {
+        byte[] data = new byte[1080 * 4 * 64];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; ++i) {
+            int y = i / (1080 * 4);
+            // opaque flat rows, with noise every 8 rows
+            data[i] = i % 4 == 3 ? (byte) 0xFF : (byte) (y % 8 == 0 ? random.nextInt() : y * 3);
+        }
+        Lz4Block lz4 = new Lz4Block();
+        byte[] dst = new byte[Lz4Block.maxCompressedLength(data.length)];
+        int size = lz4.compress(data, 0, data.length, dst, 0);
+        Assert.assertTrue("size: " + size, size < data.length / 4);
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void testEdgeCases() {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip(new byte[]{1, 2, 3});
+        assertRoundTrip(new byte[13]);
+        // long runs: lengths encoded on several bytes
+        assertRoundTrip(new byte[70_000]);
+        byte[] noise = new byte[10_000];
+        new Random(1).nextBytes(noise);
+        assertRoundTrip(noise);
+    }
+}
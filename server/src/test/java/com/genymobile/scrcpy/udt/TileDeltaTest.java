@@ -0,0 +1,168 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class TileDeltaTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 16; // 7x5 tiles, clipped on the right and the bottom
+
+    /**
+     * Client side: apply a capture to the current frame.
+     */
+    private static final class Client {
+        private byte[] frame;
+        private int seq = TileDelta.NO_BASE;
+        private int lastTileCount;
+
+        void apply(ByteBuffer payload) {
+            int width = payload.getInt();
+            int height = payload.getInt();
+            int tileSize = payload.getShort();
+            int frameSeq = payload.getInt();
+            int baseSeq = payload.getInt();
+            int tileCount = payload.getInt();
+            lastTileCount = tileCount;
+            if (baseSeq == TileDelta.NO_BASE) {
+                frame = Lz4BlockTest.decompressFramed(payload, width * 4 * height);
+                seq = frameSeq;
+                return;
+            }
+            Assert.assertEquals("delta on another frame", seq, baseSeq);
+            int[] columns = new int[tileCount];
+            int[] rows = new int[tileCount];
+            int size = 0;
+            for (int i = 0; i < tileCount; ++i) {
+                columns[i] = payload.getShort();
+                rows[i] = payload.getShort();
+                size += Math.min(tileSize, width - columns[i] * tileSize) * 4 * Math.min(tileSize, height - rows[i] * tileSize);
+            }
+            byte[] tiles = Lz4BlockTest.decompressFramed(payload, size);
+            int pos = 0;
+            for (int i = 0; i < tileCount; ++i) {
+                int x = columns[i] * tileSize * 4;
+                int tileRowSize = Math.min(tileSize * 4, width * 4 - x);
+                for (int y = rows[i] * tileSize; y < Math.min((rows[i] + 1) * tileSize, height); ++y) {
+                    System.arraycopy(tiles, pos, frame, y * width * 4 + x, tileRowSize);
+                    pos += tileRowSize;
+                }
+            }
+            seq = frameSeq;
+        }
+    }
+
+    private static ByteBuffer encode(TileDelta tileDelta, byte[] pixels, boolean full) {
+        ByteBuffer out = ByteBuffer.allocate(TileDelta.getMaxSize(WIDTH, HEIGHT, TILE_SIZE));
+        tileDelta.encode(pixels, WIDTH, HEIGHT, full, out);
+        out.flip();
+        return out;
+    }
+
+    private static void setPixel(byte[] pixels, int x, int y, int value) {
+        pixels[(y * WIDTH + x) * 4 + 1] = (byte) value;
+    }
+
+    @Test
+    public void testReconstructBitIdentical() {
+        byte[] pixels = new byte[WIDTH * 4 * HEIGHT];
+        new Random(7).nextBytes(pixels);
+        TileDelta tileDelta = new TileDelta(TILE_SIZE, 50);
+        Client client = new Client();
+
+        client.apply(encode(tileDelta, pixels, false));
+        Assert.assertArrayEquals(pixels, client.frame);
+
+        // a change in the first tile, and in the clipped bottom right tile
+        setPixel(pixels, 3, 2, 42);
+        setPixel(pixels, WIDTH - 1, HEIGHT - 1, 43);
+        client.apply(encode(tileDelta, pixels, false));
+        Assert.assertEquals(2, client.lastTileCount);
+        Assert.assertArrayEquals(pixels, client.frame);
+
+        // no change
+        client.apply(encode(tileDelta, pixels, false));
+        Assert.assertEquals(0, client.lastTileCount);
+        Assert.assertArrayEquals(pixels, client.frame);
+
+        ByteBuffer unchanged = ByteBuffer.allocate(TileDelta.getMaxSize(0, 0, TILE_SIZE));
+        Assert.assertTrue(tileDelta.encodeUnchanged(unchanged));
+        unchanged.flip();
+        client.apply(unchanged);
+
+        setPixel(pixels, 50, 40, 44);
+        client.apply(encode(tileDelta, pixels, false));
+        Assert.assertEquals(1, client.lastTileCount);
+        Assert.assertArrayEquals(pixels, client.frame);
+    }
+
+    @Test
+    public void testFullFrame() {
+        byte[] pixels = new byte[WIDTH * 4 * HEIGHT];
+        TileDelta tileDelta = new TileDelta(TILE_SIZE, 50);
+        Assert.assertFalse(tileDelta.encodeUnchanged(ByteBuffer.allocate(TileDelta.getMaxSize(0, 0, TILE_SIZE))));
+        Client client = new Client();
+        client.apply(encode(tileDelta, pixels, false));
+
+        // more than half of the tiles changed
+        new Random(3).nextBytes(pixels);
+        ByteBuffer payload = encode(tileDelta, pixels, false);
+        Assert.assertEquals(TileDelta.NO_BASE, payload.getInt(14));
+        client.apply(payload);
+        Assert.assertArrayEquals(pixels, client.frame);
+
+        // requested by the client
+        payload = encode(tileDelta, pixels, true);
+        Assert.assertEquals(TileDelta.NO_BASE, payload.getInt(14));
+        client.apply(payload);
+        Assert.assertArrayEquals(pixels, client.frame);
+    }
+
+    private static long inverse(long odd) {
+        // Newton iteration modulo 2^64
+        long x = odd;
+        for (int i = 0; i < 5; ++i) {
+            x *= 2 - odd * x;
+        }
+        return x;
+    }
+
+    @Test
+    public void testHashCollisionIsNotUnchanged() {
+        // 2 tiles of 2x2 pixels: each row of a tile is a single long for the hash
+        int width = 4;
+        int height = 2;
+        int tileSize = 2;
+        long a = 0x0102030405060708L;
+        long b = 0x1112131415161718L;
+        long h1 = TileDelta.mix(TileDelta.PRIME2, a);
+        long target = TileDelta.mix(h1, b);
+        // another first row, and the second row which gives the same hash
+        long a2 = a + 1;
+        long h2 = TileDelta.mix(TileDelta.PRIME2, a2);
+        long b2 = (Long.rotateRight(target * inverse(TileDelta.PRIME1), 31) ^ h2) * inverse(TileDelta.PRIME2);
+        Assert.assertEquals(target, TileDelta.mix(h2, b2));
+
+        ByteBuffer base = ByteBuffer.allocate(width * 4 * height).order(ByteOrder.LITTLE_ENDIAN);
+        base.putLong(0, a).putLong(width * 4, b);
+        ByteBuffer collision = ByteBuffer.allocate(width * 4 * height).order(ByteOrder.LITTLE_ENDIAN);
+        collision.putLong(0, a2).putLong(width * 4, b2);
+
+        TileDelta tileDelta = new TileDelta(tileSize, 50);
+        ByteBuffer out = ByteBuffer.allocate(TileDelta.getMaxSize(width, height, tileSize));
+        tileDelta.encode(base.array(), width, height, false, out);
+        out.clear();
+        tileDelta.encode(collision.array(), width, height, false, out);
+        out.flip();
+        out.position(14);
+        Assert.assertEquals("delta on the base", 0, out.getInt());
+        Assert.assertEquals("the colliding tile is sent", 1, out.getInt());
+        Assert.assertEquals(0, out.getShort()); // column
+        Assert.assertEquals(0, out.getShort()); // row
+    }
+}
@@ -0,0 +1,89 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UdtBitrateControllerTest {
+
+    private static final int MBPS = 1_000_000;
+
+    // simulate one interval at the given output rate
+    private static UdtBitrateController.Decision interval(UdtBitrateController controller, long[] now, int outputBitRate, int queuedBytes,
+            int sendLatencyMs) {
+        controller.onOutput((int) ((long) outputBitRate * UdtBitrateController.INTERVAL_MS / 8 / 1000), now[0]);
+        now[0] += UdtBitrateController.INTERVAL_MS;
+        Assert.assertTrue(controller.isDue(now[0]));
+        return controller.evaluate(now[0], queuedBytes, sendLatencyMs);
+    }
+
+    @Test
+    public void testDecreaseOnQueuedBytes() {
+        UdtBitrateController controller = new UdtBitrateController(8 * MBPS, MBPS, 8 * MBPS);
+        long[] now = {0};
+        // 1 second of video waiting in the queue
+        UdtBitrateController.Decision decision = interval(controller, now, 8 * MBPS, MBPS, 0);
+        Assert.assertNotNull(decision);
+        Assert.assertEquals(UdtBitrateController.REASON_CONGESTION, decision.getReason());
+        Assert.assertEquals(8 * MBPS, decision.getPreviousBitRate());
+        Assert.assertTrue(decision.getBitRate() < 8 * MBPS);
+        Assert.assertEquals(decision.getBitRate(), controller.getBitRate());
+    }
+
+    @Test
+    public void testDecreaseOnSendLatency() {
+        UdtBitrateController controller = new UdtBitrateController(8 * MBPS, MBPS, 8 * MBPS);
+        long[] now = {0};
+        UdtBitrateController.Decision decision = interval(controller, now, 8 * MBPS, 0, 300);
+        Assert.assertNotNull(decision);
+        Assert.assertEquals(UdtBitrateController.REASON_CONGESTION, decision.getReason());
+    }
+
+    @Test
+    public void testDecreaseHoldAndMinBound() {
+        UdtBitrateController controller = new UdtBitrateController(2 * MBPS, MBPS, 8 * MBPS);
+        long[] now = {0};
+        Assert.assertNotNull(interval(controller, now, 2 * MBPS, MBPS, 0));
+        // the queue did not drain yet, do not decrease again immediately
+        Assert.assertNull(interval(controller, now, 2 * MBPS, MBPS, 0));
+        UdtBitrateController.Decision decision = interval(controller, now, 2 * MBPS, MBPS, 0);
+        Assert.assertNotNull(decision);
+        Assert.assertEquals(MBPS, decision.getBitRate());
+        now[0] += UdtBitrateController.DECREASE_HOLD_MS;
+        // already at the lower bound
+        Assert.assertNull(interval(controller, now, 2 * MBPS, MBPS, 0));
+    }
+
+    @Test
+    public void testIncreaseWhenStable() {
+        UdtBitrateController controller = new UdtBitrateController(4 * MBPS, MBPS, 8 * MBPS);
+        long[] now = {0};
+        for (int i = 1; i < UdtBitrateController.STABLE_INTERVALS; ++i) {
+            Assert.assertNull(interval(controller, now, 4 * MBPS, 0, 0));
+        }
+        UdtBitrateController.Decision decision = interval(controller, now, 4 * MBPS, 0, 0);
+        Assert.assertNotNull(decision);
+        Assert.assertEquals(UdtBitrateController.REASON_PROBE, decision.getReason());
+        Assert.assertTrue(decision.getBitRate() > 4 * MBPS);
+    }
+
+    @Test
+    public void testNoIncreaseOnStaticScreen() {
+        UdtBitrateController controller = new UdtBitrateController(4 * MBPS, MBPS, 8 * MBPS);
+        long[] now = {0};
+        for (int i = 0; i < 2 * UdtBitrateController.STABLE_INTERVALS; ++i) {
+            // the encoder barely produces anything, the link capacity is unknown
+            Assert.assertNull(interval(controller, now, MBPS / 10, 0, 0));
+        }
+    }
+
+    @Test
+    public void testMaxBitRateSetByClient() {
+        UdtBitrateController controller = new UdtBitrateController(8 * MBPS, MBPS, 8 * MBPS);
+        controller.setMaxBitRate(2 * MBPS);
+        Assert.assertEquals(2 * MBPS, controller.getBitRate());
+        long[] now = {0};
+        for (int i = 0; i < 2 * UdtBitrateController.STABLE_INTERVALS; ++i) {
+            Assert.assertNull(interval(controller, now, 2 * MBPS, 0, 0));
+        }
+    }
+}
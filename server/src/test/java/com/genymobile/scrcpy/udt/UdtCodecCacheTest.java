@@ -0,0 +1,21 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UdtCodecCacheTest {
+
+    @Test
+    public void testFitMaxSize() {
+        // fits, in either orientation
+        Assert.assertEquals(0, UdtCodecCache.fitMaxSize(1080, 2400, 4096, 2176));
+        Assert.assertEquals(0, UdtCodecCache.fitMaxSize(2400, 1080, 4096, 2176));
+        // unknown supported size
+        Assert.assertEquals(0, UdtCodecCache.fitMaxSize(1440, 3200, 0, 0));
+
+        // the long side is limited
+        Assert.assertEquals(1920, UdtCodecCache.fitMaxSize(1080, 2400, 1920, 1088));
+        // the short side is limited: 1088 * 3200 / 1440 = 2417 -> 2416
+        Assert.assertEquals(2416, UdtCodecCache.fitMaxSize(1440, 3200, 4096, 1088));
+    }
+}
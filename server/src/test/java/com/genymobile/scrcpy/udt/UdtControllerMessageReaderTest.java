@@ -0,0 +1,120 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class UdtControllerMessageReaderTest {
+
+    @Test
+    public void testParseSetVideoConfig() {
+        ByteBuffer buffer = ByteBuffer.allocate(UdtControllerMessageReader.SET_VIDEO_CONFIG_LENGTH);
+        buffer.putInt(480); // max size
+        buffer.putInt(-1); // max fps unchanged
+        buffer.putInt(1000); // crop width
+        buffer.putInt(800); // crop height
+        buffer.putInt(40); // crop x
+        buffer.putInt(60); // crop y
+        buffer.flip();
+
+        UdtControllerMessageReader.UdtControlMessage msg = UdtControllerMessageReader.parseUdtEvent(buffer,
+                UdtControllerMessageReader.UdtControlMessage.TYPE_SET_VIDEO_CONFIG, null);
+        Assert.assertNotNull(msg);
+        Assert.assertEquals(UdtControllerMessageReader.UdtControlMessage.TYPE_SET_VIDEO_CONFIG, msg.getType());
+        Assert.assertEquals(480, msg.getMaxSize());
+        Assert.assertEquals(UdtControllerMessageReader.UdtControlMessage.UNCHANGED, msg.getMaxFps());
+        Assert.assertTrue(msg.isCropChanged());
+        Assert.assertEquals(1000, msg.getCropWidth());
+        Assert.assertEquals(800, msg.getCropHeight());
+        Assert.assertEquals(40, msg.getCropX());
+        Assert.assertEquals(60, msg.getCropY());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testParseSetVideoConfigNoCrop() {
+        ByteBuffer buffer = ByteBuffer.allocate(UdtControllerMessageReader.SET_VIDEO_CONFIG_LENGTH);
+        buffer.putInt(-1);
+        buffer.putInt(30);
+        buffer.putInt(0); // disable the crop
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.flip();
+
+        UdtControllerMessageReader.UdtControlMessage msg = UdtControllerMessageReader.parseUdtEvent(buffer,
+                UdtControllerMessageReader.UdtControlMessage.TYPE_SET_VIDEO_CONFIG, null);
+        Assert.assertNotNull(msg);
+        Assert.assertEquals(30, msg.getMaxFps());
+        Assert.assertTrue(msg.isCropChanged());
+        Assert.assertEquals(0, msg.getCropWidth());
+        Assert.assertNull(msg.getCrop()); // without creating a Rect
+    }
+
+    @Test
+    public void testParseSetVideoConfigPartial() {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(480);
+        buffer.putInt(30);
+        buffer.flip();
+
+        // wait for the remaining bytes
+        Assert.assertNull(UdtControllerMessageReader.parseUdtEvent(buffer, UdtControllerMessageReader.UdtControlMessage.TYPE_SET_VIDEO_CONFIG,
+                null));
+    }
+
+    @Test
+    public void testCheckVideoConfig() {
+        Assert.assertNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(480, 30, 1000, 800, 40, 60)
+                .checkVideoConfig(1080, 2400));
+        // unchanged, and disabled
+        Assert.assertNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(-1, -1, -1, 0, 0, 0)
+                .checkVideoConfig(1080, 2400));
+        Assert.assertNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(0, 0, 0, 0, 0, 0)
+                .checkVideoConfig(1080, 2400));
+
+        Assert.assertNotNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(-2, 30, -1, 0, 0, 0)
+                .checkVideoConfig(1080, 2400));
+        Assert.assertNotNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(480, -5, -1, 0, 0, 0)
+                .checkVideoConfig(1080, 2400));
+        // empty crop
+        Assert.assertNotNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(480, 30, 0, 800, 40, 60)
+                .checkVideoConfig(1080, 2400));
+        // outside the display
+        Assert.assertNotNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(480, 30, 1080, 800, 40, 60)
+                .checkVideoConfig(1080, 2400));
+        Assert.assertNotNull(UdtControllerMessageReader.UdtControlMessage.createSetVideoConfig(480, 30, 100, 100, -10, 60)
+                .checkVideoConfig(1080, 2400));
+    }
+
+    @Test
+    public void testParseCaptureRegions() {
+        ByteBuffer buffer = ByteBuffer.allocate(UdtControllerMessageReader.CAPTURE_REGIONS_HEADER_LENGTH
+                + 2 * UdtControllerMessageReader.CAPTURE_REGION_LENGTH);
+        buffer.putInt(90); // quality
+        buffer.put((byte) CaptureEncoder.FORMAT_PNG);
+        buffer.put((byte) 2);
+        buffer.putInt(0).putInt(0).putInt(1080).putInt(80); // status bar
+        buffer.putInt(100).putInt(900).putInt(300).putInt(120); // button
+        buffer.flip();
+
+        // wait for the remaining bytes
+        ByteBuffer partial = buffer.duplicate();
+        partial.limit(buffer.limit() - 1);
+        Assert.assertNull(UdtControllerMessageReader.parseUdtEvent(partial,
+                UdtControllerMessageReader.UdtControlMessage.TYPE_CAPTURE_REGIONS, null));
+
+        UdtControllerMessageReader.UdtControlMessage msg = UdtControllerMessageReader.parseUdtEvent(buffer,
+                UdtControllerMessageReader.UdtControlMessage.TYPE_CAPTURE_REGIONS, null);
+        Assert.assertNotNull(msg);
+        Assert.assertEquals(90, msg.getCapQuality());
+        Assert.assertEquals(CaptureEncoder.FORMAT_PNG, msg.getCapFormat());
+        Assert.assertArrayEquals(new int[]{0, 0, 1080, 80, 100, 900, 400, 1020}, msg.getCapRegions());
+        Assert.assertFalse(buffer.hasRemaining());
+
+        // clipped to the screen, without the empty regions
+        int[] clipped = RegionCapture.clip(new int[]{1000, 0, 1200, 80, 2000, 0, 2100, 10, -10, -10, 20, 30}, 0, 0, 1080, 1920);
+        Assert.assertArrayEquals(new int[]{1000, 0, 1080, 80, 0, 0, 20, 30}, clipped);
+    }
+}
@@ -0,0 +1,66 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UdtEncoderWatchdogTest {
+
+    private static final long THRESHOLD_MS = 1000;
+
+    @Test
+    public void testEscalation() {
+        UdtEncoderWatchdog watchdog = new UdtEncoderWatchdog(THRESHOLD_MS);
+        watchdog.onInput(0);
+        watchdog.onOutput(50);
+        // armed by the first input since the last output
+        watchdog.onInput(100);
+        watchdog.onInput(500);
+
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(1000, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_SYNC_FRAME, watchdog.check(1100, true));
+        // each step waits for the threshold again
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(2000, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_RECREATE, watchdog.check(2100, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_SOFTWARE, watchdog.check(3100, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_SOFTWARE, watchdog.check(4100, true));
+
+        // the output resumes
+        Assert.assertEquals(4000, watchdog.onOutput(4100));
+        watchdog.onInput(4150);
+        Assert.assertEquals(-1, watchdog.onOutput(4200));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(5100, true));
+
+        watchdog.record(UdtEncoderWatchdog.ACTION_SYNC_FRAME);
+        watchdog.record(UdtEncoderWatchdog.ACTION_RECREATE);
+        watchdog.record(UdtEncoderWatchdog.ACTION_RECREATE);
+        UdtEncoderWatchdog.Metrics metrics = new UdtEncoderWatchdog.Metrics();
+        watchdog.addMetrics(metrics);
+        Assert.assertEquals(1, metrics.getStalls());
+        Assert.assertEquals(1, metrics.getSyncFrames());
+        Assert.assertEquals(2, metrics.getRecreations());
+        Assert.assertEquals(0, metrics.getSoftwareFallbacks());
+        Assert.assertEquals(4000, metrics.getLongestStallMs());
+    }
+
+    @Test
+    public void testNoStallWhilePaused() {
+        UdtEncoderWatchdog watchdog = new UdtEncoderWatchdog(THRESHOLD_MS);
+        watchdog.onInput(0);
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(5000, false));
+        // the input before the pause is forgotten, the timer restarts on the next one
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(5500, true));
+        watchdog.onInput(5500);
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(6000, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_SYNC_FRAME, watchdog.check(6500, true));
+    }
+
+    @Test
+    public void testNoStallWhileIdle() {
+        UdtEncoderWatchdog watchdog = new UdtEncoderWatchdog(THRESHOLD_MS);
+        watchdog.onInput(0);
+        watchdog.onOutput(20);
+        // static screen, the encoder does not repeat the frames
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(10_000, true));
+        Assert.assertEquals(UdtEncoderWatchdog.ACTION_NONE, watchdog.check(60_000, true));
+    }
+}
@@ -0,0 +1,24 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UdtPreviewTest {
+
+    @Test
+    public void testIntervalFromFps() {
+        Assert.assertEquals(500, UdtPreview.computeIntervalMs(2, 5, 256, 10, 4000));
+    }
+
+    @Test
+    public void testIntervalFromCpuBudget() {
+        // 40ms of CPU per frame at 5% of one core: at most 1 frame every 800ms
+        Assert.assertEquals(800, UdtPreview.computeIntervalMs(2, 5, 0, 40, 4000));
+    }
+
+    @Test
+    public void testIntervalFromBandwidthCap() {
+        // 32KB per frame at 256 kbps: at most 1 frame every second
+        Assert.assertEquals(1000, UdtPreview.computeIntervalMs(2, 0, 256, 10, 32_000));
+    }
+}
@@ -0,0 +1,28 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class UdtSimulcastTest {
+
+    @Test
+    public void testParseLayers() {
+        List<UdtSimulcast.Layer> layers = UdtSimulcast.parseLayers("360:1000000:15:30,720:4000000");
+        Assert.assertEquals(2, layers.size());
+        Assert.assertEquals(360, layers.get(0).getMaxSize());
+        Assert.assertEquals(1000000, layers.get(0).getBitRate());
+        Assert.assertEquals(15, layers.get(0).getMaxFps());
+        Assert.assertEquals(30, layers.get(0).getIntraRefreshPeriod());
+        Assert.assertEquals(720, layers.get(1).getMaxSize());
+        Assert.assertEquals(0, layers.get(1).getMaxFps());
+        // the period of the main stream
+        Assert.assertEquals(-1, layers.get(1).getIntraRefreshPeriod());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidLayer() {
+        UdtSimulcast.parseLayers("360");
+    }
+}
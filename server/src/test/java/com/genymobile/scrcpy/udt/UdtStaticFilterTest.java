@@ -0,0 +1,60 @@
+package com.genymobile.scrcpy.udt;
+
+import android.media.MediaCodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UdtStaticFilterTest {
+
+    private static final long REPEAT_US = 100_000;
+
+    @Test
+    public void testSuppressRepeatedFrames() {
+        UdtStaticFilter filter = new UdtStaticFilter(256, REPEAT_US, 1000);
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0, 30));
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 50_000));
+        long pts = 0;
+        for (int i = 1; i < 10; ++i) {
+            pts += REPEAT_US;
+            Assert.assertEquals(UdtStaticFilter.SUPPRESS, filter.filter(0, pts, 20));
+        }
+        // 1 second without any packet
+        pts += REPEAT_US;
+        Assert.assertEquals(UdtStaticFilter.KEEP_ALIVE, filter.filter(0, pts, 20));
+        pts += REPEAT_US;
+        Assert.assertEquals(UdtStaticFilter.SUPPRESS, filter.filter(0, pts, 20));
+        // the screen changes: the frame is sent immediately, with a sync frame in case a suppressed frame was a change
+        pts += 16_000;
+        Assert.assertEquals(UdtStaticFilter.FORWARD_SYNC, filter.filter(0, pts, 3000));
+        pts += 16_000;
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(0, pts, 3000));
+    }
+
+    @Test
+    public void testForwardRealFrames() {
+        UdtStaticFilter filter = new UdtStaticFilter(256, REPEAT_US, 1000);
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 50_000));
+        // a tiny change rendered right after the previous frame
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(0, 16_000, 20));
+        // a large frame, even on the repeat delay
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(0, 16_000 + REPEAT_US, 1000));
+        // key frames are never suppressed
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_KEY_FRAME, 16_000 + 2 * REPEAT_US, 20));
+    }
+
+    @Test
+    public void testForwardSmallChangeAfterLongGap() {
+        UdtStaticFilter filter = new UdtStaticFilter(256, REPEAT_US, 1000);
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 50_000));
+        // a caret blink, long after the previous frame (the encoder does not repeat frames)
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(0, 500_000, 40));
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(0, 2_500_000, 40));
+        // a repeat, then a small change later than the repeat delay
+        Assert.assertEquals(UdtStaticFilter.SUPPRESS, filter.filter(0, 2_600_000, 20));
+        Assert.assertEquals(UdtStaticFilter.FORWARD_SYNC, filter.filter(0, 2_750_000, 40));
+        // a key frame after suppressed frames needs no sync frame
+        Assert.assertEquals(UdtStaticFilter.SUPPRESS, filter.filter(0, 2_850_000, 20));
+        Assert.assertEquals(UdtStaticFilter.FORWARD, filter.filter(MediaCodec.BUFFER_FLAG_KEY_FRAME, 2_950_000, 20));
+    }
+}
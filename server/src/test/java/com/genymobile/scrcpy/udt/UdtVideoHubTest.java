@@ -0,0 +1,78 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+
+public class UdtVideoHubTest {
+
+    private static UdtVideoHub.Packet frame(int size, boolean keyFrame) {
+        return new UdtVideoHub.Packet(new byte[size], false, keyFrame);
+    }
+
+    @Test
+    public void testWaitFirstKeyFrame() {
+        UdtVideoHub.Subscriber subscriber = new UdtVideoHub.Subscriber(new FileDescriptor());
+        Assert.assertFalse(subscriber.offer(new UdtVideoHub.Packet(new byte[10], true, false)));
+        Assert.assertFalse(subscriber.offer(frame(100, false)));
+        Assert.assertEquals(10, subscriber.getQueuedBytes());
+        Assert.assertFalse(subscriber.offer(frame(100, true)));
+        Assert.assertEquals(110, subscriber.getQueuedBytes());
+
+        // joining a stream is not dropping
+        UdtVideoHub.VideoStats stats = new UdtVideoHub.VideoStats();
+        subscriber.addDropStats(stats);
+        Assert.assertEquals(0, stats.getDroppedPackets());
+    }
+
+    @Test
+    public void testDropUntilKeyFrameOnOverflow() {
+        UdtVideoHub.Subscriber subscriber = new UdtVideoHub.Subscriber(new FileDescriptor());
+        subscriber.setQueueLimit(1000);
+        UdtVideoHub.Packet config = new UdtVideoHub.Packet(new byte[10], true, false);
+        subscriber.offer(config);
+        subscriber.offer(frame(400, true));
+        subscriber.offer(frame(400, false));
+        Assert.assertEquals(810, subscriber.getQueuedBytes());
+
+        // overflow: the queued frames are dropped and a key frame is requested
+        Assert.assertTrue(subscriber.offer(frame(400, false)));
+        Assert.assertEquals(10, subscriber.getQueuedBytes()); // the config packet is kept
+        // still waiting for the key frame, no new request
+        Assert.assertFalse(subscriber.offer(frame(100, false)));
+        Assert.assertEquals(10, subscriber.getQueuedBytes());
+
+        Assert.assertFalse(subscriber.offer(frame(400, true)));
+        Assert.assertEquals(410, subscriber.getQueuedBytes());
+
+        UdtVideoHub.VideoStats stats = new UdtVideoHub.VideoStats();
+        subscriber.addDropStats(stats);
+        Assert.assertEquals(1, stats.getSubscribers());
+        Assert.assertEquals(1, stats.getDropEvents());
+        Assert.assertEquals(4, stats.getDroppedPackets());
+        Assert.assertEquals(1300, stats.getDroppedBytes());
+    }
+
+    @Test
+    public void testRecyclePacketsOnceReleased() {
+        UdtVideoHub.PacketPool pool = new UdtVideoHub.PacketPool();
+        UdtVideoHub.Subscriber s1 = new UdtVideoHub.Subscriber(new FileDescriptor());
+        UdtVideoHub.Subscriber s2 = new UdtVideoHub.Subscriber(new FileDescriptor());
+        byte[] data = pool.obtain(100);
+        UdtVideoHub.Packet packet = new UdtVideoHub.Packet(data, 100, false, true, pool);
+        s1.offer(packet);
+        s2.offer(packet);
+        Assert.assertEquals(100, s1.getQueuedBytes());
+
+        packet.release(); // the hub reference
+        s1.close();
+        Assert.assertEquals(0, pool.getFreeCount()); // still queued by s2
+        s2.close();
+        Assert.assertEquals(1, pool.getFreeCount());
+
+        // the buffer is reused for a packet of similar size
+        Assert.assertSame(data, pool.obtain(200));
+        Assert.assertEquals(0, pool.getFreeCount());
+    }
+}
@@ -0,0 +1,40 @@
+package com.genymobile.scrcpy.udt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class YuvPlanesTest {
+
+    @Test
+    public void testCopyPlanar() {
+        YuvPlanes planes = new YuvPlanes();
+        // 3x2 luma, with a row stride of 4 and no padding after the last row
+        byte[] y = {1, 2, 3, 0, 4, 5, 6};
+        planes.copy(0, ByteBuffer.wrap(y), 4, 1, 3, 2);
+        Assert.assertEquals(4, planes.strides[0]);
+        Assert.assertEquals(4, planes.planes[0][3 + 1]);
+        Assert.assertEquals(6, planes.planes[0][4 + 2]);
+        Assert.assertTrue(planes.planes[0].length >= 8);
+    }
+
+    @Test
+    public void testDeinterleaveSemiPlanar() {
+        YuvPlanes planes = new YuvPlanes();
+        // NV12 chroma of a 4x4 image: U V U V, row stride 6, the V plane starts one byte after the U plane
+        byte[] uv = {10, 20, 11, 21, 0, 0, 12, 22, 13, 23};
+        ByteBuffer u = ByteBuffer.wrap(uv, 0, 9);
+        ByteBuffer v = ByteBuffer.wrap(uv, 1, 9);
+        planes.copy(1, u.slice(), 6, 2, 4, 4);
+        planes.copy(2, v.slice(), 6, 2, 4, 4);
+        Assert.assertEquals(2, planes.strides[1]);
+        Assert.assertEquals(2, planes.strides[2]);
+        Assert.assertArrayEquals(new byte[]{10, 11, 12, 13}, planes.planes[1]);
+        Assert.assertArrayEquals(new byte[]{20, 21, 22, 23}, planes.planes[2]);
+        // the row 2 of the image is the chroma row 1
+        int[] offsets = planes.getOffsets(2, new int[3]);
+        Assert.assertEquals(2, offsets[1]);
+        Assert.assertEquals(2, offsets[2]);
+    }
+}